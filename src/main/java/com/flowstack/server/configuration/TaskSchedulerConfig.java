@@ -1,10 +1,14 @@
 package com.flowstack.server.configuration;
 
+import com.flowstack.server.core.enums.ExecutionBackend;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 @Configuration
@@ -14,6 +18,12 @@ public class TaskSchedulerConfig {
     @Value("${flowstack.server.system.taskScheduleAwaitTerminationSec}")
     private int taskScheduleAwaitTerminationSec;
 
+    @Value("${flowstack.server.system.nodeExecutorPoolSize:4}")
+    private int nodeExecutorPoolSize;
+
+    @Value("${flowstack.server.system.executionBackend:PLATFORM}")
+    private ExecutionBackend executionBackend;
+
     @Bean(name = "generalTaskScheduler")
     public TaskScheduler generalTaskScheduler() {
         ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
@@ -36,4 +46,48 @@ public class TaskSchedulerConfig {
         scheduler.initialize();
         return scheduler;
     }
+
+    // flow 执行使用, 每个 flow 一个线程
+    @Bean(name = "flowTaskExecutor")
+    public AsyncTaskExecutor flowTaskExecutor() {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("Flow-Execution-Thread-");
+        executor.setVirtualThreads(ExecutionBackend.VIRTUAL.equals(executionBackend));
+        executor.setTaskTerminationTimeout(taskScheduleAwaitTerminationSec * 1000L);
+        log.info("flow 执行模式: {}", executionBackend);
+        return executor;
+    }
+
+    // flow 内 node 并行执行使用, 限制同时运行的 node 数量
+    @Bean(name = "nodeTaskExecutor")
+    public AsyncTaskExecutor nodeTaskExecutor() {
+        if (ExecutionBackend.VIRTUAL.equals(executionBackend)) {
+            // 虚拟线程不做池化, 只限制并发数. node 大部分时间阻塞在外部进程或 JDBC 上
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("Node-Execution-Thread-");
+            executor.setVirtualThreads(true);
+            executor.setConcurrencyLimit(nodeExecutorPoolSize);
+            executor.setTaskTerminationTimeout(taskScheduleAwaitTerminationSec * 1000L);
+            return executor;
+        }
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(nodeExecutorPoolSize);
+        executor.setMaxPoolSize(nodeExecutorPoolSize);
+        executor.setThreadNamePrefix("Node-Execution-Thread-");
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(taskScheduleAwaitTerminationSec);
+        executor.initialize();
+        return executor;
+    }
+
+    // snapshot 索引生成使用, 单线程排队执行, 避免同时运行多个 restic ls
+    @Bean(name = "snapshotIndexTaskExecutor")
+    public AsyncTaskExecutor snapshotIndexTaskExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(1);
+        executor.setThreadNamePrefix("Snapshot-Index-Thread-");
+        executor.setWaitForTasksToCompleteOnShutdown(false);
+        executor.setAwaitTerminationSeconds(taskScheduleAwaitTerminationSec);
+        executor.initialize();
+        return executor;
+    }
 }
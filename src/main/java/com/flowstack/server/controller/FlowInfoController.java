@@ -1,14 +1,31 @@
 package com.flowstack.server.controller;
 
+import com.flowstack.server.core.channel.ChannelService;
+import com.flowstack.server.core.channel.ProgressPublisher;
+import com.flowstack.server.core.engine.FlowRunQueue;
+import com.flowstack.server.exception.ValidationException;
 import com.flowstack.server.model.api.global.FlowResponse;
+import com.flowstack.server.model.api.info.ChannelStatsDTO;
+import com.flowstack.server.model.api.info.CursorPageDTO;
+import com.flowstack.server.model.api.info.ExecutionQueryDTO;
+import com.flowstack.server.model.api.info.FlowExecutionDTO;
 import com.flowstack.server.model.api.info.FlowInfoDTO;
+import com.flowstack.server.model.api.info.NodeExecutionDTO;
+import com.flowstack.server.model.api.info.RunQueueStatsDTO;
+import com.flowstack.server.service.ExecutionHistoryService;
 import com.flowstack.server.service.FlowMsgPersistService;
 import com.flowstack.server.service.FlowScheduler;
+import com.flowstack.server.service.RetentionService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 @RestController
 @Slf4j
@@ -18,12 +35,79 @@ import java.util.List;
 public class FlowInfoController {
     private final FlowMsgPersistService flowMsgPersistService;
     private final FlowScheduler flowScheduler;
+    private final RetentionService retentionService;
+    private final ExecutionHistoryService executionHistoryService;
+    private final FlowRunQueue flowRunQueue;
+    private final ChannelService channelService;
+    private final ProgressPublisher progressPublisher;
 
     @GetMapping("/get-all-flow-info")
     public FlowResponse<List<FlowInfoDTO>> getAllFlowInfo() {
         return FlowResponse.success(flowMsgPersistService.getAllFlowInfo());
     }
 
+    @GetMapping("/get-run-queue-stats")
+    public FlowResponse<RunQueueStatsDTO> getRunQueueStats() {
+        FlowRunQueue.Stats stats = this.flowRunQueue.getStats();
+        Map<String, Integer> queued = new LinkedHashMap<>();
+        Map<String, Long> admitted = new LinkedHashMap<>();
+        Map<String, Long> avgWaitMillis = new LinkedHashMap<>();
+        Map<String, Long> maxWaitMillis = new LinkedHashMap<>();
+        stats.queued().forEach((k, v) -> queued.put(k.name(), v));
+        stats.waits().forEach((k, v) -> {
+            admitted.put(k.name(), v.getCount());
+            avgWaitMillis.put(k.name(), v.getAvgWaitMillis());
+            maxWaitMillis.put(k.name(), v.getMaxWaitMillis());
+        });
+        return FlowResponse.success(new RunQueueStatsDTO()
+                .setMaxConcurrentFlows(stats.maxConcurrentFlows())
+                .setMaxBackgroundFlows(stats.maxBackgroundFlows())
+                .setRunning(stats.running())
+                .setQueued(queued)
+                .setAdmitted(admitted)
+                .setAvgWaitMillis(avgWaitMillis)
+                .setMaxWaitMillis(maxWaitMillis));
+    }
+
+    @GetMapping("/get-channel-stats")
+    public FlowResponse<ChannelStatsDTO> getChannelStats() {
+        ChannelService.Stats stats = this.channelService.getStats();
+        return FlowResponse.success(new ChannelStatsDTO()
+                .setCapacity(stats.capacity())
+                .setMemoryDepth(stats.memoryDepth())
+                .setSpoolDepth(stats.spoolDepth())
+                .setSpoolBytes(stats.spoolBytes())
+                .setMaxSpoolDepth(stats.maxSpoolDepth())
+                .setSpilledTotal(stats.spilledTotal()));
+    }
+
+    /**
+     * 订阅 flow 执行中 node 的进度, 事件 progress 为进度, complete 为 flow 结束.
+     * execution 不在运行时立即结束: 最近结束的返回 complete, 否则返回 not-running
+     */
+    @GetMapping(value = "/subscribe-progress", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeProgress(@RequestParam("flowExecutionUuidV4") String flowExecutionUuidV4) {
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(flowExecutionUuidV4);
+        } catch (IllegalArgumentException e) {
+            throw new ValidationException("flowExecutionUuidV4 %s 格式错误".formatted(flowExecutionUuidV4), e);
+        }
+        return this.progressPublisher.subscribe(uuid);
+    }
+
+    @PostMapping("/list-flow-executions")
+    public FlowResponse<CursorPageDTO<FlowExecutionDTO>> listFlowExecutions(
+            @RequestBody ExecutionQueryDTO executionQueryDTO) {
+        return FlowResponse.success(this.executionHistoryService.listFlowExecutions(executionQueryDTO));
+    }
+
+    @PostMapping("/list-node-executions")
+    public FlowResponse<CursorPageDTO<NodeExecutionDTO>> listNodeExecutions(
+            @RequestBody ExecutionQueryDTO executionQueryDTO) {
+        return FlowResponse.success(this.executionHistoryService.listNodeExecutions(executionQueryDTO));
+    }
+
     @PostMapping("/enable-flow")
     public FlowResponse<Void> enableFlow(@RequestBody FlowInfoDTO flowInfoDTO) {
         this.flowScheduler.enableSchedule(flowInfoDTO.getFlowDefinitionId());
@@ -36,6 +120,22 @@ public class FlowInfoController {
         return FlowResponse.success();
     }
 
+    @PostMapping("/resume-flow")
+    public FlowResponse<Void> resumeFlow(@RequestBody FlowInfoDTO flowInfoDTO) {
+        this.flowScheduler.resumeFlow(flowInfoDTO.getFlowDefinitionId());
+        return FlowResponse.success();
+    }
+
+    @PostMapping("/update-retention-policy")
+    public FlowResponse<Void> updateRetentionPolicy(@RequestBody FlowInfoDTO flowInfoDTO) {
+        this.retentionService.updatePolicy(
+                flowInfoDTO.getFlowDefinitionId(),
+                flowInfoDTO.getRetentionFullRuns(),
+                flowInfoDTO.getRetentionSummaryDays()
+        );
+        return FlowResponse.success();
+    }
+
     @PostMapping("/delete-flow")
     public FlowResponse<Void> deleteFlow(@RequestBody FlowInfoDTO flowInfoDTO) {
         this.flowScheduler.deleteFlow(flowInfoDTO.getFlowDefinitionId());
@@ -1,6 +1,8 @@
 package com.flowstack.server.controller;
 
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.flowstack.server.core.engine.FlowEngine;
 import com.flowstack.server.core.model.definition.FlowDefinition;
 import com.flowstack.server.core.model.definition.FlowNode;
@@ -12,16 +14,26 @@ import com.flowstack.server.exception.ValidationException;
 import com.flowstack.server.mapper.SnapshotMetaMapper;
 import com.flowstack.server.model.SystemSettings;
 import com.flowstack.server.model.api.global.FlowResponse;
+import com.flowstack.server.model.api.snapshot.DiffRequest;
+import com.flowstack.server.model.api.snapshot.PathSearchResultDTO;
 import com.flowstack.server.model.api.snapshot.RestoreRequest;
+import com.flowstack.server.model.api.snapshot.SnapshotDiffPageDTO;
 import com.flowstack.server.model.api.snapshot.SnapshotItemDTO;
 import com.flowstack.server.model.db.SnapshotMetaEntity;
 import com.flowstack.server.node.registry.FieldRegistry;
+import com.flowstack.server.node.restic.model.SnapshotDiff;
 import com.flowstack.server.node.restic.model.SnapshotNode;
+import com.flowstack.server.node.restic.utils.SnapshotIndex;
+import com.flowstack.server.service.SnapshotDiffService;
+import com.flowstack.server.service.SnapshotIndexService;
+import com.flowstack.server.service.SnapshotLsCache;
+import com.flowstack.server.service.SnapshotSearchService;
 import com.flowstack.server.util.FilesystemUtil;
 import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.core.io.UrlResource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -29,12 +41,15 @@ import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.net.MalformedURLException;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.*;
@@ -45,11 +60,18 @@ import java.util.concurrent.*;
 @RequestMapping("/restic")
 @RequiredArgsConstructor
 public class ResticController {
+    private static final int MAX_ITEMS_LIMIT = 5000;
+
     private final FlowEngine flowEngine;
     private final SystemSettings systemSettings;
     private final SnapshotMetaMapper snapshotMetaMapper;
     private final ConcurrentHashMap<String, Future<FlowContext>> downloadJobResultMap = new ConcurrentHashMap<>();
     private final TaskScheduler generalTaskScheduler;
+    private final SnapshotIndexService snapshotIndexService;
+    private final ObjectMapper objectMapper;
+    private final SnapshotDiffService snapshotDiffService;
+    private final SnapshotSearchService snapshotSearchService;
+    private final SnapshotLsCache snapshotLsCache;
 
     @GetMapping("/get-all-snapshots")
     public FlowResponse<List<SnapshotMetaEntity>> getAllSnapshots() {
@@ -59,32 +81,275 @@ public class ResticController {
         return FlowResponse.success(this.snapshotMetaMapper.selectList(queryWrapper));
     }
 
+    /**
+     * 分页列目录, 支持按 name, size, ctime 排序和 name 前缀过滤. snapshot 不会改变, cursor 直接使用偏移量.
+     * 响应按 FlowResponse&lt;CursorPageDTO&gt; 的格式逐条写出, 不在内存中拼接整个 JSON
+     */
     @PostMapping("/get-snapshot-items")
-    public FlowResponse<List<SnapshotItemDTO>> getSnapshotItems(
+    public ResponseEntity<StreamingResponseBody> getSnapshotItems(
             @RequestBody SnapshotMetaEntity snapshotMetaEntity,
-            @RequestParam(value = "filter", defaultValue = "/") String filter) {
+            @RequestParam(value = "filter", defaultValue = "/") String filter,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "limit", defaultValue = "500") int limit,
+            @RequestParam(value = "sortBy", defaultValue = "name") String sortBy,
+            @RequestParam(value = "sortOrder", defaultValue = "asc") String sortOrder,
+            @RequestParam(value = "namePrefix", required = false) String namePrefix) {
+        if (limit <= 0 || limit > MAX_ITEMS_LIMIT) {
+            throw new ValidationException("limit 必须在 1 到 %s 之间, 当前是 %s".formatted(MAX_ITEMS_LIMIT, limit));
+        }
+        SnapshotIndex.SortField sortField = parseSortField(sortBy);
+        boolean descending = parseDescending(sortOrder);
+        int offset = parseOffsetCursor(cursor);
         // 归一化 filter, 去掉尾部一个或多个斜杠
         String finalFilter = filter.equals("/") ? filter : filter.replaceAll("/+$", "");
-        // 执行 ls
-        FlowDefinition tempFlow = buildLsFlow(snapshotMetaEntity, filter);
-        FlowContext context;
-        try {
-            context = this.flowEngine.executeOnce(tempFlow).get();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new BusinessException("ls 执行失败", e);
+        // 多取一条判断是否有下一页
+        List<SnapshotItemDTO> items;
+        // 有索引时直接读取索引, 没有时提交索引任务, 本次读取 ls 的结果. 同一个目录的各页共享缓存的 ls 结果
+        SnapshotIndex snapshotIndex = this.snapshotIndexService.find(snapshotMetaEntity.getSnapshotId());
+        if (ObjectUtils.isNotEmpty(snapshotIndex)) {
+            items = snapshotIndex.list(finalFilter, namePrefix, sortField, descending, offset, limit + 1).stream()
+                    .map(ResticController::toSnapshotItem)
+                    .toList();
+        } else {
+            this.snapshotIndexService.submitBuild(snapshotMetaEntity);
+            items = this.lsSnapshotItems(snapshotMetaEntity, filter, finalFilter).stream()
+                    .filter(n -> StringUtils.isEmpty(namePrefix) || n.getName().startsWith(namePrefix))
+                    .sorted(itemComparator(sortField, descending))
+                    .skip(offset)
+                    .limit(limit + 1L)
+                    .toList();
+        }
+        String nextCursor = items.size() > limit ? String.valueOf(offset + limit) : null;
+        List<SnapshotItemDTO> page = items.subList(0, Math.min(limit, items.size()));
+        StreamingResponseBody body = outputStream -> {
+            try (JsonGenerator generator = this.objectMapper.getFactory().createGenerator(outputStream)) {
+                generator.writeStartObject();
+                generator.writeNumberField("statusCode", HttpStatus.OK.value());
+                generator.writeStringField("message", "success");
+                generator.writeObjectFieldStart("data");
+                generator.writeArrayFieldStart("items");
+                for (SnapshotItemDTO item : page) {
+                    generator.writeObject(item);
+                }
+                generator.writeEndArray();
+                generator.writeStringField("nextCursor", nextCursor);
+                generator.writeEndObject();
+                generator.writeStringField("timestamp", String.valueOf(System.currentTimeMillis()));
+                generator.writeEndObject();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    /**
+     * 对比两个 snapshot. groupBy=path 返回每个变化的 path, groupBy=directory 返回按父目录汇总的变化.
+     * directory 不为空时只返回这个目录的直接子节点(path)或者这个目录及子目录(directory)的变化
+     */
+    @PostMapping("/diff")
+    public FlowResponse<SnapshotDiffPageDTO<?>> diff(
+            @RequestBody DiffRequest diffRequest,
+            @RequestParam(value = "groupBy", defaultValue = "path") String groupBy,
+            @RequestParam(value = "directory", required = false) String directory,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "limit", defaultValue = "500") int limit) {
+        if (ObjectUtils.anyNull(diffRequest, diffRequest.getFromSnapshot(), diffRequest.getToSnapshot())) {
+            throw new ValidationException("fromSnapshot 或 toSnapshot is null");
+        }
+        String backupRepository = diffRequest.getToSnapshot().getBackupRepository();
+        if (!StringUtils.equals(diffRequest.getFromSnapshot().getBackupRepository(), backupRepository)) {
+            throw new ValidationException("只能对比同一个仓库的 snapshot");
+        }
+        if (limit <= 0 || limit > MAX_ITEMS_LIMIT) {
+            throw new ValidationException("limit 必须在 1 到 %s 之间, 当前是 %s".formatted(MAX_ITEMS_LIMIT, limit));
+        }
+        int offset = parseOffsetCursor(cursor);
+        String finalDirectory = StringUtils.isEmpty(directory) || directory.equals("/") ?
+                directory : directory.replaceAll("/+$", "");
+        String fromSnapshotId = diffRequest.getFromSnapshot().getSnapshotId();
+        String toSnapshotId = diffRequest.getToSnapshot().getSnapshotId();
+        SnapshotDiff diff = this.snapshotDiffService.find(fromSnapshotId, toSnapshotId);
+        if (diff == null) {
+            // 没有索引时 restic diff 和 ls 一样经过运行队列和仓库的资源槽位
+            FlowDefinition tempFlow = buildDiffFlow(backupRepository, fromSnapshotId, toSnapshotId);
+            try {
+                this.flowEngine.executeOnce(tempFlow, "diff-" + fromSnapshotId + "_" + toSnapshotId).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new BusinessException("diff 执行失败", e);
+            }
+            diff = this.snapshotDiffService.find(fromSnapshotId, toSnapshotId);
+            if (diff == null) {
+                throw new BusinessException("diff 执行失败, 没有对比结果");
+            }
+        }
+        SnapshotDiff finalDiff = diff;
+        List<?> items = switch (groupBy) {
+            case "path" -> finalDiff.getChanges().stream()
+                    .filter(c -> StringUtils.isEmpty(finalDirectory)
+                            || SnapshotIndex.parentOf(c.path()).equals(finalDirectory))
+                    .skip(offset)
+                    .limit(limit + 1L)
+                    .toList();
+            case "directory" -> finalDiff.getDirectories().stream()
+                    .filter(d -> StringUtils.isEmpty(finalDirectory) || finalDirectory.equals("/")
+                            || d.path().equals(finalDirectory) || d.path().startsWith(finalDirectory + "/"))
+                    .skip(offset)
+                    .limit(limit + 1L)
+                    .toList();
+            default -> throw new ValidationException("groupBy 只支持 path, directory, 当前是 %s".formatted(groupBy));
+        };
+        return FlowResponse.success(new SnapshotDiffPageDTO<Object>()
+                .setSummary(diff.toSummary())
+                .setItems(List.copyOf(items.subList(0, Math.min(limit, items.size()))))
+                .setNextCursor(items.size() > limit ? String.valueOf(offset + limit) : null));
+    }
+
+    private List<SnapshotItemDTO> lsSnapshotItems(
+            SnapshotMetaEntity snapshotMetaEntity,
+            String filter,
+            String finalFilter) {
+        // 翻页时 ls 的结果已经在缓存中, 不再经过运行队列
+        List<SnapshotNode> snapshotNodes = this.snapshotLsCache.getIfPresent(
+                snapshotMetaEntity.getBackupRepository(), snapshotMetaEntity.getSnapshotId(), filter);
+        if (snapshotNodes == null) {
+            FlowDefinition tempFlow = buildLsFlow(snapshotMetaEntity, filter);
+            FlowContext context;
+            try {
+                context = this.flowEngine.executeOnce(tempFlow, "ls-" + snapshotMetaEntity.getSnapshotId()).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new BusinessException("ls 执行失败", e);
+            }
+            // 空目录没有输出
+            snapshotNodes = context.get(FieldRegistry.RESTIC_SNAPSHOT_NODES) == null ? List.of() :
+                    FieldRegistry.getValue(FieldRegistry.RESTIC_SNAPSHOT_NODES, context);
+        }
+        if (ObjectUtils.isEmpty(snapshotNodes)) {
+            return List.of();
         }
-        List<SnapshotNode> snapshotNodes = FieldRegistry.getValue(FieldRegistry.RESTIC_SNAPSHOT_NODES, context);
-        return FlowResponse.success(snapshotNodes.stream()
+        return snapshotNodes.stream()
                 .filter(n -> !n.getPath().equals(finalFilter)) // 去掉 filter 本身, 也就是当前文件夹
                 .map(n -> new SnapshotItemDTO(
                         n.getName(),
                         n.getType(),
                         n.getPath(),
-                        n.isDirectory() ? 0L : n.getSize().longValue(),
-                        n.getCtime().toInstant()))
+                        n.isDirectory() || ObjectUtils.isEmpty(n.getSize()) ? 0L : n.getSize().longValue(),
+                        ObjectUtils.isEmpty(n.getCtime()) ? null : n.getCtime().toInstant()))
+                .toList();
+    }
+
+    // 和 SnapshotIndex 的排序一致: 相同的 size 或 ctime 按 name 排序
+    private static Comparator<SnapshotItemDTO> itemComparator(SnapshotIndex.SortField sortField, boolean descending) {
+        Comparator<SnapshotItemDTO> comparator = switch (sortField) {
+            case NAME -> Comparator.comparing(SnapshotItemDTO::getName);
+            case SIZE -> Comparator.comparing(SnapshotItemDTO::getSize)
+                    .thenComparing(SnapshotItemDTO::getName);
+            case CTIME -> Comparator.comparing(SnapshotItemDTO::getCtime, Comparator.nullsFirst(Comparator.naturalOrder()))
+                    .thenComparing(SnapshotItemDTO::getName);
+        };
+        return descending ? comparator.reversed() : comparator;
+    }
+
+    private static SnapshotIndex.SortField parseSortField(String sortBy) {
+        try {
+            return SnapshotIndex.SortField.valueOf(sortBy.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ValidationException("sortBy 只支持 name, size, ctime, 当前是 %s".formatted(sortBy), e);
+        }
+    }
+
+    private static boolean parseDescending(String sortOrder) {
+        return switch (sortOrder.toLowerCase(Locale.ROOT)) {
+            case "asc" -> false;
+            case "desc" -> true;
+            default -> throw new ValidationException("sortOrder 只支持 asc, desc, 当前是 %s".formatted(sortOrder));
+        };
+    }
+
+    private static int parseOffsetCursor(String cursor) {
+        if (StringUtils.isBlank(cursor)) {
+            return 0;
+        }
+        try {
+            int offset = Integer.parseInt(cursor);
+            if (offset >= 0) {
+                return offset;
+            }
+        } catch (NumberFormatException e) {
+            // 下面统一抛出
+        }
+        throw new ValidationException("cursor %s 格式错误".formatted(cursor));
+    }
+
+    /**
+     * 文件或者目录的大小, 目录为目录下所有文件的大小之和. 只使用索引, 索引还没有生成时返回 null
+     */
+    @PostMapping("/get-snapshot-item-size")
+    public FlowResponse<Long> getSnapshotItemSize(
+            @RequestBody SnapshotMetaEntity snapshotMetaEntity,
+            @RequestParam("path") String path) {
+        SnapshotIndex snapshotIndex = this.getSnapshotIndex(snapshotMetaEntity);
+        if (ObjectUtils.isEmpty(snapshotIndex)) {
+            return FlowResponse.success(null);
+        }
+        SnapshotIndex.Entry entry = snapshotIndex.get(path);
+        if (ObjectUtils.isEmpty(entry)) {
+            throw new ValidationException("snapshot 中不存在 %s".formatted(path));
+        }
+        return FlowResponse.success(entry.totalSize());
+    }
+
+    /**
+     * 在一个 snapshot 内按文件名搜索. 只使用索引, 索引还没有生成时返回 null
+     */
+    @PostMapping("/search-snapshot-items")
+    public FlowResponse<List<SnapshotItemDTO>> searchSnapshotItems(
+            @RequestBody SnapshotMetaEntity snapshotMetaEntity,
+            @RequestParam("keyword") String keyword,
+            @RequestParam(value = "limit", defaultValue = "200") int limit) {
+        if (StringUtils.isBlank(keyword) || limit <= 0 || limit > 1000) {
+            throw new ValidationException("keyword 不能为空, limit 必须在 1 到 1000 之间");
+        }
+        SnapshotIndex snapshotIndex = this.getSnapshotIndex(snapshotMetaEntity);
+        if (ObjectUtils.isEmpty(snapshotIndex)) {
+            return FlowResponse.success(null);
+        }
+        return FlowResponse.success(snapshotIndex.search(keyword, limit).stream()
+                .map(ResticController::toSnapshotItem)
                 .toList());
     }
 
+    /**
+     * 在所有已经写入搜索库的 snapshot 中按文件名搜索, 返回匹配的 path 和它在各个 snapshot 中的版本
+     *
+     * @param repository 为空时搜索所有仓库
+     */
+    @GetMapping("/search")
+    public FlowResponse<List<PathSearchResultDTO>> search(
+            @RequestParam("q") String q,
+            @RequestParam(value = "repository", required = false) String repository,
+            @RequestParam(value = "limit", defaultValue = "100") int limit) {
+        if (StringUtils.isBlank(q) || limit <= 0 || limit > 1000) {
+            throw new ValidationException("q 不能为空, limit 必须在 1 到 1000 之间");
+        }
+        return FlowResponse.success(this.snapshotSearchService.search(q.strip(), repository, limit));
+    }
+
+    private SnapshotIndex getSnapshotIndex(SnapshotMetaEntity snapshotMetaEntity) {
+        SnapshotIndex snapshotIndex = this.snapshotIndexService.find(snapshotMetaEntity.getSnapshotId());
+        if (ObjectUtils.isEmpty(snapshotIndex)) {
+            this.snapshotIndexService.submitBuild(snapshotMetaEntity);
+        }
+        return snapshotIndex;
+    }
+
+    private static SnapshotItemDTO toSnapshotItem(SnapshotIndex.Entry entry) {
+        return new SnapshotItemDTO(
+                entry.name(),
+                entry.type(),
+                entry.path(),
+                entry.isDirectory() ? 0L : entry.size(),
+                entry.ctime());
+    }
+
     private FlowDefinition buildLsFlow(SnapshotMetaEntity snapshotMetaEntity, String filter) {
         return new FlowDefinition("restic-ls-temp", List.of(
                 new FlowNode(
@@ -103,6 +368,23 @@ public class ResticController {
         ));
     }
 
+    private FlowDefinition buildDiffFlow(String backupRepository, String fromSnapshotId, String toSnapshotId) {
+        return new FlowDefinition("restic-diff-temp", List.of(
+                new FlowNode(
+                        "1",
+                        "snapshot_diff",
+                        Map.of(
+                                FieldRegistry.RESTIC_DIFF_FROM_SNAPSHOT_ID, new ParamValue(fromSnapshotId),
+                                FieldRegistry.RESTIC_DIFF_TO_SNAPSHOT_ID, new ParamValue(toSnapshotId),
+                                FieldRegistry.RESTIC_PASSWORD,
+                                new ParamValue(systemSettings.getRestic().getBackupPassword()),
+                                FieldRegistry.RESTIC_BACKUP_REPOSITORY, new ParamValue(backupRepository)
+                        ),
+                        List.of()
+                )
+        ));
+    }
+
     @PostMapping("/submit-download-job")
     public FlowResponse<String> submitDownloadJob(@RequestBody RestoreRequest restoreRequest) {
         if (ObjectUtils.anyNull(
@@ -137,7 +419,8 @@ public class ResticController {
                         List.of()
                 )
         ));
-        Future<FlowContext> task = this.flowEngine.executeOnce(restoreFlow);
+        Future<FlowContext> task =
+                this.flowEngine.executeOnce(restoreFlow, "restore-" + snapshotMetaEntity.getSnapshotId());
         this.downloadJobResultMap.put(uuid, task);
         // 返回 uuid
         return FlowResponse.success(uuid);
@@ -1,5 +1,6 @@
 package com.flowstack.server.core.annotaion;
 
+import com.flowstack.server.core.enums.BackoffStrategy;
 import org.springframework.stereotype.Component;
 
 import java.lang.annotation.ElementType;
@@ -20,4 +21,21 @@ public @interface Node {
     String[] inputParams() default {""};
 
     String[] outputParams() default {""};
+
+    // 标识 node 占用资源的输入参数. 值为本地路径时占用路径所在磁盘, 否则占用 "参数名:值" 资源
+    String[] resourceParams() default {};
+
+    // 单次执行超时时间, 外部命令超时后会被结束
+    long timeoutSeconds() default 3600;
+
+    // 最大执行次数, 包含第一次执行
+    int maxAttempts() default 1;
+
+    BackoffStrategy backoff() default BackoffStrategy.FIXED;
+
+    // 第一次重试前等待的时间
+    long backoffSeconds() default 30;
+
+    // 失败时 exit code 在列表中才会重试
+    int[] retryableExitCodes() default {};
 }
@@ -3,19 +3,64 @@ package com.flowstack.server.core.channel;
 import com.flowstack.server.core.enums.ExecStatus;
 import com.flowstack.server.core.model.definition.FlowNode;
 import com.flowstack.server.core.model.execution.FlowContext;
+import com.flowstack.server.core.model.execution.ContextLayer;
+import com.flowstack.server.util.JsonUtil;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * flow 和 node 执行消息的通道. 发送不会阻塞 engine:
+ * 内存队列未满时放入内存, 满了之后写入内存映射的 spool 文件, 消费者处理完内存中的消息后按顺序回放 spool.
+ * spool 中还有消息时, 新消息也写入 spool, 保证消息顺序. 写入 spool 失败时发送方等待 spool 回放完后再放入内存,
+ * 不会越过 spool 中更早的消息
+ */
 @Service
 @Slf4j
 public class ChannelService {
+    private final ArrayDeque<Message> memoryQueue;
 
-    private final BlockingQueue<Message> queue = new ArrayBlockingQueue<>(100);
+    private final int capacity;
+
+    private final MessageSpool spool; // 打开失败时为 null, 只使用内存队列
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = this.lock.newCondition();
+
+    private final Condition spoolDrained = this.lock.newCondition();
+
+    private long spilledTotal = 0;
+
+    private int maxSpoolDepth = 0;
+
+    private boolean closed = false;
+
+    public ChannelService(
+            @Value("${flowstack.server.system.channelCapacity:1024}") int capacity,
+            @Value("${flowstack.server.system.channelSpoolPath:spool/channel.spool}") String spoolPath) {
+        this.capacity = capacity;
+        this.memoryQueue = new ArrayDeque<>(capacity);
+        MessageSpool messageSpool = null;
+        try {
+            messageSpool = new MessageSpool(Path.of(spoolPath), 16 * 1024 * 1024);
+        } catch (IOException e) {
+            log.error("打开 spool 文件 {} 失败, 只使用内存队列", spoolPath, e);
+        }
+        this.spool = messageSpool;
+    }
 
     public void sendFlowMessage(FlowContext flowContext, ExecStatus execStatus) {
         this.send(new Message(
@@ -25,8 +70,9 @@ public class ChannelService {
                 null,
                 null,
                 execStatus,
-                flowContext.getAllData(),
-                ""
+                flowContext.snapshot(),
+                "",
+                Instant.now()
         ));
     }
 
@@ -38,8 +84,9 @@ public class ChannelService {
                 null,
                 null,
                 execStatus,
-                flowContext.getAllData(),
-                e.toString()
+                flowContext.snapshot(),
+                e.toString(),
+                Instant.now()
         ));
     }
 
@@ -55,8 +102,9 @@ public class ChannelService {
                 nodeExecutionUuidV4,
                 node,
                 execStatus,
-                flowContext.getAllData(),
-                ""
+                flowContext.snapshot(),
+                "",
+                Instant.now()
         ));
     }
 
@@ -73,25 +121,203 @@ public class ChannelService {
                 nodeExecutionUuidV4,
                 node,
                 execStatus,
-                flowContext.getAllData(),
-                e.toString()
+                flowContext.snapshot(),
+                e.toString(),
+                Instant.now()
         ));
     }
 
     private void send(Message msg) {
-        // 重试三次, 每次等待 5 秒放入
-        for (int i = 0; i < 3; i++) {
-            try {
-                if (this.queue.offer(msg, 5L, TimeUnit.SECONDS)) {
-                    return;
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                log.warn("通道已经关闭, 消息丢弃. msg type: {}, status: {}", msg.type(), msg.execStatus());
+                return;
+            }
+            if (this.spool != null && (!this.spool.isEmpty() || this.memoryQueue.size() >= this.capacity)) {
+                this.spill(msg);
+            } else {
+                this.memoryQueue.addLast(msg);
             }
+            this.notEmpty.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // 调用方持有锁
+    private void spill(Message msg) {
+        try {
+            this.spool.append(JsonUtil.serializeToBytes(SpooledMessage.from(msg)));
+            this.spilledTotal++;
+            this.maxSpoolDepth = Math.max(this.maxSpoolDepth, this.spool.size());
+            return;
+        } catch (Exception e) {
+            log.error("消息写入 spool 失败, 等待 spool 回放完后放入内存队列. msg type: {}, status: {}",
+                    msg.type(), msg.execStatus(), e);
+        }
+        // spool 中的消息早于这条消息, 直接放入内存会先被处理(比如 node 结束早于 node 开始).
+        // 等待期间释放锁, 消费者继续回放 spool. 中断也要等待, 否则 flow 取消时的 FAILED 消息会丢失
+        while (!this.spool.isEmpty() && !this.closed) {
+            this.spoolDrained.awaitUninterruptibly();
+        }
+        if (this.closed) {
+            log.warn("通道已经关闭, 消息丢弃. msg type: {}, status: {}", msg.type(), msg.execStatus());
+            return;
+        }
+        this.memoryQueue.addLast(msg);
+    }
+
+    /**
+     * 已经取出但是没有处理的消息放回队首, 比如消费者停止时. 不受内存队列容量限制
+     */
+    public void requeue(Message msg) {
+        this.lock.lock();
+        try {
+            this.memoryQueue.addFirst(msg);
+            this.notEmpty.signal();
+        } finally {
+            this.lock.unlock();
         }
     }
 
     public Message take() throws InterruptedException {
-        return queue.take();
+        this.lock.lockInterruptibly();
+        try {
+            while (true) {
+                if (!this.memoryQueue.isEmpty()) {
+                    return this.memoryQueue.pollFirst();
+                }
+                if (this.spool != null && !this.spool.isEmpty()) {
+                    byte[] record = this.spool.poll();
+                    if (this.spool.isEmpty()) {
+                        this.spoolDrained.signalAll();
+                    }
+                    try {
+                        return JsonUtil.deserFromBytes(record, SpooledMessage.class).toMessage();
+                    } catch (Exception e) {
+                        log.error("spool 中的消息无法反序列化, 跳过", e);
+                        continue;
+                    }
+                }
+                this.notEmpty.await();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public Stats getStats() {
+        this.lock.lock();
+        try {
+            return new Stats(
+                    this.capacity,
+                    this.memoryQueue.size(),
+                    this.spool == null ? 0 : this.spool.size(),
+                    this.spool == null ? 0 : this.spool.bytes(),
+                    this.maxSpoolDepth,
+                    this.spilledTotal
+            );
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭前把内存队列中还没有处理的消息写入 spool, 下次启动后回放, 不丢弃消息
+     */
+    @PreDestroy
+    public void close() {
+        if (this.spool == null) {
+            return;
+        }
+        this.lock.lock();
+        try {
+            this.spillMemoryQueue();
+            this.spool.close();
+        } catch (IOException e) {
+            log.warn("关闭 spool 文件失败", e);
+        } finally {
+            this.closed = true;
+            this.spoolDrained.signalAll();
+            this.lock.unlock();
+        }
+    }
+
+    // 调用方持有锁. 内存中的消息早于 spool 中的消息, 先取出 spool 中的记录, 再按 内存 -> spool 的顺序重新写入
+    private void spillMemoryQueue() throws IOException {
+        if (this.memoryQueue.isEmpty()) {
+            return;
+        }
+        List<byte[]> spooled = new ArrayList<>(this.spool.size());
+        while (!this.spool.isEmpty()) {
+            spooled.add(this.spool.poll());
+        }
+        int spilled = 0;
+        for (Message msg : this.memoryQueue) {
+            try {
+                this.spool.append(JsonUtil.serializeToBytes(SpooledMessage.from(msg)));
+                spilled++;
+            } catch (Exception e) {
+                log.error("关闭时消息写入 spool 失败, 丢弃. msg type: {}, status: {}", msg.type(), msg.execStatus(), e);
+            }
+        }
+        this.memoryQueue.clear();
+        for (byte[] record : spooled) {
+            this.spool.append(record);
+        }
+        log.info("关闭前 {} 条内存中的消息写入 spool, 下次启动后处理", spilled);
+    }
+
+    public record Stats(
+            int capacity,
+            int memoryDepth,
+            int spoolDepth,
+            long spoolBytes,
+            int maxSpoolDepth,
+            long spilledTotal) {
+    }
+
+    /**
+     * 写入 spool 的消息. context 合并为一层保存
+     */
+    private record SpooledMessage(
+            String type,
+            Long registerId,
+            UUID flowExecutionUuidV4,
+            UUID nodeExecutionUuidV4,
+            FlowNode node,
+            ExecStatus execStatus,
+            Map<String, Object> data,
+            String errorMessage,
+            Instant timestamp) {
+
+        static SpooledMessage from(Message msg) {
+            return new SpooledMessage(
+                    msg.type(),
+                    msg.registerId(),
+                    msg.flowExecutionUuidV4(),
+                    msg.nodeExecutionUuidV4(),
+                    msg.node(),
+                    msg.execStatus(),
+                    msg.context().flatten(),
+                    msg.errorMessage(),
+                    msg.timestamp()
+            );
+        }
+
+        Message toMessage() {
+            return new Message(
+                    type,
+                    registerId,
+                    flowExecutionUuidV4,
+                    nodeExecutionUuidV4,
+                    node,
+                    execStatus,
+                    ContextLayer.empty().with(data),
+                    errorMessage,
+                    timestamp
+            );
+        }
     }
 }
@@ -2,12 +2,15 @@ package com.flowstack.server.core.channel;
 
 import com.flowstack.server.core.enums.ExecStatus;
 import com.flowstack.server.core.model.definition.FlowNode;
+import com.flowstack.server.core.model.execution.ContextLayer;
 
-import java.util.Map;
+import java.time.Instant;
 import java.util.UUID;
 
 /**
- * @param type FLOW 表示 flow 执行信息, NODE 表示 node 执行信息
+ * @param type    FLOW 表示 flow 执行信息, NODE 表示 node 执行信息
+ * @param context 发送时 context 的不可变快照, 只引用已有的层, 不复制数据
+ * @param timestamp 事件发生的时间, 持久化时作为开始/结束时间
  */
 
 public record Message(
@@ -17,6 +20,7 @@ public record Message(
         UUID nodeExecutionUuidV4,
         FlowNode node,
         ExecStatus execStatus,
-        Map<String, Object> data,
-        String errorMessage) {
+        ContextLayer context,
+        String errorMessage,
+        Instant timestamp) {
 }
@@ -0,0 +1,192 @@
+package com.flowstack.server.core.channel;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 只追加的内存映射 spool 文件, 按写入顺序读取.
+ * 文件格式: 头部 [readPos(long), writePos(long)], 之后每条记录为 [length(int), bytes].
+ * 头部随每次读写更新, 进程重启后从上次的 readPos 继续读取. 全部读完后从头复用文件.
+ * 持续有消息写入时 spool 不会读空, 追加前空间不够时先把未读的记录移到文件开头, 已读的空间至少和未读的一样多时才移动,
+ * 文件大小和未读的数据量成正比
+ */
+@Slf4j
+final class MessageSpool implements Closeable {
+    private static final int HEADER_SIZE = 16;
+
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    private static final int COPY_CHUNK_SIZE = 64 * 1024;
+
+    private final Path path;
+
+    private final FileChannel fileChannel;
+
+    private MappedByteBuffer buffer;
+
+    private int readPos;
+
+    private int writePos;
+
+    private int count;
+
+    MessageSpool(Path path, int initialSize) throws IOException {
+        this.path = path;
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.fileChannel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+        long fileSize = this.fileChannel.size();
+        this.buffer = this.map((int) Math.max(initialSize, Math.min(fileSize, Integer.MAX_VALUE)));
+        this.recover(fileSize);
+    }
+
+    void append(byte[] record) throws IOException {
+        long end = (long) this.writePos + RECORD_HEADER_SIZE + record.length;
+        if (end > this.buffer.capacity() && this.compact()) {
+            end = (long) this.writePos + RECORD_HEADER_SIZE + record.length;
+        }
+        this.ensureCapacity(end);
+        this.buffer.putInt(this.writePos, record.length);
+        this.buffer.put(this.writePos + RECORD_HEADER_SIZE, record);
+        this.writePos = (int) end;
+        this.count++;
+        this.writeHeader();
+    }
+
+    /**
+     * 读取最早的一条记录, 没有记录时返回 null
+     */
+    byte[] poll() {
+        if (this.count == 0) {
+            return null;
+        }
+        int length = this.buffer.getInt(this.readPos);
+        byte[] result = new byte[length];
+        this.buffer.get(this.readPos + RECORD_HEADER_SIZE, result);
+        this.readPos += RECORD_HEADER_SIZE + length;
+        this.count--;
+        if (this.count == 0) {
+            // 全部读完, 从头复用文件
+            this.readPos = HEADER_SIZE;
+            this.writePos = HEADER_SIZE;
+        }
+        this.writeHeader();
+        return result;
+    }
+
+    boolean isEmpty() {
+        return this.count == 0;
+    }
+
+    int size() {
+        return this.count;
+    }
+
+    long bytes() {
+        return this.writePos - this.readPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.buffer.force();
+        this.fileChannel.close();
+    }
+
+    private void recover(long fileSize) {
+        this.readPos = HEADER_SIZE;
+        this.writePos = HEADER_SIZE;
+        this.count = 0;
+        if (fileSize < HEADER_SIZE) {
+            this.writeHeader();
+            return;
+        }
+        long savedRead = this.buffer.getLong(0);
+        long savedWrite = this.buffer.getLong(8);
+        if (savedRead < HEADER_SIZE || savedRead > savedWrite || savedWrite > this.buffer.capacity()) {
+            log.warn("spool 文件 {} 头部损坏, 丢弃已有内容", this.path);
+            this.writeHeader();
+            return;
+        }
+        // 统计未读取的记录, 遇到不完整的记录(写入时进程退出)则截断
+        int pos = (int) savedRead;
+        int records = 0;
+        while (pos + RECORD_HEADER_SIZE <= savedWrite) {
+            int length = this.buffer.getInt(pos);
+            if (length < 0 || pos + RECORD_HEADER_SIZE + (long) length > savedWrite) {
+                break;
+            }
+            pos += RECORD_HEADER_SIZE + length;
+            records++;
+        }
+        this.readPos = (int) savedRead;
+        this.writePos = pos;
+        this.count = records;
+        if (records == 0) {
+            this.readPos = HEADER_SIZE;
+            this.writePos = HEADER_SIZE;
+        } else {
+            log.info("spool 文件 {} 中有 {} 条未处理的消息", this.path, records);
+        }
+        this.writeHeader();
+    }
+
+    /**
+     * 未读的记录移到头部之后. 只在已读的空间不小于未读的数据时移动, 复制的目标区域和源区域不重叠,
+     * 头部更新之前进程退出时, 旧的头部和记录仍然完整
+     */
+    private boolean compact() {
+        int unread = this.writePos - this.readPos;
+        if (this.count == 0 || this.readPos - HEADER_SIZE < unread) {
+            return false;
+        }
+        byte[] chunk = new byte[Math.min(unread, COPY_CHUNK_SIZE)];
+        for (int copied = 0; copied < unread; copied += chunk.length) {
+            int length = Math.min(chunk.length, unread - copied);
+            this.buffer.get(this.readPos + copied, chunk, 0, length);
+            this.buffer.put(HEADER_SIZE + copied, chunk, 0, length);
+        }
+        this.buffer.force();
+        this.readPos = HEADER_SIZE;
+        this.writePos = HEADER_SIZE + unread;
+        this.writeHeader();
+        return true;
+    }
+
+    private void ensureCapacity(long required) throws IOException {
+        if (required <= this.buffer.capacity()) {
+            return;
+        }
+        if (required > Integer.MAX_VALUE) {
+            throw new IOException("spool 文件 %s 超过 2G".formatted(this.path));
+        }
+        long newSize = this.buffer.capacity();
+        while (newSize < required) {
+            newSize = newSize * 2;
+        }
+        this.buffer.force();
+        this.buffer = this.map((int) Math.min(newSize, Integer.MAX_VALUE));
+    }
+
+    private MappedByteBuffer map(int size) throws IOException {
+        return this.fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void writeHeader() {
+        this.buffer.putLong(0, this.readPos);
+        this.buffer.putLong(8, this.writePos);
+    }
+}
@@ -0,0 +1,161 @@
+package com.flowstack.server.core.channel;
+
+import com.flowstack.server.core.model.definition.FlowNode;
+import com.flowstack.server.core.model.execution.ProgressUpdate;
+import com.flowstack.server.util.LruCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * node 执行进度推送. 按 flow execution 订阅 SSE, 进度只在内存中转发, 不写数据库.
+ * 每个 node execution 的进度按 progressIntervalMillis 限流, 没有订阅者时不做任何处理.
+ * 只能订阅运行中的 flow execution, 已经结束或者不存在的 execution 立即返回结束事件并关闭连接
+ */
+@Component
+@Slf4j
+public class ProgressPublisher {
+    private static final int FINISHED_CAPACITY = 1000;
+
+    // 运行中的 flow execution 和它的订阅者. key 存在表示 flow 正在运行
+    private final Map<UUID, List<SseEmitter>> subscribers = new ConcurrentHashMap<>();
+
+    // 最近结束的 flow execution 的状态, 用于结束后才到达的订阅
+    private final LruCache<UUID, String> finished = new LruCache<>(FINISHED_CAPACITY);
+
+    private final long progressIntervalMillis;
+
+    private final long sseTimeoutMillis;
+
+    public ProgressPublisher(
+            @Value("${flowstack.server.system.progressIntervalMillis:1000}") long progressIntervalMillis,
+            @Value("${flowstack.server.system.progressSseTimeoutMillis:3600000}") long sseTimeoutMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+        this.sseTimeoutMillis = sseTimeoutMillis;
+    }
+
+    /**
+     * flow 开始执行, 之后才能订阅
+     */
+    public void start(UUID flowExecutionUuidV4) {
+        this.subscribers.putIfAbsent(flowExecutionUuidV4, new CopyOnWriteArrayList<>());
+    }
+
+    public SseEmitter subscribe(UUID flowExecutionUuidV4) {
+        SseEmitter emitter = new SseEmitter(this.sseTimeoutMillis);
+        // 和 complete 对同一个 key 互斥, 不会在 flow 结束后加入订阅
+        List<SseEmitter> emitters = this.subscribers.computeIfPresent(flowExecutionUuidV4, (k, list) -> {
+            list.add(emitter);
+            return list;
+        });
+        if (emitters == null) {
+            String execStatus = this.finished.get(flowExecutionUuidV4);
+            try {
+                if (execStatus != null) {
+                    emitter.send(SseEmitter.event().name("complete").data(Map.of("execStatus", execStatus)));
+                } else {
+                    emitter.send(SseEmitter.event().name("not-running")
+                            .data(Map.of("flowExecutionUuidV4", flowExecutionUuidV4)));
+                }
+                emitter.complete();
+            } catch (IOException | IllegalStateException e) {
+                emitter.completeWithError(e);
+            }
+            return emitter;
+        }
+        Runnable remove = () -> this.unsubscribe(flowExecutionUuidV4, emitter);
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(e -> remove.run());
+        return emitter;
+    }
+
+    /**
+     * 生成一个 node execution 的进度上报方法, 超过频率的进度直接丢弃
+     */
+    public Consumer<ProgressUpdate> reporter(UUID flowExecutionUuidV4, UUID nodeExecutionUuidV4, FlowNode node) {
+        AtomicLong lastPublished = new AtomicLong(0);
+        return update -> {
+            List<SseEmitter> emitters = this.subscribers.get(flowExecutionUuidV4);
+            if (emitters == null || emitters.isEmpty()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long last = lastPublished.get();
+            if (now - last < this.progressIntervalMillis || !lastPublished.compareAndSet(last, now)) {
+                return;
+            }
+            this.send(flowExecutionUuidV4, "progress", new ProgressEvent(
+                    flowExecutionUuidV4,
+                    nodeExecutionUuidV4,
+                    node.getNodeId(),
+                    node.getName(),
+                    update,
+                    Instant.now()
+            ));
+        };
+    }
+
+    /**
+     * flow 执行结束, 通知订阅者并关闭连接
+     */
+    public void complete(UUID flowExecutionUuidV4, String execStatus) {
+        this.finished.put(flowExecutionUuidV4, execStatus);
+        List<SseEmitter> emitters = this.subscribers.remove(flowExecutionUuidV4);
+        if (emitters == null) {
+            return;
+        }
+        for (SseEmitter emitter : emitters) {
+            try {
+                emitter.send(SseEmitter.event().name("complete").data(Map.of("execStatus", execStatus)));
+                emitter.complete();
+            } catch (IOException | IllegalStateException e) {
+                emitter.completeWithError(e);
+            }
+        }
+    }
+
+    private void send(UUID flowExecutionUuidV4, String eventName, Object data) {
+        List<SseEmitter> emitters = this.subscribers.get(flowExecutionUuidV4);
+        if (emitters == null) {
+            return;
+        }
+        for (SseEmitter emitter : emitters) {
+            try {
+                emitter.send(SseEmitter.event().name(eventName).data(data));
+            } catch (IOException | IllegalStateException e) {
+                // 客户端断开
+                log.debug("进度推送失败, 移除订阅. flow execution: {}", flowExecutionUuidV4, e);
+                this.unsubscribe(flowExecutionUuidV4, emitter);
+            }
+        }
+    }
+
+    private void unsubscribe(UUID flowExecutionUuidV4, SseEmitter emitter) {
+        // flow 仍在运行, 只移除订阅者
+        List<SseEmitter> emitters = this.subscribers.get(flowExecutionUuidV4);
+        if (emitters != null) {
+            emitters.remove(emitter);
+        }
+    }
+
+    public record ProgressEvent(
+            UUID flowExecutionUuidV4,
+            UUID nodeExecutionUuidV4,
+            String nodeId,
+            String nodeName,
+            ProgressUpdate progress,
+            Instant timestamp) {
+    }
+}
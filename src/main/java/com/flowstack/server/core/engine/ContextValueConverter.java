@@ -0,0 +1,17 @@
+package com.flowstack.server.core.engine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 值进入 context 时转换为字段声明的类型. 只在进入时转换一次, 读取时直接类型转换
+ */
+public interface ContextValueConverter {
+    Object convert(String key, Object value);
+
+    default Map<String, Object> convertAll(Map<String, Object> values) {
+        Map<String, Object> result = new HashMap<>(values.size());
+        values.forEach((k, v) -> result.put(k, this.convert(k, v)));
+        return result;
+    }
+}
@@ -0,0 +1,38 @@
+package com.flowstack.server.core.engine;
+
+import com.flowstack.server.core.model.execution.ExecutionPlan;
+import com.flowstack.server.model.db.FlowDefinitionEntity;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 缓存 flow definition 编译后的执行计划, key 是 flowDefinitionId.
+ * version 变化时重新编译, definition 删除或停用时失效.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class ExecutionPlanCache {
+    private final FlowValidator flowValidator;
+
+    private final Map<Long, ExecutionPlan> planMap = new ConcurrentHashMap<>();
+
+    public ExecutionPlan get(FlowDefinitionEntity entity) {
+        return this.planMap.compute(entity.getFlowDefinitionId(), (k, v) -> {
+            if (v != null && Objects.equals(v.getVersion(), entity.getVersion())) {
+                return v;
+            }
+            log.debug("编译 flow {} 执行计划, version {}", entity.getName(), entity.getVersion());
+            return this.flowValidator.compile(entity.getDefinition(), entity.getVersion());
+        });
+    }
+
+    public void invalidate(Long flowDefinitionId) {
+        this.planMap.remove(flowDefinitionId);
+    }
+}
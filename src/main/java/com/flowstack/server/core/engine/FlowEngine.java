@@ -1,24 +1,36 @@
 package com.flowstack.server.core.engine;
 
 import com.flowstack.server.core.channel.ChannelService;
+import com.flowstack.server.core.channel.ProgressPublisher;
 import com.flowstack.server.core.enums.ExecStatus;
-import com.flowstack.server.core.enums.ParamSourceType;
+import com.flowstack.server.core.enums.RunPriority;
 import com.flowstack.server.core.model.base.BaseNode;
 import com.flowstack.server.core.model.definition.FlowDefinition;
 import com.flowstack.server.core.model.definition.FlowNode;
-import com.flowstack.server.core.model.definition.ParamValue;
+import com.flowstack.server.core.model.definition.NodePolicy;
+import com.flowstack.server.core.model.execution.Checkpoint;
+import com.flowstack.server.core.model.execution.ExecutionPlan;
 import com.flowstack.server.core.model.execution.FlowContext;
 import com.flowstack.server.core.model.execution.NodeResult;
+import com.flowstack.server.core.model.execution.ProgressUpdate;
+import com.flowstack.server.exception.ValidationException;
+import com.flowstack.server.model.db.FlowDefinitionEntity;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.stereotype.Component;
 
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedSet;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 @Component
 @Slf4j
@@ -29,93 +41,320 @@ public class FlowEngine {
 
     private final ChannelService mq;
 
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ProgressPublisher progressPublisher;
+
+    private final ExecutionPlanCache executionPlanCache;
+
+    private final FlowRunQueue flowRunQueue;
+
+    private final ResourceSlots resourceSlots;
+
+    private final ContextValueConverter contextValueConverter;
+
+    private final AsyncTaskExecutor nodeTaskExecutor;
 
     public Future<?> execute(Long registerId, FlowDefinition flowDefinition) {
-        // 拓扑排序
-        List<FlowNode> sortedNodes = this.flowValidator.topologicalSort(flowDefinition);
+        return this.execute(registerId, this.flowValidator.compile(flowDefinition, null));
+    }
+
+    public Future<?> execute(FlowDefinitionEntity entity) {
+        // 使用缓存的执行计划
+        return this.execute(entity.getFlowDefinitionId(), this.executionPlanCache.get(entity));
+    }
+
+    private Future<?> execute(Long registerId, ExecutionPlan plan) {
         // 初始参数放入 context
-        FlowContext flowContext = this.createFlowContextFromNodes(registerId, flowDefinition);
-        // 开始执行
-        return executor.submit(() -> this.executeFlow(sortedNodes, flowContext));
+        FlowContext flowContext = this.createFlowContext(registerId, plan);
+        // 进入运行队列, 等待执行
+        return this.flowRunQueue.submit(RunPriority.SCHEDULED, "flow-" + registerId, () -> {
+            this.executeFlow(plan, flowContext, new boolean[plan.size()]);
+            return null;
+        });
     }
 
-    public Future<FlowContext> executeOnce(FlowDefinition flowDefinition) {
-        List<FlowNode> flowNodes = this.flowValidator.topologicalSort(flowDefinition);
-        FlowContext flowContext = this.createFlowContextFromNodes(-1L, flowDefinition); // -1 代表执行一次
-        return executor.submit(() -> {
-            for (FlowNode flowNode : flowNodes) {
-                // 获取 node 对应的实现
-                BaseNode node = this.flowValidator.getNodeByName(flowNode.getName());
-                // Node 执行开始
-                NodeResult nodeResult = node.execute(flowContext);
-                // Node 执行结束
-                if (nodeResult.getExecStatus().equals(ExecStatus.FAILED)) {
-                    throw new Exception("node execute failed, error is %s".formatted(nodeResult.getError()));
-                }
-                // 将 node 的输出放入 context
-                flowContext.putAll(nodeResult);
+    /**
+     * 从检查点恢复执行: 已经成功的 node 不再执行, 它们的输出直接放入 context, 从第一个失败的 node 继续
+     */
+    public Future<?> resume(FlowDefinitionEntity entity, Checkpoint checkpoint) {
+        ExecutionPlan plan = this.executionPlanCache.get(entity);
+        FlowContext flowContext = new FlowContext(
+                entity.getFlowDefinitionId(),
+                plan.getFlowName(),
+                checkpoint.flowExecutionUuidV4()
+        );
+        flowContext.putAll(plan.getInitialParams());
+        // 检查点从 DB 的 json 恢复, 需要转换为字段声明的类型.
+        // 旧版本写入的值可能无法转换, 丢弃这个值继续恢复, 读取它的 node 会因为缺少值失败
+        Map<String, Object> data = new HashMap<>(checkpoint.data().size());
+        checkpoint.data().forEach((key, value) -> {
+            try {
+                data.put(key, this.contextValueConverter.convert(key, value));
+            } catch (ValidationException e) {
+                log.warn("flow {} 恢复执行时丢弃检查点中无法转换的值 {}", checkpoint.flowExecutionUuidV4(), key, e);
             }
+        });
+        flowContext.putAll(data);
+        boolean[] completed = new boolean[plan.size()];
+        for (int i = 0; i < plan.size(); i++) {
+            completed[i] = checkpoint.completedNodeIds().contains(plan.getNodes().get(i).getNodeId());
+        }
+        return this.flowRunQueue.submit(RunPriority.SCHEDULED, "flow-" + entity.getFlowDefinitionId(), () -> {
+            this.executeFlow(plan, flowContext, completed);
+            return null;
+        });
+    }
+
+    public Future<FlowContext> executeOnce(FlowDefinition flowDefinition) {
+        // 没有指定 key 时每次请求单独轮转
+        return this.executeOnce(flowDefinition, flowDefinition.getName() + "-" + UUID.randomUUID());
+    }
+
+    /**
+     * @param flowKey 运行队列中的轮转 key, 比如按 snapshot 区分, 同一个 key 的大量请求不会挡住其他 key
+     */
+    public Future<FlowContext> executeOnce(FlowDefinition flowDefinition, String flowKey) {
+        ExecutionPlan plan = this.flowValidator.compile(flowDefinition, null);
+        FlowContext flowContext = this.createFlowContext(-1L, plan); // -1 代表执行一次
+        // 页面触发的一次性 flow 优先于定时 flow
+        return this.flowRunQueue.submit(RunPriority.INTERACTIVE, flowKey, () -> {
+            this.executeDag(plan, flowContext, new boolean[plan.size()], false);
             return flowContext;
         });
     }
 
-    private void executeFlow(List<FlowNode> sortedNodes, FlowContext flowContext) {
+    private void executeFlow(ExecutionPlan plan, FlowContext flowContext, boolean[] completed) {
         // Flow 执行开始
+        this.progressPublisher.start(flowContext.getFlowExecutionUuidV4());
         this.mq.sendFlowMessage(flowContext, ExecStatus.RUNNING);
-        UUID nodeExecutionUuidV4 = UUID.randomUUID();
-        for (FlowNode sortedNode : sortedNodes) {
-            try {
-                // Node 开始执行
-                this.mq.sendNodeMessage(
-                        flowContext,
-                        nodeExecutionUuidV4,
-                        sortedNode,
-                        ExecStatus.RUNNING
-                );
-                // 获取 node 对应的实现
-                BaseNode node = this.flowValidator.getNodeByName(sortedNode.getName());
-                // Node 执行开始
-                NodeResult nodeResult = node.execute(flowContext);
-                // Node 执行结束
-                if (nodeResult.getExecStatus().equals(ExecStatus.FAILED)) {
-                    throw new Exception("node execute failed, error is %s".formatted(nodeResult.getError()));
+        try {
+            this.executeDag(plan, flowContext, completed, true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.mq.sendFlowMessage(flowContext, ExecStatus.FAILED, e);
+            this.progressPublisher.complete(flowContext.getFlowExecutionUuidV4(), ExecStatus.FAILED.name());
+            return;
+        } catch (Exception e) {
+            this.mq.sendFlowMessage(flowContext, ExecStatus.FAILED, e);
+            this.progressPublisher.complete(flowContext.getFlowExecutionUuidV4(), ExecStatus.FAILED.name());
+            return;
+        }
+        this.mq.sendFlowMessage(flowContext, ExecStatus.SUCCESS);
+        this.progressPublisher.complete(flowContext.getFlowExecutionUuidV4(), ExecStatus.SUCCESS.name());
+    }
+
+    /**
+     * 按依赖关系执行 DAG: 一个 node 的所有前置 node 执行完成后, 获取资源槽位并提交到 node 线程池,
+     * 互不依赖的分支并行执行. 等待资源槽位和重试前的等待都不占用线程池的线程, 不使用资源的 node 不会排在它们后面.
+     * 某个 node 失败后不再提交新的 node 和重试, 等待已经在运行的 node 结束后抛出第一个异常.
+     * 当前线程被中断(flow 被取消)时, FlowScope 关闭并取消所有运行中和等待中的 node.
+     * completed 中标记的 node 视为已经执行成功(从检查点恢复), 不再执行.
+     */
+    private void executeDag(ExecutionPlan plan, FlowContext flowContext, boolean[] completed, boolean sendMsg)
+            throws Exception {
+        int[] indegree = plan.indegrees();
+        int[][] successors = plan.getSuccessors();
+        for (int i = 0; i < completed.length; i++) {
+            if (completed[i]) {
+                for (int next : successors[i]) {
+                    indegree[next]--;
                 }
-                // 将 node 的输出放入 context
-                flowContext.putAll(nodeResult);
-                this.mq.sendNodeMessage(
-                        flowContext,
-                        nodeExecutionUuidV4,
-                        sortedNode,
-                        ExecStatus.SUCCESS
-                );
-                // 刷新 nodeExecutionUuidV4
-                nodeExecutionUuidV4 = UUID.randomUUID();
-            } catch (Exception e) {
-                this.mq.sendNodeMessage(
-                        flowContext,
-                        nodeExecutionUuidV4,
-                        sortedNode,
-                        ExecStatus.FAILED,
-                        e
-                );
-                this.mq.sendFlowMessage(flowContext, ExecStatus.FAILED, e);
-                return;
             }
         }
-        this.mq.sendFlowMessage(flowContext, ExecStatus.SUCCESS);
+        Exception failure = null;
+        List<NodeRun> started = new ArrayList<>();
+        try (FlowScope<NodeRun> scope = new FlowScope<>(this.nodeTaskExecutor)) {
+            // 提交入度为 0 且没有完成的节点
+            for (int i = 0; i < completed.length; i++) {
+                if (!completed[i] && indegree[i] == 0) {
+                    started.add(this.forkNode(scope, plan, i, flowContext, sendMsg));
+                }
+            }
+            while (scope.hasRunning()) {
+                Future<NodeRun> future = scope.take();
+                NodeRun run;
+                try {
+                    run = future.get();
+                } catch (ExecutionException e) {
+                    // 记录第一个失败, 不再提交新的 node
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception cause ? cause : e;
+                    }
+                    continue;
+                }
+                if (!run.isSucceeded()) {
+                    // 本次执行失败但是可以重试
+                    if (failure != null) {
+                        this.nodeFailed(run, new Exception("其他 node 已经失败, 不再重试. 最后一次执行的错误: %s"
+                                .formatted(run.result.getError())));
+                        continue;
+                    }
+                    long backoffMillis = run.policy.backoffMillis(run.attempt);
+                    log.warn("node {} 第 {} 次执行失败, exit code {}, {} ms 后重试",
+                            run.flowNode.getName(), run.attempt, run.result.getExitCode(), backoffMillis);
+                    this.forkAttempt(scope, run, backoffMillis);
+                    continue;
+                }
+                if (failure != null) {
+                    continue;
+                }
+                // 后继节点入度减一, 为 0 则提交执行
+                for (int next : successors[run.index]) {
+                    if (--indegree[next] == 0) {
+                        started.add(this.forkNode(scope, plan, next, flowContext, sendMsg));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // 被中断或者提交 node 时出现异常. 等待资源或者等待重试的 node 不会自己结束, 在这里标记失败
+            started.forEach(run -> this.nodeFailed(run, e));
+            throw e;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Node 开始执行, 计算资源 key 后排队等待资源. 资源 key 无法计算时不发送 RUNNING, 异常由 executeDag 处理
+    private NodeRun forkNode(
+            FlowScope<NodeRun> scope,
+            ExecutionPlan plan,
+            int index,
+            FlowContext flowContext,
+            boolean sendMsg) {
+        FlowNode flowNode = plan.getNodes().get(index);
+        NodeRun run = new NodeRun(
+                index,
+                flowNode,
+                plan.getImplementations()[index],
+                flowContext.forNode(flowNode, plan.getNodeParams().get(index)),
+                UUID.randomUUID(),
+                plan.getPolicies().get(index),
+                sendMsg
+        );
+        run.resourceKeys = this.resourceSlots.resolveKeys(
+                run.node, plan.getResourceParams().get(index), run.nodeContext);
+        run.progressReporter = this.progressPublisher.reporter(
+                flowContext.getFlowExecutionUuidV4(), run.nodeExecutionUuidV4, flowNode);
+        if (sendMsg) {
+            this.mq.sendNodeMessage(run.nodeContext, run.nodeExecutionUuidV4, flowNode, ExecStatus.RUNNING);
+        }
+        this.forkAttempt(scope, run, 0);
+        return run;
     }
 
-    private FlowContext createFlowContextFromNodes(Long registerId, FlowDefinition flowDefinition) {
-        FlowContext result = new FlowContext(registerId, flowDefinition.getName());
-        for (FlowNode flowNode : flowDefinition.getNodes()) {
-            Map<String, ParamValue> inputParams = flowNode.getInputParams();
-            inputParams.forEach((k, v) -> {
-                if (v.getParamSourceType().equals(ParamSourceType.MANUAL)) {
-                    result.put(k, v.getValue());
+    /**
+     * 获取资源槽位后提交一次执行. 每次执行重新获取资源槽位, 重试等待期间不占用资源
+     */
+    private void forkAttempt(FlowScope<NodeRun> scope, NodeRun run, long delayMillis) {
+        scope.fork(
+                this.resourceSlots.acquireAsync(run.resourceKeys, delayMillis),
+                lease -> this.executeAttempt(run, lease)
+        );
+    }
+
+    /**
+     * 执行一次 node. 成功时把输出放入 context, 失败且不能重试时抛出异常, 可以重试时返回由 executeDag 安排重试
+     */
+    private NodeRun executeAttempt(NodeRun run, ResourceSlots.Lease lease) throws Exception {
+        try {
+            try (lease) {
+                run.attempt++;
+                // 超时从获取到资源开始计算
+                NodeDeadline.set(Instant.now().plusSeconds(run.policy.getTimeoutSeconds()));
+                NodeProgress.set(run.progressReporter);
+                NodeResult nodeResult = run.node.execute(run.nodeContext);
+                // 超时由外部命令的 watchdog 结束进程, 超时后才完成的工作仍然有效, 只记录日志
+                if (nodeResult.getExecStatus().equals(ExecStatus.SUCCESS) && NodeDeadline.isExceeded()) {
+                    log.warn("node {} 执行成功, 但是超过了 timeout {} 秒",
+                            run.flowNode.getName(), run.policy.getTimeoutSeconds());
+                }
+                run.result = nodeResult;
+            } finally {
+                NodeDeadline.clear();
+                NodeProgress.clear();
+            }
+            if (run.isSucceeded()) {
+                // 将 node 的输出转换后放入 context, 之后读取不再转换
+                run.nodeContext.putAll(this.contextValueConverter.convertAll(run.result.getReturnVal()));
+                if (run.finished.compareAndSet(false, true) && run.sendMsg) {
+                    this.mq.sendNodeMessage(
+                            run.nodeContext, run.nodeExecutionUuidV4, run.flowNode, ExecStatus.SUCCESS);
                 }
-            });
+                return run;
+            }
+            // 达到最大次数或者 exit code 不可重试
+            if (run.attempt >= run.policy.getMaxAttempts() || !run.policy.isRetryable(run.result.getExitCode())) {
+                throw new Exception("node execute failed, attempt %s, exit code %s, error is %s".formatted(
+                        run.attempt, run.result.getExitCode(), run.result.getError()));
+            }
+            return run;
+        } catch (Exception e) {
+            this.nodeFailed(run, e);
+            throw e;
+        }
+    }
+
+    // 每个 node 只发送一次结束消息
+    private void nodeFailed(NodeRun run, Exception e) {
+        if (run.finished.compareAndSet(false, true) && run.sendMsg) {
+            this.mq.sendNodeMessage(run.nodeContext, run.nodeExecutionUuidV4, run.flowNode, ExecStatus.FAILED, e);
         }
+    }
+
+    private FlowContext createFlowContext(Long registerId, ExecutionPlan plan) {
+        FlowContext result = new FlowContext(registerId, plan.getFlowName());
+        result.putAll(plan.getInitialParams());
         return result;
     }
+
+    /**
+     * 一个 node 的执行状态, 多次重试共用
+     */
+    private static final class NodeRun {
+        private final int index;
+
+        private final FlowNode flowNode;
+
+        private final BaseNode node;
+
+        private final FlowContext nodeContext;
+
+        private final UUID nodeExecutionUuidV4;
+
+        private final NodePolicy policy;
+
+        private final boolean sendMsg;
+
+        // 已经发送 SUCCESS 或 FAILED 消息
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+
+        private SortedSet<String> resourceKeys;
+
+        private Consumer<ProgressUpdate> progressReporter;
+
+        private int attempt = 0;
+
+        private NodeResult result;
+
+        private NodeRun(
+                int index,
+                FlowNode flowNode,
+                BaseNode node,
+                FlowContext nodeContext,
+                UUID nodeExecutionUuidV4,
+                NodePolicy policy,
+                boolean sendMsg) {
+            this.index = index;
+            this.flowNode = flowNode;
+            this.node = node;
+            this.nodeContext = nodeContext;
+            this.nodeExecutionUuidV4 = nodeExecutionUuidV4;
+            this.policy = policy;
+            this.sendMsg = sendMsg;
+        }
+
+        private boolean isSucceeded() {
+            return this.result != null && this.result.getExecStatus().equals(ExecStatus.SUCCESS);
+        }
+    }
 }
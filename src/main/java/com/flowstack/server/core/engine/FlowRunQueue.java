@@ -0,0 +1,212 @@
+package com.flowstack.server.core.engine;
+
+import com.flowstack.server.core.enums.RunPriority;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * flow 运行队列. 限制同时运行的 flow 数量, 超出的 flow 排队等待.
+ * 出队时先按优先级, 同一优先级内按 flow 轮转, 避免某个 flow 的大量排队任务饿死其他 flow.
+ * 其中 interactiveReservedFlows 个并发只留给 INTERACTIVE, 长时间运行的定时 flow 占满其余并发时, 页面操作仍然可以执行.
+ */
+@Slf4j
+@Component
+public class FlowRunQueue {
+    private final AsyncTaskExecutor flowTaskExecutor;
+
+    private final int maxConcurrentFlows;
+
+    // 非 INTERACTIVE 的 flow 最多同时运行的数量
+    private final int maxBackgroundFlows;
+
+    // 每个优先级一个轮转表: flow key -> 该 flow 排队中的任务
+    private final EnumMap<RunPriority, LinkedHashMap<String, ArrayDeque<RunTask<?>>>> queues =
+            new EnumMap<>(RunPriority.class);
+
+    private final EnumMap<RunPriority, WaitStats> waitStats = new EnumMap<>(RunPriority.class);
+
+    private int running = 0;
+
+    private int runningBackground = 0;
+
+    public FlowRunQueue(
+            AsyncTaskExecutor flowTaskExecutor,
+            @Value("${flowstack.server.system.maxConcurrentFlows:4}") int maxConcurrentFlows,
+            @Value("${flowstack.server.system.interactiveReservedFlows:1}") int interactiveReservedFlows) {
+        this.flowTaskExecutor = flowTaskExecutor;
+        this.maxConcurrentFlows = maxConcurrentFlows;
+        // 至少给非 INTERACTIVE 的 flow 留一个并发
+        this.maxBackgroundFlows = Math.max(1, maxConcurrentFlows - Math.max(0, interactiveReservedFlows));
+        for (RunPriority priority : RunPriority.values()) {
+            this.queues.put(priority, new LinkedHashMap<>());
+            this.waitStats.put(priority, new WaitStats());
+        }
+    }
+
+    /**
+     * 提交 flow 任务. 返回的 Future 在排队中被取消时直接出队, 运行中被取消时中断执行线程
+     */
+    public <T> Future<T> submit(RunPriority priority, String flowKey, Callable<T> callable) {
+        RunTask<T> task = new RunTask<>(priority, flowKey, callable);
+        synchronized (this) {
+            this.queues.get(priority).computeIfAbsent(flowKey, k -> new ArrayDeque<>()).addLast(task);
+        }
+        this.dispatch();
+        return task;
+    }
+
+    public synchronized Stats getStats() {
+        EnumMap<RunPriority, Integer> queued = new EnumMap<>(RunPriority.class);
+        EnumMap<RunPriority, WaitStats> waits = new EnumMap<>(RunPriority.class);
+        this.queues.forEach((priority, rotation) -> {
+            queued.put(priority, rotation.values().stream().mapToInt(ArrayDeque::size).sum());
+            waits.put(priority, this.waitStats.get(priority).copy());
+        });
+        return new Stats(this.maxConcurrentFlows, this.maxBackgroundFlows, this.running, queued, waits);
+    }
+
+    private void dispatch() {
+        List<RunTask<?>> admitted = new ArrayList<>();
+        synchronized (this) {
+            while (this.running < this.maxConcurrentFlows) {
+                RunTask<?> next = this.poll();
+                if (next == null) {
+                    break;
+                }
+                if (next.isCancelled()) {
+                    // 排队中被取消, 不占用并发数
+                    continue;
+                }
+                this.running++;
+                if (next.priority != RunPriority.INTERACTIVE) {
+                    this.runningBackground++;
+                }
+                admitted.add(next);
+            }
+        }
+        for (RunTask<?> task : admitted) {
+            try {
+                this.flowTaskExecutor.execute(() -> this.runTask(task));
+            } catch (RuntimeException e) {
+                // executor 已关闭
+                task.setException(e);
+                this.release(task);
+            }
+        }
+    }
+
+    private void runTask(RunTask<?> task) {
+        long waitNanos = System.nanoTime() - task.enqueueNanos;
+        synchronized (this) {
+            this.waitStats.get(task.priority).record(waitNanos);
+        }
+        log.debug("flow {} 开始执行, 优先级 {}, 排队 {} ms", task.flowKey, task.priority, waitNanos / 1_000_000);
+        try {
+            task.run();
+        } finally {
+            this.release(task);
+        }
+    }
+
+    private void release(RunTask<?> task) {
+        synchronized (this) {
+            this.running--;
+            if (task.priority != RunPriority.INTERACTIVE) {
+                this.runningBackground--;
+            }
+        }
+        this.dispatch();
+    }
+
+    // 调用方持有锁. 非 INTERACTIVE 的 flow 达到上限后只从 INTERACTIVE 队列出队
+    private RunTask<?> poll() {
+        for (Map.Entry<RunPriority, LinkedHashMap<String, ArrayDeque<RunTask<?>>>> queue : this.queues.entrySet()) {
+            if (queue.getKey() != RunPriority.INTERACTIVE && this.runningBackground >= this.maxBackgroundFlows) {
+                continue;
+            }
+            LinkedHashMap<String, ArrayDeque<RunTask<?>>> rotation = queue.getValue();
+            Iterator<Map.Entry<String, ArrayDeque<RunTask<?>>>> iterator = rotation.entrySet().iterator();
+            if (!iterator.hasNext()) {
+                continue;
+            }
+            Map.Entry<String, ArrayDeque<RunTask<?>>> head = iterator.next();
+            RunTask<?> task = head.getValue().pollFirst();
+            // 当前 flow 移到轮转表末尾
+            iterator.remove();
+            if (!head.getValue().isEmpty()) {
+                rotation.put(head.getKey(), head.getValue());
+            }
+            return task;
+        }
+        return null;
+    }
+
+    private static final class RunTask<T> extends FutureTask<T> {
+        private final RunPriority priority;
+
+        private final String flowKey;
+
+        private final long enqueueNanos = System.nanoTime();
+
+        private RunTask(RunPriority priority, String flowKey, Callable<T> callable) {
+            super(callable);
+            this.priority = priority;
+            this.flowKey = flowKey;
+        }
+
+        // 开放给 FlowRunQueue, executor 拒绝任务时标记失败
+        @Override
+        protected void setException(Throwable t) {
+            super.setException(t);
+        }
+    }
+
+    public static final class WaitStats {
+        private long count;
+
+        private long totalNanos;
+
+        private long maxNanos;
+
+        private void record(long waitNanos) {
+            this.count++;
+            this.totalNanos += waitNanos;
+            this.maxNanos = Math.max(this.maxNanos, waitNanos);
+        }
+
+        private WaitStats copy() {
+            WaitStats result = new WaitStats();
+            result.count = this.count;
+            result.totalNanos = this.totalNanos;
+            result.maxNanos = this.maxNanos;
+            return result;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        public long getAvgWaitMillis() {
+            return this.count == 0 ? 0 : this.totalNanos / this.count / 1_000_000;
+        }
+
+        public long getMaxWaitMillis() {
+            return this.maxNanos / 1_000_000;
+        }
+    }
+
+    public record Stats(
+            int maxConcurrentFlows,
+            int maxBackgroundFlows,
+            int running,
+            Map<RunPriority, Integer> queued,
+            Map<RunPriority, WaitStats> waits) {
+    }
+}
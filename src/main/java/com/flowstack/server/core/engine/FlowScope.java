@@ -0,0 +1,114 @@
+package com.flowstack.server.core.engine;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一次 flow 执行内的 node 任务范围. 所有 node 任务通过 fork 提交, scope 关闭时取消仍在运行的任务,
+ * 因此 flow 被取消(线程中断)或者异常退出时, 不会遗留运行中的 node.
+ * StructuredTaskScope 在 Java 21 仍是预览 API, 这里用 FutureTask 和完成队列实现相同的语义.
+ * 任务可以带一个 gate, gate 完成后才提交到线程池, 等待 gate(比如资源槽位)期间不占用线程
+ */
+final class FlowScope<T> implements AutoCloseable {
+    private final Executor executor;
+
+    private final BlockingQueue<Future<T>> completed = new LinkedBlockingQueue<>();
+
+    private final Set<Future<T>> running = new HashSet<>();
+
+    FlowScope(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * gate 完成后把 gate 的结果交给任务, 提交到线程池执行. gate 异常结束时任务以同样的异常结束.
+     * 任务开始前被取消时同时取消 gate, gate 的结果实现了 AutoCloseable 时关闭它
+     */
+    <G> void fork(CompletableFuture<G> gate, GatedTask<G, T> task) {
+        ScopeTask<G> scopeTask = new ScopeTask<>(gate, task);
+        this.running.add(scopeTask);
+        gate.whenComplete((value, e) -> {
+            if (e != null) {
+                scopeTask.fail(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                return;
+            }
+            try {
+                this.executor.execute(scopeTask);
+            } catch (RejectedExecutionException rejected) {
+                scopeTask.fail(rejected);
+            }
+        });
+    }
+
+    boolean hasRunning() {
+        return !this.running.isEmpty();
+    }
+
+    /**
+     * 等待下一个完成的任务
+     */
+    Future<T> take() throws InterruptedException {
+        Future<T> future = this.completed.take();
+        this.running.remove(future);
+        return future;
+    }
+
+    @Override
+    public void close() {
+        this.running.forEach(f -> f.cancel(true));
+        this.running.clear();
+    }
+
+    @FunctionalInterface
+    interface GatedTask<G, T> {
+        T call(G gateValue) throws Exception;
+    }
+
+    private final class ScopeTask<G> extends FutureTask<T> {
+        private final CompletableFuture<G> gate;
+
+        // 任务开始执行或者在开始前被取消, 两者只会发生一个
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        private ScopeTask(CompletableFuture<G> gate, GatedTask<G, T> task) {
+            super(() -> task.call(gate.join()));
+            this.gate = gate;
+        }
+
+        @Override
+        public void run() {
+            if (this.claimed.compareAndSet(false, true)) {
+                super.run();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (this.claimed.compareAndSet(false, true)) {
+                // 任务没有运行, gate 的结果由这里释放
+                this.gate.cancel(false);
+                if (this.gate.isDone() && !this.gate.isCompletedExceptionally()
+                        && this.gate.getNow(null) instanceof AutoCloseable closeable) {
+                    try {
+                        closeable.close();
+                    } catch (Exception ignored) {
+                        // 释放资源槽位不会失败
+                    }
+                }
+            }
+            return cancelled;
+        }
+
+        private void fail(Throwable e) {
+            this.setException(e);
+        }
+
+        @Override
+        protected void done() {
+            FlowScope.this.completed.add(this);
+        }
+    }
+}
@@ -3,15 +3,13 @@ package com.flowstack.server.core.engine;
 import com.flowstack.server.core.annotaion.Node;
 import com.flowstack.server.core.exception.CyclicDependency;
 import com.flowstack.server.core.exception.DuplicateNodeId;
-import com.flowstack.server.core.exception.NodeImplementNotFound;
 import com.flowstack.server.core.model.base.BaseNode;
+import com.flowstack.server.core.model.base.NodeMeta;
 import com.flowstack.server.core.model.definition.FlowDefinition;
 import com.flowstack.server.core.model.definition.FlowNode;
+import com.flowstack.server.core.model.execution.ExecutionPlan;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.ObjectUtils;
-import org.springframework.context.ApplicationContext;
-import org.springframework.core.annotation.AnnotationUtils;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
@@ -21,7 +19,9 @@ import java.util.stream.Collectors;
 @Component
 @RequiredArgsConstructor
 public class FlowValidator {
-    private final ApplicationContext applicationContext;
+    private final NodeRegistry nodeRegistry;
+
+    private final ContextValueConverter contextValueConverter;
 
     public void validNodes(FlowDefinition flowDefinition) {
         HashSet<String> nodeIdSet = new HashSet<>();
@@ -84,35 +84,34 @@ public class FlowValidator {
         return sorted;
     }
 
+    /**
+     * 编译执行计划: 拓扑排序, 解析 node 实现和注解, 建立前驱/后继下标
+     */
+    public ExecutionPlan compile(FlowDefinition flowDefinition, Integer version) {
+        List<FlowNode> sortedNodes = this.topologicalSort(flowDefinition);
+        List<NodeMeta> nodeMetas = new ArrayList<>(sortedNodes.size());
+        for (FlowNode sortedNode : sortedNodes) {
+            nodeMetas.add(this.nodeRegistry.get(sortedNode.getName()));
+        }
+        return new ExecutionPlan(
+                flowDefinition.getName(),
+                version,
+                flowDefinition.getNodes(),
+                sortedNodes,
+                nodeMetas,
+                this.contextValueConverter
+        );
+    }
+
     public Node getAnnotationByNodeName(String nodeName) {
-        BaseNode node = this.getNodeByName(nodeName);
-        return AnnotationUtils.findAnnotation(node.getClass(), Node.class);
+        return this.nodeRegistry.get(nodeName).annotation();
     }
 
     public BaseNode getNodeByName(String nodeName) {
-        Map<String, BaseNode> nodeList = this.applicationContext.getBeansOfType(BaseNode.class);
-        for (BaseNode node : nodeList.values()) {
-            Node annotation = AnnotationUtils.findAnnotation(node.getClass(), Node.class);
-            if (ObjectUtils.isEmpty(annotation)) {
-                log.warn("node:{} 继承了 BaseNode, 但是没有 Node 注解", node.getClass());
-                continue;
-            }
-            if (annotation.name().equals(nodeName)) {
-                return node;
-            }
-        }
-        throw new NodeImplementNotFound("找不到 %s 节点实现".formatted(nodeName));
+        return this.nodeRegistry.get(nodeName).node();
     }
 
     public List<Node> getAllNodeAnnotation() {
-        Map<String, BaseNode> nodeList = this.applicationContext.getBeansOfType(BaseNode.class);
-        ArrayList<Node> result = new ArrayList<>();
-        nodeList.forEach((k, v) -> {
-            Node annotation = AnnotationUtils.findAnnotation(v.getClass(), Node.class);
-            if (ObjectUtils.isNotEmpty(annotation)) {
-                result.add(annotation);
-            }
-        });
-        return result;
+        return this.nodeRegistry.getAllAnnotation();
     }
 }
@@ -0,0 +1,41 @@
+package com.flowstack.server.core.engine;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * 当前线程上正在执行的 node 的截止时间. FlowEngine 在 node 执行前设置,
+ * 外部命令根据剩余时间设置 watchdog, 超时后结束进程
+ */
+public final class NodeDeadline {
+    private static final ThreadLocal<Instant> DEADLINE = new ThreadLocal<>();
+
+    private NodeDeadline() {
+    }
+
+    static void set(Instant deadline) {
+        DEADLINE.set(deadline);
+    }
+
+    static void clear() {
+        DEADLINE.remove();
+    }
+
+    public static boolean isExceeded() {
+        Instant deadline = DEADLINE.get();
+        return deadline != null && Instant.now().isAfter(deadline);
+    }
+
+    /**
+     * 剩余时间, 不在 node 中执行(比如 controller 直接调用)时返回 defaultTimeout
+     */
+    public static Duration remaining(Duration defaultTimeout) {
+        Instant deadline = DEADLINE.get();
+        if (deadline == null) {
+            return defaultTimeout;
+        }
+        Duration remaining = Duration.between(Instant.now(), deadline);
+        // watchdog 不接受 0 和负数
+        return remaining.isNegative() || remaining.isZero() ? Duration.ofMillis(1) : remaining;
+    }
+}
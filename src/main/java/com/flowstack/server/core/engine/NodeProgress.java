@@ -0,0 +1,35 @@
+package com.flowstack.server.core.engine;
+
+import com.flowstack.server.core.model.execution.ProgressUpdate;
+
+import java.util.function.Consumer;
+
+/**
+ * 当前线程上正在执行的 node 的进度上报. FlowEngine 在 node 执行前设置, 外部命令解析出进度后调用.
+ * 命令的输出在其他线程读取, 需要在 node 线程上先调用 current() 取得上报方法
+ */
+public final class NodeProgress {
+    private static final Consumer<ProgressUpdate> NO_OP = update -> {
+    };
+
+    private static final ThreadLocal<Consumer<ProgressUpdate>> REPORTER = new ThreadLocal<>();
+
+    private NodeProgress() {
+    }
+
+    static void set(Consumer<ProgressUpdate> reporter) {
+        REPORTER.set(reporter);
+    }
+
+    static void clear() {
+        REPORTER.remove();
+    }
+
+    /**
+     * 不在 node 中执行(比如 controller 直接调用)时返回空操作
+     */
+    public static Consumer<ProgressUpdate> current() {
+        Consumer<ProgressUpdate> reporter = REPORTER.get();
+        return reporter == null ? NO_OP : reporter;
+    }
+}
@@ -0,0 +1,61 @@
+package com.flowstack.server.core.engine;
+
+import com.flowstack.server.core.annotaion.Node;
+import com.flowstack.server.core.exception.DuplicateNodeName;
+import com.flowstack.server.core.exception.NodeImplementNotFound;
+import com.flowstack.server.core.model.base.BaseNode;
+import com.flowstack.server.core.model.base.NodeMeta;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ObjectUtils;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * 启动时按 @Node 的 name 索引所有 node 实现, 之后的查找不再扫描 bean 和解析注解
+ */
+@Slf4j
+@Component
+public class NodeRegistry {
+    private final Map<String, NodeMeta> nodeMetaMap;
+
+    private final List<Node> annotations;
+
+    public NodeRegistry(List<BaseNode> nodes) {
+        Map<String, NodeMeta> metaMap = new LinkedHashMap<>();
+        for (BaseNode node : nodes) {
+            Class<?> nodeClass = AopUtils.getTargetClass(node);
+            Node annotation = AnnotationUtils.findAnnotation(nodeClass, Node.class);
+            if (ObjectUtils.isEmpty(annotation)) {
+                log.warn("node:{} 继承了 BaseNode, 但是没有 Node 注解", nodeClass);
+                continue;
+            }
+            NodeMeta exist = metaMap.get(annotation.name());
+            if (exist != null) {
+                throw new DuplicateNodeName(annotation.name(), AopUtils.getTargetClass(exist.node()), nodeClass);
+            }
+            metaMap.put(annotation.name(), NodeMeta.of(node, annotation));
+        }
+        this.nodeMetaMap = Collections.unmodifiableMap(metaMap);
+        this.annotations = metaMap.values().stream().map(NodeMeta::annotation).toList();
+        log.info("注册 node {} 个: {}", metaMap.size(), metaMap.keySet());
+    }
+
+    public NodeMeta get(String nodeName) {
+        NodeMeta nodeMeta = this.nodeMetaMap.get(nodeName);
+        if (nodeMeta == null) {
+            throw new NodeImplementNotFound(nodeName);
+        }
+        return nodeMeta;
+    }
+
+    public boolean contains(String nodeName) {
+        return this.nodeMetaMap.containsKey(nodeName);
+    }
+
+    public List<Node> getAllAnnotation() {
+        return this.annotations;
+    }
+}
@@ -0,0 +1,248 @@
+package com.flowstack.server.core.engine;
+
+import com.flowstack.server.core.model.base.BaseNode;
+import com.flowstack.server.core.model.execution.FlowContext;
+import com.flowstack.server.model.SystemSettings;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * node 资源槽位. 同一个资源(磁盘, 仓库, 远程主机)同时只允许 N 个 node 使用, 其余 node 排队等待,
+ * 避免多个 flow 同时读写一块机械硬盘或者争抢 restic 仓库锁. 等待资源不占用线程, 槽位获取后 node 才提交到线程池.
+ * 资源 key 格式为 "类型:标识", 槽位数量按类型配置, 未配置时使用默认值
+ */
+@Slf4j
+@Component
+public class ResourceSlots {
+    private final Map<String, Integer> permitsByType;
+
+    private final int defaultPermits;
+
+    private final Map<String, Slot> slotMap = new ConcurrentHashMap<>();
+
+    public ResourceSlots(
+            SystemSettings systemSettings,
+            @Value("${flowstack.server.system.resourceSlotPermits:1}") int defaultPermits) {
+        this.permitsByType = ObjectUtils.defaultIfNull(systemSettings.getResourceSlots(), Map.of());
+        this.defaultPermits = defaultPermits;
+    }
+
+    /**
+     * 计算 node 本次执行占用的资源 key. 返回有序集合, 按顺序获取可以避免死锁
+     */
+    public SortedSet<String> resolveKeys(BaseNode node, Set<String> resourceParams, FlowContext context) {
+        SortedSet<String> result = new TreeSet<>(node.resourceKeys(context));
+        for (String param : resourceParams) {
+            Object value = context.get(param);
+            if (!(value instanceof String text) || StringUtils.isBlank(text)) {
+                continue;
+            }
+            String diskKey = this.diskKey(text);
+            result.add(diskKey != null ? diskKey : param + ":" + text);
+        }
+        return result;
+    }
+
+    /**
+     * 按 key 的顺序依次获取槽位, 不阻塞调用线程. 资源被占满时排队(先到先得), 槽位全部获取后返回的 future 完成,
+     * 因此 node 在等待资源期间不占用线程池的线程. 返回的 future 被取消时退出排队, 已经获取的槽位立即释放
+     *
+     * @param delayMillis 延迟多久之后开始获取, 用于重试前的等待
+     */
+    public CompletableFuture<Lease> acquireAsync(SortedSet<String> keys, long delayMillis) {
+        CompletableFuture<Lease> result = new CompletableFuture<>();
+        Acquisition acquisition = new Acquisition(List.copyOf(keys), result);
+        if (delayMillis <= 0) {
+            acquisition.acquireNext();
+        } else {
+            CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS).execute(acquisition::acquireNext);
+        }
+        return result;
+    }
+
+    private int permitsOf(String key) {
+        String type = StringUtils.substringBefore(key, ":");
+        return Math.max(1, this.permitsByType.getOrDefault(type, this.defaultPermits));
+    }
+
+    // 本地路径返回所在磁盘的 key, 非本地路径返回 null
+    private String diskKey(String value) {
+        Path path;
+        try {
+            path = Path.of(value);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!path.isAbsolute()) {
+            return null;
+        }
+        // 路径可能还不存在(比如同步目标), 向上找到存在的目录
+        Path existing = path.normalize();
+        while (existing != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        if (existing == null) {
+            return null;
+        }
+        try {
+            return "disk:" + Files.getFileStore(existing).name();
+        } catch (IOException e) {
+            log.warn("获取 {} 所在磁盘失败", existing, e);
+            return null;
+        }
+    }
+
+    /**
+     * 一个资源的槽位. 没有空闲槽位时加入等待队列, 释放的槽位直接交给队列中的第一个等待者
+     */
+    private static final class Slot {
+        private final ArrayDeque<Acquisition> waiters = new ArrayDeque<>();
+
+        private int available;
+
+        private Slot(int permits) {
+            this.available = permits;
+        }
+
+        // 获取到返回 true, 否则加入等待队列
+        private synchronized boolean tryAcquireOrWait(Acquisition acquisition) {
+            if (this.available > 0 && this.waiters.isEmpty()) {
+                this.available--;
+                return true;
+            }
+            this.waiters.addLast(acquisition);
+            return false;
+        }
+
+        private synchronized boolean removeWaiter(Acquisition acquisition) {
+            return this.waiters.remove(acquisition);
+        }
+
+        private void release() {
+            Acquisition next;
+            synchronized (this) {
+                next = this.waiters.pollFirst();
+                if (next == null) {
+                    this.available++;
+                    return;
+                }
+            }
+            // 在锁外继续获取下一个 key, 避免嵌套持有多个 Slot 的锁
+            next.granted(this);
+        }
+    }
+
+    /**
+     * 一次按顺序获取多个槽位的过程
+     */
+    private final class Acquisition {
+        private final List<String> keys;
+
+        private final CompletableFuture<Lease> result;
+
+        private final Lease lease = new Lease();
+
+        private final long startNanos = System.nanoTime();
+
+        private int next = 0;
+
+        private Slot waiting;
+
+        private Acquisition(List<String> keys, CompletableFuture<Lease> result) {
+            this.keys = keys;
+            this.result = result;
+            // 排队中被取消时退出队列. 已经被分配槽位时 removeWaiter 返回 false, 由 granted 释放
+            result.whenComplete((lease, e) -> {
+                Slot slot;
+                synchronized (this) {
+                    slot = this.waiting;
+                }
+                if (this.result.isCancelled() && slot != null && slot.removeWaiter(this)) {
+                    this.lease.close();
+                }
+            });
+        }
+
+        private void acquireNext() {
+            while (true) {
+                if (this.result.isDone()) {
+                    // 已经被取消
+                    this.lease.close();
+                    return;
+                }
+                if (this.next >= this.keys.size()) {
+                    break;
+                }
+                Slot slot = ResourceSlots.this.slotMap.computeIfAbsent(
+                        this.keys.get(this.next),
+                        k -> new Slot(ResourceSlots.this.permitsOf(k))
+                );
+                synchronized (this) {
+                    this.waiting = slot;
+                }
+                if (!slot.tryAcquireOrWait(this)) {
+                    // 被分配槽位时在 granted 中继续
+                    return;
+                }
+                this.acquired(slot);
+            }
+            long waitMillis = (System.nanoTime() - this.startNanos) / 1_000_000;
+            if (waitMillis > 0) {
+                log.info("获取资源 {} 等待 {} ms", this.keys, waitMillis);
+            }
+            if (!this.result.complete(this.lease)) {
+                this.lease.close();
+            }
+        }
+
+        private void granted(Slot slot) {
+            this.acquired(slot);
+            this.acquireNext();
+        }
+
+        private void acquired(Slot slot) {
+            synchronized (this) {
+                this.waiting = null;
+            }
+            this.lease.add(slot);
+            this.next++;
+        }
+    }
+
+    public static final class Lease implements AutoCloseable {
+        private final Deque<Slot> acquired = new ArrayDeque<>();
+
+        private Lease() {
+        }
+
+        private synchronized void add(Slot slot) {
+            this.acquired.push(slot);
+        }
+
+        /**
+         * 可以重复调用, 只释放一次
+         */
+        @Override
+        public void close() {
+            List<Slot> slots;
+            synchronized (this) {
+                slots = List.copyOf(this.acquired);
+                this.acquired.clear();
+            }
+            // 按获取的相反顺序释放
+            slots.forEach(Slot::release);
+        }
+    }
+}
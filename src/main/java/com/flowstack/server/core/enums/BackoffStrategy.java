@@ -0,0 +1,6 @@
+package com.flowstack.server.core.enums;
+
+public enum BackoffStrategy {
+    FIXED,       // 每次重试等待相同时间
+    EXPONENTIAL, // 每次重试等待时间翻倍
+}
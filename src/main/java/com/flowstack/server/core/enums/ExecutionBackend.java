@@ -0,0 +1,6 @@
+package com.flowstack.server.core.enums;
+
+public enum ExecutionBackend {
+    PLATFORM, // 平台线程, node 使用固定大小线程池
+    VIRTUAL,  // 虚拟线程, flow 和 node 每个任务一个虚拟线程
+}
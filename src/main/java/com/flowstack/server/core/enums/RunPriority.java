@@ -0,0 +1,7 @@
+package com.flowstack.server.core.enums;
+
+// 声明顺序即优先级, 越靠前越优先
+public enum RunPriority {
+    INTERACTIVE, // 页面触发的一次性 flow, 比如浏览 snapshot 和 restore
+    SCHEDULED,   // cron 触发的 flow, 比如 backup
+}
@@ -0,0 +1,7 @@
+package com.flowstack.server.core.exception;
+
+public class DuplicateNodeName extends BaseException {
+    public DuplicateNodeName(String nodeName, Class<?> first, Class<?> second) {
+        super("节点名称 %s 重复, 实现类 %s 和 %s".formatted(nodeName, first.getName(), second.getName()));
+    }
+}
@@ -4,10 +4,19 @@ import com.flowstack.server.core.model.execution.FlowContext;
 import com.flowstack.server.core.model.execution.NodeResult;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.Set;
+
 @Slf4j
 public abstract class BaseNode {
     public abstract NodeResult execute(FlowContext context);
 
+    /**
+     * 额外占用的资源, 无法从 @Node resourceParams 推导时覆盖, 比如远程主机
+     */
+    public Set<String> resourceKeys(FlowContext context) {
+        return Set.of();
+    }
+
     protected void checkInterrupted() {
         if (Thread.currentThread().isInterrupted()) {
             throw new RuntimeException("节点执行被中断");
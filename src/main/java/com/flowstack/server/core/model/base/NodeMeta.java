@@ -0,0 +1,43 @@
+package com.flowstack.server.core.model.base;
+
+import com.flowstack.server.core.annotaion.Node;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * node 实现和解析后的 @Node 元数据, 启动时构建一次
+ */
+public record NodeMeta(
+        BaseNode node,
+        Node annotation,
+        Set<String> inputKeys,
+        Set<String> outputKeys,
+        Set<String> resourceParams) {
+
+    public static NodeMeta of(BaseNode node, Node annotation) {
+        return new NodeMeta(
+                node,
+                annotation,
+                toKeySet(annotation.inputParams()),
+                toKeySet(annotation.outputParams()),
+                toKeySet(annotation.resourceParams())
+        );
+    }
+
+    public String name() {
+        return this.annotation.name();
+    }
+
+    private static Set<String> toKeySet(String[] keys) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String key : keys) {
+            if (StringUtils.isNotBlank(key)) {
+                result.add(key);
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+}
@@ -2,11 +2,13 @@ package com.flowstack.server.core.model.definition;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 
 import java.util.List;
 import java.util.Map;
 
 @Data
+@NoArgsConstructor
 @AllArgsConstructor
 public class FlowNode {
     private String nodeId; // 唯一ID, dag 内不能重复
@@ -16,4 +18,10 @@ public class FlowNode {
     private Map<String, ParamValue> inputParams; // key 用于匹配 node 注解中的 inputParams
 
     private List<String> nextNodeIds;
+
+    private NodePolicy policy; // 可选, 覆盖 @Node 上声明的超时和重试策略
+
+    public FlowNode(String nodeId, String name, Map<String, ParamValue> inputParams, List<String> nextNodeIds) {
+        this(nodeId, name, inputParams, nextNodeIds, null);
+    }
 }
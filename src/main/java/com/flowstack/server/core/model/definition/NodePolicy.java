@@ -0,0 +1,68 @@
+package com.flowstack.server.core.model.definition;
+
+import com.flowstack.server.core.annotaion.Node;
+import com.flowstack.server.core.enums.BackoffStrategy;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+import org.apache.commons.lang3.ObjectUtils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * node 的超时和重试策略. FlowNode 中的字段为 null 时使用 @Node 上声明的值
+ */
+@Data
+@Accessors(chain = true)
+@NoArgsConstructor
+public class NodePolicy {
+    private Long timeoutSeconds;
+
+    private Integer maxAttempts; // 包含第一次执行
+
+    private BackoffStrategy backoff;
+
+    private Long backoffSeconds; // 第一次重试前等待的时间
+
+    private List<Integer> retryableExitCodes;
+
+    /**
+     * 合并 @Node 声明和 flow 中的覆盖, 返回所有字段都有值的策略
+     */
+    public static NodePolicy resolve(Node annotation, NodePolicy override) {
+        NodePolicy result = new NodePolicy()
+                .setTimeoutSeconds(annotation.timeoutSeconds())
+                .setMaxAttempts(annotation.maxAttempts())
+                .setBackoff(annotation.backoff())
+                .setBackoffSeconds(annotation.backoffSeconds())
+                .setRetryableExitCodes(Arrays.stream(annotation.retryableExitCodes()).boxed().toList());
+        if (ObjectUtils.isNotEmpty(override)) {
+            result.setTimeoutSeconds(ObjectUtils.defaultIfNull(override.getTimeoutSeconds(), result.getTimeoutSeconds()))
+                    .setMaxAttempts(ObjectUtils.defaultIfNull(override.getMaxAttempts(), result.getMaxAttempts()))
+                    .setBackoff(ObjectUtils.defaultIfNull(override.getBackoff(), result.getBackoff()))
+                    .setBackoffSeconds(ObjectUtils.defaultIfNull(override.getBackoffSeconds(), result.getBackoffSeconds()))
+                    .setRetryableExitCodes(ObjectUtils.defaultIfNull(
+                            override.getRetryableExitCodes(),
+                            result.getRetryableExitCodes()
+                    ));
+        }
+        result.setMaxAttempts(Math.max(1, result.getMaxAttempts()));
+        return result;
+    }
+
+    public boolean isRetryable(int exitCode) {
+        return this.retryableExitCodes.contains(exitCode);
+    }
+
+    /**
+     * 第 attempt 次执行失败后, 下一次重试前等待的毫秒数
+     */
+    public long backoffMillis(int attempt) {
+        long millis = this.backoffSeconds * 1000L;
+        if (BackoffStrategy.EXPONENTIAL.equals(this.backoff)) {
+            millis = millis << Math.min(attempt - 1, 10);
+        }
+        return millis;
+    }
+}
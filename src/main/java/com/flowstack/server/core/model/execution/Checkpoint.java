@@ -0,0 +1,15 @@
+package com.flowstack.server.core.model.execution;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * 失败 flow 的检查点, 从 node_execution 中执行成功的记录恢复
+ *
+ * @param flowExecutionUuidV4 失败的 flow execution, 恢复执行沿用同一个 uuid
+ * @param completedNodeIds    已经执行成功的 node
+ * @param data                已经执行成功的 node 的输出
+ */
+public record Checkpoint(UUID flowExecutionUuidV4, Set<String> completedNodeIds, Map<String, Object> data) {
+}
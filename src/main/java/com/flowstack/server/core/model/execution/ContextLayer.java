@@ -0,0 +1,95 @@
+package com.flowstack.server.core.model.execution;
+
+import java.util.*;
+
+/**
+ * 不可变的 context 层. 每个 node 的输出是一层, 只保存本层新增的数据(delta)和父层的引用,
+ * 新增数据不复制之前的层, 读取时从当前层向根查找
+ */
+public final class ContextLayer {
+    private static final ContextLayer EMPTY = new ContextLayer(null, Map.of());
+
+    private final ContextLayer parent;
+
+    private final Map<String, Object> delta;
+
+    private final int depth;
+
+    private ContextLayer(ContextLayer parent, Map<String, Object> delta) {
+        this.parent = parent;
+        this.delta = delta;
+        this.depth = parent == null ? 0 : parent.depth + 1;
+    }
+
+    public static ContextLayer empty() {
+        return EMPTY;
+    }
+
+    /**
+     * 以当前层为父层, 生成新的一层. delta 为空时返回当前层
+     */
+    public ContextLayer with(Map<String, Object> delta) {
+        if (delta == null || delta.isEmpty()) {
+            return this;
+        }
+        // 只复制本层的数据, value 允许为 null
+        return new ContextLayer(this, Collections.unmodifiableMap(new HashMap<>(delta)));
+    }
+
+    public Object get(String key) {
+        for (ContextLayer layer = this; layer != null; layer = layer.parent) {
+            if (layer.delta.containsKey(key)) {
+                return layer.delta.get(key);
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(String key) {
+        for (ContextLayer layer = this; layer != null; layer = layer.parent) {
+            if (layer.delta.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public ContextLayer getParent() {
+        return this.parent;
+    }
+
+    public Map<String, Object> getDelta() {
+        return this.delta;
+    }
+
+    public int getDepth() {
+        return this.depth;
+    }
+
+    public Set<String> keys() {
+        Set<String> result = new HashSet<>();
+        for (ContextLayer layer = this; layer != null; layer = layer.parent) {
+            result.addAll(layer.delta.keySet());
+        }
+        return result;
+    }
+
+    /**
+     * 合并所有层, 子层覆盖父层. 会复制全部数据, 只在需要完整 context 时使用(比如持久化 flow 结果)
+     */
+    public Map<String, Object> flatten() {
+        Deque<ContextLayer> layers = new ArrayDeque<>(this.depth + 1);
+        for (ContextLayer layer = this; layer != null; layer = layer.parent) {
+            layers.push(layer);
+        }
+        Map<String, Object> result = new HashMap<>();
+        layers.forEach(layer -> result.putAll(layer.delta));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        // 不输出 value, 避免打印大对象
+        return "ContextLayer{depth=%s, delta=%s}".formatted(this.depth, this.delta.keySet());
+    }
+}
@@ -0,0 +1,139 @@
+package com.flowstack.server.core.model.execution;
+
+import com.flowstack.server.core.enums.ParamSourceType;
+import com.flowstack.server.core.engine.ContextValueConverter;
+import com.flowstack.server.core.model.base.BaseNode;
+import com.flowstack.server.core.model.base.NodeMeta;
+import com.flowstack.server.core.model.definition.FlowNode;
+import com.flowstack.server.core.model.definition.NodePolicy;
+import lombok.Getter;
+import org.apache.commons.collections4.MapUtils;
+
+import java.util.*;
+
+/**
+ * flow 编译后的不可变执行计划. 同一个 flow definition 版本只编译一次, 每次执行直接复用.
+ * node 按拓扑序编号, 前驱/后继关系使用下标数组表示.
+ */
+@Getter
+public final class ExecutionPlan {
+    private final String flowName;
+
+    private final Integer version; // 对应 FlowDefinitionEntity 的 version, 临时 flow 为 null
+
+    private final List<FlowNode> nodes; // 拓扑序
+
+    private final BaseNode[] implementations;
+
+    private final int[][] predecessors;
+
+    private final int[][] successors;
+
+    private final int[] roots; // 入度为 0 的 node
+
+    private final List<Set<String>> inputKeys;
+
+    private final List<Set<String>> outputKeys;
+
+    private final List<Set<String>> resourceParams;
+
+    private final List<NodePolicy> policies; // 合并 @Node 和 flow 覆盖后的超时重试策略
+
+    private final List<Map<String, Object>> nodeParams; // 每个 node 自己的 MANUAL 参数
+
+    private final Map<String, Object> initialParams; // flow 开始时放入 context 的 MANUAL 参数
+
+    public ExecutionPlan(
+            String flowName,
+            Integer version,
+            List<FlowNode> definitionNodes,
+            List<FlowNode> sortedNodes,
+            List<NodeMeta> nodeMetas,
+            ContextValueConverter converter) {
+        this.flowName = flowName;
+        this.version = version;
+        this.nodes = List.copyOf(sortedNodes);
+        this.implementations = nodeMetas.stream().map(NodeMeta::node).toArray(BaseNode[]::new);
+        int size = sortedNodes.size();
+        // node id -> 拓扑序下标
+        Map<String, Integer> indexMap = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            indexMap.put(sortedNodes.get(i).getNodeId(), i);
+        }
+        // 后继
+        List<List<Integer>> predecessorList = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            predecessorList.add(new ArrayList<>());
+        }
+        this.successors = new int[size][];
+        for (int i = 0; i < size; i++) {
+            List<String> nextNodeIds = sortedNodes.get(i).getNextNodeIds();
+            int[] next = new int[nextNodeIds.size()];
+            for (int j = 0; j < next.length; j++) {
+                next[j] = indexMap.get(nextNodeIds.get(j));
+                predecessorList.get(next[j]).add(i);
+            }
+            this.successors[i] = next;
+        }
+        // 前驱
+        this.predecessors = new int[size][];
+        List<Integer> rootList = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            this.predecessors[i] = predecessorList.get(i).stream().mapToInt(Integer::intValue).toArray();
+            if (this.predecessors[i].length == 0) {
+                rootList.add(i);
+            }
+        }
+        this.roots = rootList.stream().mapToInt(Integer::intValue).toArray();
+        // input/output key
+        List<Set<String>> inputs = new ArrayList<>();
+        List<Set<String>> outputs = new ArrayList<>();
+        List<Set<String>> resources = new ArrayList<>();
+        List<NodePolicy> nodePolicies = new ArrayList<>();
+        List<Map<String, Object>> params = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            inputs.add(nodeMetas.get(i).inputKeys());
+            outputs.add(nodeMetas.get(i).outputKeys());
+            resources.add(nodeMetas.get(i).resourceParams());
+            nodePolicies.add(NodePolicy.resolve(nodeMetas.get(i).annotation(), sortedNodes.get(i).getPolicy()));
+            params.add(Collections.unmodifiableMap(manualParams(sortedNodes.get(i), converter)));
+        }
+        this.inputKeys = List.copyOf(inputs);
+        this.outputKeys = List.copyOf(outputs);
+        this.resourceParams = List.copyOf(resources);
+        this.policies = List.copyOf(nodePolicies);
+        this.nodeParams = List.copyOf(params);
+        // 按 definition 中的顺序放入, 同名参数后者覆盖前者
+        Map<String, Object> initial = new HashMap<>();
+        for (FlowNode node : definitionNodes) {
+            initial.putAll(manualParams(node, converter));
+        }
+        this.initialParams = Collections.unmodifiableMap(initial);
+    }
+
+    public int size() {
+        return this.nodes.size();
+    }
+
+    public int[] indegrees() {
+        int[] result = new int[this.predecessors.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = this.predecessors[i].length;
+        }
+        return result;
+    }
+
+    // MANUAL 参数在编译时转换为字段声明的类型
+    private static Map<String, Object> manualParams(FlowNode node, ContextValueConverter converter) {
+        Map<String, Object> result = new HashMap<>();
+        if (MapUtils.isEmpty(node.getInputParams())) {
+            return result;
+        }
+        node.getInputParams().forEach((k, v) -> {
+            if (ParamSourceType.MANUAL.equals(v.getParamSourceType())) {
+                result.put(k, converter.convert(k, v.getValue()));
+            }
+        });
+        return result;
+    }
+}
@@ -1,33 +1,79 @@
 package com.flowstack.server.core.model.execution;
 
+import com.flowstack.server.core.model.definition.FlowNode;
+import lombok.AccessLevel;
 import lombok.Data;
-import lombok.RequiredArgsConstructor;
+import lombok.Getter;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Data
-@RequiredArgsConstructor
 public class FlowContext {
     private final Long registerId;
     private final String name;
-    private final UUID flowExecutionUuidV4 = UUID.randomUUID();
-    private final Map<String, Object> data = new HashMap<>();
+    private final UUID flowExecutionUuidV4;
+    @Getter(AccessLevel.NONE)
+    private final AtomicReference<ContextLayer> head; // flow 内所有 node 共享, 并行 node 各自在最新的层上追加
+    private final FlowNode currentNode; // null 表示 flow 级别的 context
+    private final Map<String, Object> nodeParams; // 当前 node 自己的 MANUAL 参数, 优先于共享数据
+
+    public FlowContext(Long registerId, String name) {
+        this(registerId, name, UUID.randomUUID());
+    }
+
+    // 从检查点恢复时沿用原来的 flowExecutionUuidV4
+    public FlowContext(Long registerId, String name, UUID flowExecutionUuidV4) {
+        this(registerId, name, flowExecutionUuidV4, new AtomicReference<>(ContextLayer.empty()), null, Map.of());
+    }
+
+    private FlowContext(
+            Long registerId,
+            String name,
+            UUID flowExecutionUuidV4,
+            AtomicReference<ContextLayer> head,
+            FlowNode currentNode,
+            Map<String, Object> nodeParams) {
+        this.registerId = registerId;
+        this.name = name;
+        this.flowExecutionUuidV4 = flowExecutionUuidV4;
+        this.head = head;
+        this.currentNode = currentNode;
+        this.nodeParams = nodeParams;
+    }
+
+    /**
+     * 生成 node 使用的 context. 共享数据不变, node 自己的 MANUAL 参数覆盖共享数据中的同名参数,
+     * 避免并行分支中同名参数(比如多个 backup 的 SOURCE_DIRECTORY)互相覆盖
+     */
+    public FlowContext forNode(FlowNode node, Map<String, Object> nodeParams) {
+        return new FlowContext(registerId, name, flowExecutionUuidV4, head, node, nodeParams);
+    }
 
     public void put(String key, Object value) {
-        data.put(key, value);
+        this.head.updateAndGet(layer -> layer.with(Collections.singletonMap(key, value)));
     }
 
-    public void putAll(NodeResult nodeResult) {
-        this.data.putAll(nodeResult.getReturnVal());
+    /**
+     * 一次放入多个值, 只生成一层
+     */
+    public void putAll(Map<String, Object> values) {
+        this.head.updateAndGet(layer -> layer.with(values));
     }
 
     public Object get(String key) {
-        return this.data.get(key);
+        if (this.nodeParams.containsKey(key)) {
+            return this.nodeParams.get(key);
+        }
+        return this.head.get().get(key);
     }
 
-    public Map<String, Object> getAllData() {
-        return new HashMap<>(data);
+    /**
+     * 当前数据的不可变快照, 不复制数据. node 的 MANUAL 参数作为最上面一层
+     */
+    public ContextLayer snapshot() {
+        return this.head.get().with(this.nodeParams);
     }
 }
@@ -15,6 +15,7 @@ public class NodeResult {
     private final ExecStatus execStatus;
     private final Map<String, Object> returnVal;
     private String error = "";
+    private int exitCode = 0; // 外部命令的 exit code, 不是外部命令导致的失败为 -1
 
     public static NodeResult success(Map<String, Object> result) {
         return new NodeResult(ExecStatus.SUCCESS, new HashMap<>(result));
@@ -25,6 +26,10 @@ public class NodeResult {
     }
 
     public static NodeResult failed(String error) {
-        return new NodeResult(ExecStatus.FAILED, new HashMap<>()).setError(error);
+        return failed(-1, error);
+    }
+
+    public static NodeResult failed(int exitCode, String error) {
+        return new NodeResult(ExecStatus.FAILED, new HashMap<>()).setError(error).setExitCode(exitCode);
     }
 }
@@ -0,0 +1,16 @@
+package com.flowstack.server.core.model.execution;
+
+/**
+ * node 执行进度, 从外部命令的输出中解析. 命令没有提供的字段为 null
+ *
+ * @param percentDone 0 ~ 1
+ * @param etaSeconds  预计剩余秒数
+ */
+public record ProgressUpdate(
+        Long bytesDone,
+        Long totalBytes,
+        Long filesDone,
+        Long totalFiles,
+        Double percentDone,
+        Long etaSeconds) {
+}
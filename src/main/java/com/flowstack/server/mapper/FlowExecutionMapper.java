@@ -3,7 +3,24 @@ package com.flowstack.server.mapper;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.flowstack.server.model.db.FlowExecutionEntity;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Select;
+
+import java.util.List;
 
 @Mapper
 public interface FlowExecutionMapper extends BaseMapper<FlowExecutionEntity> {
+
+    /**
+     * 每个 flow 最近一次执行的摘要, 不包含 context data.
+     * 使用 (flow_definition_id, start_time) 索引, 开始时间相同时可能返回多条
+     */
+    @Select("""
+            SELECT e.flow_execution_id, e.flow_definition_id, e.execution_status, e.start_time, e.end_time
+            FROM flow_execution e
+            JOIN (SELECT flow_definition_id, MAX(start_time) AS start_time
+                  FROM flow_execution
+                  GROUP BY flow_definition_id) last
+              ON e.flow_definition_id = last.flow_definition_id AND e.start_time = last.start_time
+            """)
+    List<FlowExecutionEntity> selectLastExecutions();
 }
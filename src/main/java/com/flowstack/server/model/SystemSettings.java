@@ -5,6 +5,9 @@ import lombok.NoArgsConstructor;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.util.HashMap;
+import java.util.Map;
+
 @ConfigurationProperties("flowstack.server")
 @Component
 @Data
@@ -13,6 +16,9 @@ public class SystemSettings {
 
     private Restic restic;
 
+    // 资源类型(disk, RESTIC_BACKUP_REPOSITORY, remote 等) -> 同时运行的 node 数量
+    private Map<String, Integer> resourceSlots = new HashMap<>();
+
     @Data
     public static class Restic {
         private String backupPath;
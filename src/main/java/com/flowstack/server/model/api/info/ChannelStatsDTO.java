@@ -0,0 +1,22 @@
+package com.flowstack.server.model.api.info;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+@Data
+@Accessors(chain = true)
+@NoArgsConstructor
+public class ChannelStatsDTO {
+    private Integer capacity; // 内存队列大小
+
+    private Integer memoryDepth; // 内存队列中的消息数量
+
+    private Integer spoolDepth; // spool 文件中未处理的消息数量
+
+    private Long spoolBytes;
+
+    private Integer maxSpoolDepth;
+
+    private Long spilledTotal; // 写入过 spool 的消息总数
+}
@@ -0,0 +1,16 @@
+package com.flowstack.server.model.api.info;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+import java.util.List;
+
+@Data
+@Accessors(chain = true)
+@NoArgsConstructor
+public class CursorPageDTO<T> {
+    private List<T> items;
+
+    private String nextCursor; // 没有下一页时为空
+}
@@ -0,0 +1,31 @@
+package com.flowstack.server.model.api.info;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+import java.time.Instant;
+
+/**
+ * 执行记录查询条件. 按 (start_time, id) 倒序, 使用上一页返回的 cursor 获取下一页
+ */
+@Data
+@Accessors(chain = true)
+@NoArgsConstructor
+public class ExecutionQueryDTO {
+    private Long flowDefinitionId;
+
+    private Long flowExecutionId; // 只用于查询 node execution
+
+    private String executionStatus;
+
+    private Instant startTimeFrom; // 包含
+
+    private Instant startTimeTo; // 不包含
+
+    private String cursor; // 为空表示第一页
+
+    private Integer limit; // 默认 50, 最大 500
+
+    private Boolean includeData = false; // 是否返回 context data / node 输入输出
+}
@@ -0,0 +1,35 @@
+package com.flowstack.server.model.api.info;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+import java.sql.Timestamp;
+import java.util.Map;
+
+@Data
+@Accessors(chain = true)
+@NoArgsConstructor
+public class FlowExecutionDTO {
+    @JsonSerialize(using = ToStringSerializer.class)
+    private Long flowExecutionId;
+
+    private String flowExecutionUuidV4;
+
+    @JsonSerialize(using = ToStringSerializer.class)
+    private Long flowDefinitionId;
+
+    private String executionStatus;
+
+    private String errorMessage;
+
+    private Timestamp startTime;
+
+    private Timestamp endTime;
+
+    private Boolean archived;
+
+    private Map<String, Object> contextData; // includeData 为 true 时返回
+}
@@ -23,4 +23,8 @@ public class FlowInfoDTO {
     private Long lastExecutionDuration; // 秒
 
     private Integer enabled;
+
+    private Integer retentionFullRuns; // 为空使用系统默认值
+
+    private Integer retentionSummaryDays; // 为空使用系统默认值, 0 永久保留
 }
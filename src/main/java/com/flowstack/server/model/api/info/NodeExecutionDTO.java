@@ -0,0 +1,42 @@
+package com.flowstack.server.model.api.info;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+import java.sql.Timestamp;
+import java.util.Map;
+
+@Data
+@Accessors(chain = true)
+@NoArgsConstructor
+public class NodeExecutionDTO {
+    @JsonSerialize(using = ToStringSerializer.class)
+    private Long nodeExecutionId;
+
+    private String nodeExecutionUuidV4;
+
+    @JsonSerialize(using = ToStringSerializer.class)
+    private Long flowExecutionId;
+
+    @JsonSerialize(using = ToStringSerializer.class)
+    private Long flowDefinitionId;
+
+    private String nodeId;
+
+    private String nodeName;
+
+    private String executionStatus;
+
+    private String nodeExecutionLog;
+
+    private Timestamp startTime;
+
+    private Timestamp endTime;
+
+    private Map<String, Object> inputData; // includeData 为 true 时返回
+
+    private Map<String, Object> outputData; // includeData 为 true 时返回
+}
@@ -0,0 +1,26 @@
+package com.flowstack.server.model.api.info;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+import java.util.Map;
+
+@Data
+@Accessors(chain = true)
+@NoArgsConstructor
+public class RunQueueStatsDTO {
+    private Integer maxConcurrentFlows;
+
+    private Integer maxBackgroundFlows; // 非 INTERACTIVE flow 的并发上限, 其余留给页面操作
+
+    private Integer running;
+
+    private Map<String, Integer> queued; // 优先级 -> 排队数量
+
+    private Map<String, Long> admitted; // 优先级 -> 已出队数量
+
+    private Map<String, Long> avgWaitMillis; // 优先级 -> 平均排队时间
+
+    private Map<String, Long> maxWaitMillis; // 优先级 -> 最大排队时间
+}
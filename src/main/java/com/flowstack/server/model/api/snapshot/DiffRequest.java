@@ -0,0 +1,14 @@
+package com.flowstack.server.model.api.snapshot;
+
+import com.flowstack.server.model.db.SnapshotMetaEntity;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DiffRequest {
+    private SnapshotMetaEntity fromSnapshot;
+    private SnapshotMetaEntity toSnapshot;
+}
@@ -0,0 +1,35 @@
+package com.flowstack.server.model.api.snapshot;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+import java.time.Instant;
+import java.util.List;
+
+@Data
+@Accessors(chain = true)
+@NoArgsConstructor
+public class PathSearchResultDTO {
+    private String name;
+
+    private String path;
+
+    private List<Version> versions; // 按 snapshot 入库顺序
+
+    /**
+     * 连续的 snapshot 中类型, 大小和 ctime 都相同的 path 算作一个版本
+     */
+    @Data
+    @Accessors(chain = true)
+    @NoArgsConstructor
+    public static class Version {
+        private String type;
+
+        private long size; // bytes, 文件夹是所有子节点的大小
+
+        private Instant ctime;
+
+        private List<String> snapshotIds;
+    }
+}
@@ -0,0 +1,19 @@
+package com.flowstack.server.model.api.snapshot;
+
+import com.flowstack.server.node.restic.model.SnapshotDiff;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+import java.util.List;
+
+@Data
+@Accessors(chain = true)
+@NoArgsConstructor
+public class SnapshotDiffPageDTO<T> {
+    private SnapshotDiff summary; // 只有统计信息
+
+    private List<T> items; // PathChange 或 DirectoryChange
+
+    private String nextCursor; // 没有下一页时为空
+}
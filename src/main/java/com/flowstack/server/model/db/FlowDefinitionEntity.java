@@ -51,9 +51,27 @@ public class FlowDefinitionEntity extends BaseEntity {
     @TableField(value = "cron_config")
     private String cronConfig;
 
+    /**
+     * 流程定义版本, definition 修改时递增, 用于执行计划缓存失效
+     */
+    @TableField("version")
+    private Integer version;
+
     /**
      * 是否启用（1:启用, 0:禁用）
      */
     @TableField("enabled")
     private Integer enabled;
+
+    /**
+     * 保留完整数据的最近执行次数, 为空时使用系统默认值
+     */
+    @TableField("retention_full_runs")
+    private Integer retentionFullRuns;
+
+    /**
+     * 归档后的执行摘要保留天数, 0 表示永久保留, 为空时使用系统默认值
+     */
+    @TableField("retention_summary_days")
+    private Integer retentionSummaryDays;
 }
@@ -65,4 +65,10 @@ public class FlowExecutionEntity extends BaseEntity {
      */
     @TableField("end_time")
     private Timestamp endTime;
+
+    /**
+     * 归档文件路径, 不为空表示 context data 和 node 数据已经移到归档文件, 只保留摘要
+     */
+    @TableField("archive_path")
+    private String archivePath;
 }
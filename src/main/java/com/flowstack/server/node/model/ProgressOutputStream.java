@@ -0,0 +1,66 @@
+package com.flowstack.server.node.model;
+
+import com.flowstack.server.core.model.execution.ProgressUpdate;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.exec.LogOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 命令输出写入 delegate 的同时按行解析进度. parser 对不是进度的行返回 null
+ */
+@Slf4j
+public class ProgressOutputStream extends OutputStream {
+    private final OutputStream delegate;
+    private final LogOutputStream lineParser;
+
+    public ProgressOutputStream(
+            OutputStream delegate,
+            Function<String, ProgressUpdate> parser,
+            Consumer<ProgressUpdate> reporter) {
+        this.delegate = delegate;
+        this.lineParser = new LogOutputStream(0, StandardCharsets.UTF_8) {
+            @Override
+            protected void processLine(String line, int logLevel) {
+                try {
+                    ProgressUpdate update = parser.apply(line);
+                    if (update != null) {
+                        reporter.accept(update);
+                    }
+                } catch (Exception e) {
+                    // 进度解析失败不影响命令执行
+                    log.debug("进度解析失败. line: {}", line, e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.delegate.write(b);
+        this.lineParser.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.delegate.write(b, off, len);
+        this.lineParser.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.delegate.flush();
+        this.lineParser.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // 处理最后一行没有换行符的输出
+        this.lineParser.close();
+        this.delegate.close();
+    }
+}
@@ -26,7 +26,13 @@ import java.util.Map;
         },
         outputParams = {
                 FieldRegistry.RCLONE_COPY_RESULT
-        }
+        },
+        resourceParams = {
+                FieldRegistry.SOURCE_DIRECTORY,
+                FieldRegistry.DST_DIRECTORY
+        },
+        maxAttempts = 3,
+        retryableExitCodes = {5} // RcloneExitCode.RETRY_ERROR
 )
 @Slf4j
 public class LocalCopy extends BaseNode {
@@ -49,7 +55,7 @@ public class LocalCopy extends BaseNode {
             }
             return NodeResult.success(Map.of(FieldRegistry.RCLONE_COPY_RESULT, copyResult));
         } else {
-            return NodeResult.failed(commandResult.getError());
+            return NodeResult.failed(commandResult.getExitCode(), commandResult.getError());
         }
     }
 
@@ -64,6 +70,9 @@ public class LocalCopy extends BaseNode {
         commandLine.addArgument("--log-level");
         commandLine.addArgument("NOTICE");
         commandLine.addArgument("--stats-one-line");
+        // 每秒输出一次 stats 作为进度, 最后一行仍然是最终结果
+        commandLine.addArgument("--stats");
+        commandLine.addArgument("1s");
         commandLine.addArgument("--error-on-no-transfer");
         return commandLine;
     }
@@ -1,6 +1,7 @@
 package com.flowstack.server.node.rclone;
 
 import com.flowstack.server.core.annotaion.Node;
+import com.flowstack.server.core.enums.BackoffStrategy;
 import com.flowstack.server.core.model.base.BaseNode;
 import com.flowstack.server.core.model.execution.FlowContext;
 import com.flowstack.server.core.model.execution.NodeResult;
@@ -13,6 +14,8 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.Set;
+
 @Node(
         name = "sync_sftp",
         description = "使用 rclone sync + sftp 后端, 同步文件夹",
@@ -21,7 +24,12 @@ import org.apache.commons.lang3.StringUtils;
                 FieldRegistry.SOURCE_DIRECTORY,
                 FieldRegistry.RCLONE_SFTP_CONNECTION,
                 FieldRegistry.DST_DIRECTORY
-        }
+        },
+        resourceParams = {FieldRegistry.SOURCE_DIRECTORY},
+        maxAttempts = 3,
+        backoff = BackoffStrategy.EXPONENTIAL,
+        backoffSeconds = 60,
+        retryableExitCodes = {5} // RcloneExitCode.RETRY_ERROR, 认证和配置错误(1)重试没有意义
 )
 @Slf4j
 public class SyncSFTP extends BaseNode {
@@ -51,11 +59,28 @@ public class SyncSFTP extends BaseNode {
                 this.obscured(connectionInfo[2]),
                 dstDir)
         );
+        // 每秒输出一次 json 格式的 stats 作为进度
+        commandLine.addArgument("--use-json-log");
+        commandLine.addArgument("--stats-log-level");
+        commandLine.addArgument("NOTICE");
+        commandLine.addArgument("--stats-one-line");
+        commandLine.addArgument("--stats");
+        commandLine.addArgument("1s");
         // 命令执行
         CommandResult commandResult = RcloneUtil.execute(commandLine, true);
         return commandResult.isSuccess() ?
                 NodeResult.success() :
-                NodeResult.failed(commandResult.getError());
+                NodeResult.failed(commandResult.getExitCode(), commandResult.getError());
+    }
+
+    @Override
+    public Set<String> resourceKeys(FlowContext context) {
+        // 只使用 host, 不能把密码放进资源 key. 缺少连接信息时由 execute 返回失败
+        if (!(context.get(FieldRegistry.RCLONE_SFTP_CONNECTION) instanceof String sftpConnection)
+                || StringUtils.isBlank(sftpConnection)) {
+            return Set.of();
+        }
+        return Set.of("remote:" + sftpConnection.split(";")[0]);
     }
 
     private String obscured(String password) {
@@ -1,49 +1,193 @@
 package com.flowstack.server.node.rclone.utils;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.flowstack.server.core.engine.NodeDeadline;
+import com.flowstack.server.core.engine.NodeProgress;
+import com.flowstack.server.core.model.execution.ProgressUpdate;
+import com.flowstack.server.exception.BusinessException;
 import com.flowstack.server.node.model.CommandResult;
+import com.flowstack.server.node.model.ProgressOutputStream;
 import com.flowstack.server.node.rclone.enums.RcloneExitCode;
+import com.flowstack.server.node.utils.LimitedOutputStream;
+import com.flowstack.server.node.utils.ProcessRunner;
+import com.flowstack.server.util.JsonUtil;
 import lombok.extern.slf4j.Slf4j;
 import net.sf.jsqlparser.util.validation.ValidationException;
-import org.apache.commons.exec.*;
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.LogOutputStream;
 import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 @Slf4j
 public class RcloneUtil {
+    // 不在 node 中执行时的超时时间. 计算公式 = 100G 文件同步 / 30MB/s 机械硬盘速度 / 60 ~= 60 分钟
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(60L);
+
+    // 在内存中保留的 stdout 上限
+    private static final int MAX_OUTPUT_BYTES = 16 * 1024 * 1024;
+
+    // 失败时作为错误信息的日志行数
+    private static final int MAX_ERROR_LINES = 50;
+
+    /**
+     * @param parseErr 为 true 时返回 stderr 作为输出(--use-json-log 的日志), 只保留最后一部分, 最后一行是最终的 stats,
+     *                 stdout 被丢弃. 为 false 时返回 stdout, 只用于输出较小的命令, 超过 MAX_OUTPUT_BYTES 时返回失败
+     */
     public static CommandResult execute(CommandLine commandLine, boolean parseErr)
             throws ValidationException {
-        Executor executor = DefaultExecutor.builder().get();
-        // 1. 创建输出流处理器（捕获 stdout/stderr）
-        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
-        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
-        executor.setStreamHandler(new PumpStreamHandler(stdout, stderr));
-        // 2. 设置超时. 计算公式 = 100G 文件同步 / 30MB/s 机械硬盘速度 / 60 ~= 60 分钟
-        ExecuteWatchdog watchdog = ExecuteWatchdog.builder().setTimeout(Duration.ofMinutes(60L)).get();
-        executor.setWatchdog(watchdog);
-        try {
-            // 3. 阻塞执行
-            int exitCode = executor.execute(commandLine);
-            RcloneExitCode rcloneExitCode = RcloneExitCode.fromCode(exitCode);
-            if (rcloneExitCode.isSuccess()) {
-                return CommandResult.success(exitCode, getStdAsString(parseErr ? stderr : stdout));
-            } else {
-                return CommandResult.failed(exitCode, getStdAsString(stderr));
+        return execute(commandLine, parseErr, false);
+    }
+
+    /**
+     * @param auditOutput 为 true 时保留 stdout 的原始输出用于审计: parseErr 时 stdout 不再丢弃,
+     *                    超过 MAX_OUTPUT_BYTES 后完整写入临时文件 flowstack-rclone-*.log, 文件路径写入日志和错误信息,
+     *                    由运维清理
+     */
+    public static CommandResult execute(CommandLine commandLine, boolean parseErr, boolean auditOutput)
+            throws ValidationException {
+        LimitedOutputStream stdout = parseErr && !auditOutput ? null :
+                new LimitedOutputStream(MAX_OUTPUT_BYTES, auditOutput ? "flowstack-rclone-" : null);
+        // stderr 中的 stats 实时解析为进度, 其他日志保留最后几行作为错误信息.
+        // 输出在 pump 线程读取, 上报方法在当前线程获取
+        ErrorLogOutputStream errorLog = new ErrorLogOutputStream();
+        ProgressOutputStream progress = new ProgressOutputStream(
+                errorLog,
+                RcloneUtil::parseProgress,
+                NodeProgress.current()
+        );
+        // 在 node 中执行时使用 node 剩余的时间作为超时
+        ProcessRunner.Result result = ProcessRunner.run(
+                commandLine,
+                null,
+                null,
+                NodeDeadline.remaining(DEFAULT_TIMEOUT),
+                stdout == null ? OutputStream.nullOutputStream() : stdout,
+                progress
+        );
+        if (stdout != null) {
+            closeQuietly(stdout);
+            if (stdout.getSpillFile() != null) {
+                log.info("rclone 输出 {} 字节, 完整输出保存在 {}", stdout.getWritten(), stdout.getSpillFile());
             }
-        } catch (Exception e) {
+        }
+        if (result.exception() != null) {
             return CommandResult.failed(
                     RcloneExitCode.ERROR_WITHOUT_EXITCODE.getCode(),
-                    "exception: %s with stderr: %s".formatted(e, getStdAsString(stderr))
+                    "exception: %s with stderr: %s".formatted(result.exception(), errorLog.orElse(result.stderrTail()))
             );
         }
+        if (result.timedOut()) {
+            return CommandResult.failed(
+                    result.exitCode(),
+                    "rclone 执行超时. stderr: %s".formatted(errorLog.orElse(result.stderrTail()))
+            );
+        }
+        RcloneExitCode rcloneExitCode = RcloneExitCode.fromCode(result.exitCode());
+        if (ObjectUtils.isEmpty(rcloneExitCode) || !rcloneExitCode.isSuccess()) {
+            return CommandResult.failed(result.exitCode(), errorLog.orElse(result.stderrTail()));
+        }
+        if (parseErr) {
+            return CommandResult.success(result.exitCode(), result.stderrTail());
+        }
+        if (stdout.isOverflowed()) {
+            return CommandResult.failed(
+                    RcloneExitCode.ERROR_WITHOUT_EXITCODE.getCode(),
+                    stdout.getSpillFile() == null ?
+                            "rclone 输出 %s 字节, 超过上限 %s 字节".formatted(stdout.getWritten(), MAX_OUTPUT_BYTES) :
+                            "rclone 输出 %s 字节, 超过上限 %s 字节, 完整输出保存在 %s".formatted(
+                                    stdout.getWritten(), MAX_OUTPUT_BYTES, stdout.getSpillFile())
+            );
+        }
+        return CommandResult.success(result.exitCode(), stdout.toString());
+    }
+
+    private static void closeQuietly(OutputStream outputStream) {
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            log.warn("rclone 输出文件关闭失败", e);
+        }
+    }
+
+    /**
+     * 解析 rclone --use-json-log --stats 输出的 stats 日志
+     */
+    static ProgressUpdate parseProgress(String line) {
+        if (!line.contains("\"stats\"")) {
+            return null;
+        }
+        JsonNode stats = JsonUtil.readTree(line).path("stats");
+        if (!stats.isObject()) {
+            return null;
+        }
+        Long bytes = longOrNull(stats, "bytes");
+        Long totalBytes = longOrNull(stats, "totalBytes");
+        Double percentDone = ObjectUtils.allNotNull(bytes, totalBytes) && totalBytes > 0 ?
+                (double) bytes / totalBytes : null;
+        return new ProgressUpdate(
+                bytes,
+                totalBytes,
+                longOrNull(stats, "transfers"),
+                longOrNull(stats, "totalTransfers"),
+                percentDone,
+                longOrNull(stats, "eta")
+        );
+    }
+
+    private static Long longOrNull(JsonNode node, String field) {
+        return node.hasNonNull(field) ? node.get(field).asLong() : null;
     }
 
-    private static String getStdAsString(ByteArrayOutputStream std) {
-        if (ObjectUtils.isEmpty(std)) {
-            return "";
+    /**
+     * 保留 stderr 中最后 MAX_ERROR_LINES 行不是 stats 的日志. --stats 1s 每秒输出一行 stats,
+     * stderr 的最后一部分几乎全是 stats, 真正的错误被挤掉. json 日志转换为 "level: msg"
+     */
+    private static final class ErrorLogOutputStream extends LogOutputStream {
+        private final Deque<String> lines = new ArrayDeque<>();
+
+        private ErrorLogOutputStream() {
+            super(0, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        protected synchronized void processLine(String line, int logLevel) {
+            String message = toMessage(line);
+            if (StringUtils.isBlank(message)) {
+                return;
+            }
+            if (this.lines.size() == MAX_ERROR_LINES) {
+                this.lines.removeFirst();
+            }
+            this.lines.addLast(message);
+        }
+
+        /**
+         * 没有 stats 以外的日志时返回 defaultError
+         */
+        private synchronized String orElse(String defaultError) {
+            return this.lines.isEmpty() ? defaultError : String.join("\n", this.lines);
+        }
+
+        private static String toMessage(String line) {
+            if (!line.startsWith("{")) {
+                return line;
+            }
+            try {
+                JsonNode log = JsonUtil.readTree(line);
+                if (log.has("stats")) {
+                    return null;
+                }
+                return "%s: %s".formatted(log.path("level").asText(), log.path("msg").asText());
+            } catch (BusinessException e) {
+                return line;
+            }
         }
-        return std.toString(StandardCharsets.UTF_8).trim();
     }
 }
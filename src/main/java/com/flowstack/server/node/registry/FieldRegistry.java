@@ -2,17 +2,26 @@ package com.flowstack.server.node.registry;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.flowstack.server.core.model.execution.FlowContext;
+import com.flowstack.server.exception.ValidationException;
 import com.flowstack.server.node.rclone.model.CopyResult;
+import com.flowstack.server.node.restic.model.BackupSummary;
 import com.flowstack.server.node.restic.model.Snapshot;
+import com.flowstack.server.node.restic.model.SnapshotDiff;
 import com.flowstack.server.node.restic.model.SnapshotNode;
+import com.flowstack.server.node.restic.utils.ResticJsonDecoder;
 import com.flowstack.server.util.JsonUtil;
 import lombok.RequiredArgsConstructor;
 import org.apache.commons.lang3.ObjectUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 @RequiredArgsConstructor
 public final class FieldRegistry {
@@ -37,6 +46,12 @@ public final class FieldRegistry {
 
     public static final String RESTIC_RESTORE_RESULT = "RESTIC_RESTORE_RESULT";
 
+    public static final String RESTIC_DIFF_FROM_SNAPSHOT_ID = "RESTIC_DIFF_FROM_SNAPSHOT_ID";
+
+    public static final String RESTIC_DIFF_TO_SNAPSHOT_ID = "RESTIC_DIFF_TO_SNAPSHOT_ID";
+
+    public static final String RESTIC_SNAPSHOT_DIFF = "RESTIC_SNAPSHOT_DIFF";
+
     public static final String DST_DIRECTORY = "DST_DIRECTORY";
 
     // etc: host;user;password
@@ -47,6 +62,11 @@ public final class FieldRegistry {
     // 静态元数据映射表
     private static final Map<String, Definition> FieldDefinitionMap = new HashMap<>();
 
+    // 旧版本以字符串保存, 后来改为其他类型的字段. 从检查点恢复旧的执行时按旧格式解析
+    private static final Map<String, Function<String, Object>> LegacyStringParserMap = Map.of(
+            RESTIC_BACKUP_RESULT, FieldRegistry::parseLegacyBackupResult
+    );
+
     static {
         // 初始化元数据映射关系
         FieldDefinitionMap.put(SOURCE_DIRECTORY, new Definition(
@@ -80,9 +100,9 @@ public final class FieldRegistry {
                 "restic"
         ));
         FieldDefinitionMap.put(RESTIC_BACKUP_RESULT, new Definition(
-                new TypeReference<String>() {
+                new TypeReference<BackupSummary>() {
                 },
-                "restic 备份结果(json lines)",
+                "restic 备份结果(summary)",
                 "restic"
         ));
         FieldDefinitionMap.put(RESTIC_SNAPSHOTS, new Definition(
@@ -115,6 +135,24 @@ public final class FieldRegistry {
                 "restic restore 的结果(单个文件则保持原样, 文件夹或多个文件/文件夹则 zip 文件",
                 "restic"
         ));
+        FieldDefinitionMap.put(RESTIC_DIFF_FROM_SNAPSHOT_ID, new Definition(
+                new TypeReference<String>() {
+                },
+                "对比的旧 snapshot id",
+                "restic"
+        ));
+        FieldDefinitionMap.put(RESTIC_DIFF_TO_SNAPSHOT_ID, new Definition(
+                new TypeReference<String>() {
+                },
+                "对比的新 snapshot id",
+                "restic"
+        ));
+        FieldDefinitionMap.put(RESTIC_SNAPSHOT_DIFF, new Definition(
+                new TypeReference<SnapshotDiff>() {
+                },
+                "两个 snapshot 的差异统计",
+                "restic"
+        ));
         FieldDefinitionMap.put(RCLONE_SFTP_CONNECTION, new Definition(
                 new TypeReference<String>() {},
                 "rclone sftp 连接信息(host;user;password)",
@@ -149,13 +187,61 @@ public final class FieldRegistry {
         //
         Object rawValue = context.get(fieldName);
         if (rawValue == null) {
-            throw new IllegalStateException("在 context %s 中找不到 %s 的值".formatted(
+            throw new IllegalStateException("在 context 中找不到 %s 的值, 已有的 key: %s".formatted(
                     fieldName,
-                    context.getData()));
+                    context.snapshot().keys()));
+        }
+        // 值进入 context 时已经转换过, 这里通常只是类型转换
+        if (JsonUtil.isRawInstance(rawValue, definition.typeReference())) {
+            return (T) rawValue;
         }
         return (T) JsonUtil.convertValue(rawValue, definition.typeReference());
     }
 
+    /**
+     * 转换为字段声明的类型, 已经是声明的类型时原样返回. 没有定义的字段原样返回
+     */
+    public static Object convert(String fieldName, Object value) {
+        Definition definition = getMeta(fieldName);
+        if (ObjectUtils.isEmpty(definition)) {
+            return value;
+        }
+        if (value instanceof String legacyValue && LegacyStringParserMap.containsKey(fieldName)) {
+            try {
+                return LegacyStringParserMap.get(fieldName).apply(legacyValue);
+            } catch (IllegalArgumentException e) {
+                throw new ValidationException("字段 %s 的旧格式值无法解析, 需要 %s".formatted(
+                        fieldName,
+                        definition.typeReference().getType().getTypeName()), e);
+            }
+        }
+        try {
+            return JsonUtil.convertIfNeeded(value, definition.typeReference());
+        } catch (IllegalArgumentException e) {
+            throw new ValidationException("字段 %s 的值类型不正确, 需要 %s".formatted(
+                    fieldName,
+                    definition.typeReference().getType().getTypeName()), e);
+        }
+    }
+
+    /**
+     * 旧版本保存的是 restic backup --json 的完整输出(json lines), 取其中的 summary 消息
+     */
+    private static BackupSummary parseLegacyBackupResult(String output) {
+        AtomicReference<BackupSummary> summary = new AtomicReference<>();
+        try {
+            new ResticJsonDecoder()
+                    .on("summary", BackupSummary.class, summary::set)
+                    .decode(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("restic backup 输出不是 json", e);
+        }
+        if (summary.get() == null) {
+            throw new IllegalArgumentException("restic backup 输出中没有 summary");
+        }
+        return summary.get();
+    }
+
     public static Definition getMeta(String name) {
         return FieldDefinitionMap.get(name);
     }
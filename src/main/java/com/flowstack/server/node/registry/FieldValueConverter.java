@@ -0,0 +1,12 @@
+package com.flowstack.server.node.registry;
+
+import com.flowstack.server.core.engine.ContextValueConverter;
+import org.springframework.stereotype.Component;
+
+@Component
+public class FieldValueConverter implements ContextValueConverter {
+    @Override
+    public Object convert(String key, Object value) {
+        return FieldRegistry.convert(key, value);
+    }
+}
@@ -1,11 +1,14 @@
 package com.flowstack.server.node.restic;
 
 import com.flowstack.server.core.annotaion.Node;
+import com.flowstack.server.core.enums.BackoffStrategy;
 import com.flowstack.server.core.model.base.BaseNode;
 import com.flowstack.server.core.model.execution.FlowContext;
 import com.flowstack.server.core.model.execution.NodeResult;
 import com.flowstack.server.node.model.CommandResult;
 import com.flowstack.server.node.registry.FieldRegistry;
+import com.flowstack.server.node.restic.model.BackupSummary;
+import com.flowstack.server.node.restic.utils.ResticJsonDecoder;
 import com.flowstack.server.node.restic.utils.ResticUtil;
 import com.flowstack.server.util.FilesystemUtil;
 import lombok.extern.slf4j.Slf4j;
@@ -13,6 +16,7 @@ import org.apache.commons.exec.CommandLine;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Node(
         name = "backup",
@@ -23,7 +27,15 @@ import java.util.Map;
                 FieldRegistry.RESTIC_BACKUP_REPOSITORY,
                 FieldRegistry.RESTIC_PASSWORD
         },
-        outputParams = {FieldRegistry.RESTIC_BACKUP_RESULT}
+        outputParams = {FieldRegistry.RESTIC_BACKUP_RESULT},
+        resourceParams = {
+                FieldRegistry.SOURCE_DIRECTORY,
+                FieldRegistry.RESTIC_BACKUP_REPOSITORY
+        },
+        timeoutSeconds = 7200,
+        maxAttempts = 3,
+        backoff = BackoffStrategy.EXPONENTIAL,
+        retryableExitCodes = {11} // ResticExitCode.FAILED_TO_LOCK_REPOSITORY
 )
 @Slf4j
 public class Backup extends BaseNode {
@@ -45,15 +57,21 @@ public class Backup extends BaseNode {
         commandLine.addArgument("backup");
         commandLine.addArgument(".");
         commandLine.addArgument("--skip-if-unchanged");
-        // 执行备份
-        CommandResult result = ResticUtil.execute(
+        // 执行备份, status 消息转换为进度, 只保留最后的 summary
+        AtomicReference<BackupSummary> summary = new AtomicReference<>();
+        CommandResult result = ResticUtil.decode(
                 resticPassword,
                 resticBackupRepository,
                 sourceDirectory,
-                commandLine
+                commandLine,
+                new ResticJsonDecoder().on("summary", BackupSummary.class, summary::set)
         );
-        return result.isSuccess() ?
-                NodeResult.success(Map.of(FieldRegistry.RESTIC_BACKUP_RESULT, result.getOutput())) :
-                NodeResult.failed(result.getError());
+        if (!result.isSuccess()) {
+            return NodeResult.failed(result.getExitCode(), result.getError());
+        }
+        if (summary.get() == null) {
+            return NodeResult.failed(result.getExitCode(), "restic backup 没有输出 summary");
+        }
+        return NodeResult.success(Map.of(FieldRegistry.RESTIC_BACKUP_RESULT, summary.get()));
     }
 }
@@ -11,6 +11,10 @@ import com.flowstack.server.mapper.SnapshotMetaMapper;
 import com.flowstack.server.model.db.SnapshotMetaEntity;
 import com.flowstack.server.node.registry.FieldRegistry;
 import com.flowstack.server.node.restic.model.Snapshot;
+import com.flowstack.server.service.SnapshotDiffService;
+import com.flowstack.server.service.SnapshotIndexService;
+import com.flowstack.server.service.SnapshotLsCache;
+import com.flowstack.server.service.SnapshotSearchService;
 import com.flowstack.server.util.JsonUtil;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -31,6 +35,10 @@ import java.util.List;
 @RequiredArgsConstructor
 public class DeleteSnapMeta extends BaseNode {
     private final SnapshotMetaMapper snapshotMetaMapper;
+    private final SnapshotIndexService snapshotIndexService;
+    private final SnapshotLsCache snapshotLsCache;
+    private final SnapshotDiffService snapshotDiffService;
+    private final SnapshotSearchService snapshotSearchService;
 
     @Override
     public NodeResult execute(FlowContext context) {
@@ -53,6 +61,7 @@ public class DeleteSnapMeta extends BaseNode {
         if (updateResult.size() != deletedSnapshotMetaEntity.size()) {
             return NodeResult.failed("更新 db 失败");
         }
+        deletedSnapshotMetaEntity.forEach(n -> this.dropSnapshotData(n.getSnapshotId()));
         return NodeResult.success();
     }
 
@@ -67,5 +76,14 @@ public class DeleteSnapMeta extends BaseNode {
         if (batchResults.size() != dbResult.size()) {
             throw new BusinessException("更新 DB 失败");
         }
+        dbResult.forEach(n -> this.dropSnapshotData(n.getSnapshotId()));
+    }
+
+    // 删除 snapshot 的索引, ls 缓存, diff 缓存和搜索数据
+    private void dropSnapshotData(String snapshotId) {
+        this.snapshotIndexService.delete(snapshotId);
+        this.snapshotLsCache.invalidateSnapshot(snapshotId);
+        this.snapshotDiffService.invalidateSnapshot(snapshotId);
+        this.snapshotSearchService.removeSnapshot(snapshotId);
     }
 }
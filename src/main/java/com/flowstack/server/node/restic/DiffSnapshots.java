@@ -0,0 +1,49 @@
+package com.flowstack.server.node.restic;
+
+import com.flowstack.server.core.annotaion.Node;
+import com.flowstack.server.core.model.base.BaseNode;
+import com.flowstack.server.core.model.execution.FlowContext;
+import com.flowstack.server.core.model.execution.NodeResult;
+import com.flowstack.server.node.registry.FieldRegistry;
+import com.flowstack.server.node.restic.model.SnapshotDiff;
+import com.flowstack.server.service.SnapshotDiffService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Map;
+
+@Node(
+        name = "snapshot_diff",
+        description = "对比两个 snapshot, 输出增加, 删除, 修改的数量和字节数. 完整的变化列表通过 /restic/diff 分页获取",
+        group = "restic",
+        inputParams = {
+                FieldRegistry.RESTIC_DIFF_FROM_SNAPSHOT_ID,
+                FieldRegistry.RESTIC_DIFF_TO_SNAPSHOT_ID,
+                FieldRegistry.RESTIC_PASSWORD,
+                FieldRegistry.RESTIC_BACKUP_REPOSITORY
+        },
+        outputParams = {
+                FieldRegistry.RESTIC_SNAPSHOT_DIFF
+        },
+        resourceParams = {FieldRegistry.RESTIC_BACKUP_REPOSITORY}
+)
+@Slf4j
+@RequiredArgsConstructor
+public class DiffSnapshots extends BaseNode {
+    private final SnapshotDiffService snapshotDiffService;
+
+    @Override
+    public NodeResult execute(FlowContext context) {
+        String fromSnapshotId = FieldRegistry.getString(FieldRegistry.RESTIC_DIFF_FROM_SNAPSHOT_ID, context);
+        String toSnapshotId = FieldRegistry.getString(FieldRegistry.RESTIC_DIFF_TO_SNAPSHOT_ID, context);
+        String password = FieldRegistry.getString(FieldRegistry.RESTIC_PASSWORD, context);
+        String repository = FieldRegistry.getString(FieldRegistry.RESTIC_BACKUP_REPOSITORY, context);
+        if (StringUtils.isAnyBlank(fromSnapshotId, toSnapshotId, password, repository)) {
+            return NodeResult.failed("fromSnapshotId, toSnapshotId, password, repository 不能为空");
+        }
+        SnapshotDiff diff = this.snapshotDiffService.diff(repository, password, fromSnapshotId, toSnapshotId);
+        // 变化列表可能很大, 只把统计信息写入 context
+        return NodeResult.success(Map.of(FieldRegistry.RESTIC_SNAPSHOT_DIFF, diff.toSummary()));
+    }
+}
@@ -7,13 +7,16 @@ import com.flowstack.server.core.model.execution.NodeResult;
 import com.flowstack.server.node.model.CommandResult;
 import com.flowstack.server.node.registry.FieldRegistry;
 import com.flowstack.server.node.restic.model.SnapshotNode;
+import com.flowstack.server.node.restic.utils.ResticJsonDecoder;
 import com.flowstack.server.node.restic.utils.ResticUtil;
-import com.flowstack.server.util.JsonUtil;
+import com.flowstack.server.service.SnapshotLsCache;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -32,7 +35,10 @@ import java.util.Map;
         }
 )
 @Slf4j
+@RequiredArgsConstructor
 public class FetchSnapNodes extends BaseNode {
+    private final SnapshotLsCache snapshotLsCache;
+
     @Override
     public NodeResult execute(FlowContext context) {
         String snapshotId = FieldRegistry.getString(FieldRegistry.RESTIC_SNAPSHOT_ID, context);
@@ -48,17 +54,44 @@ public class FetchSnapNodes extends BaseNode {
         commandLine.addArgument(snapshotId);
         commandLine.addArgument(filter);
         commandLine.addArgument("--json");
-        CommandResult commandResult = ResticUtil.execute(password, repository, commandLine);
-        if (!commandResult.isSuccess()) {
-            return NodeResult.failed(commandResult.getError());
+        // 相同 snapshot 和 filter 的结果直接使用缓存
+        List<SnapshotNode> snapshotNodes;
+        try {
+            snapshotNodes = this.snapshotLsCache.get(repository, snapshotId, filter,
+                    () -> ls(password, repository, commandLine));
+        } catch (LsFailedException e) {
+            return NodeResult.failed(e.exitCode, e.getMessage());
         }
-        List<SnapshotNode> snapshotNodes = JsonUtil.aggResticOutputByMsgType(
-                commandResult.getOutput(),
-                "node",
-                SnapshotNode.class
-        );
         return CollectionUtils.isEmpty(snapshotNodes) ?
                 NodeResult.success() :
                 NodeResult.success(Map.of(FieldRegistry.RESTIC_SNAPSHOT_NODES, snapshotNodes));
     }
+
+    private static List<SnapshotNode> ls(String password, String repository, CommandLine commandLine) {
+        // restic 运行的同时流式解析, 不在内存中保留 restic 的原始输出
+        List<SnapshotNode> snapshotNodes = new ArrayList<>();
+        CommandResult commandResult = ResticUtil.decode(
+                password,
+                repository,
+                null,
+                commandLine,
+                new ResticJsonDecoder().on("node", SnapshotNode.class, snapshotNodes::add)
+        );
+        if (!commandResult.isSuccess()) {
+            throw new LsFailedException(commandResult.getExitCode(), commandResult.getError());
+        }
+        return snapshotNodes;
+    }
+
+    /**
+     * restic ls 失败, 等待同一次 ls 的调用方也会收到
+     */
+    private static class LsFailedException extends RuntimeException {
+        private final int exitCode;
+
+        LsFailedException(int exitCode, String message) {
+            super(message);
+            this.exitCode = exitCode;
+        }
+    }
 }
@@ -7,8 +7,8 @@ import com.flowstack.server.core.model.execution.NodeResult;
 import com.flowstack.server.node.model.CommandResult;
 import com.flowstack.server.node.registry.FieldRegistry;
 import com.flowstack.server.node.restic.model.Snapshot;
+import com.flowstack.server.node.restic.utils.ResticJsonDecoder;
 import com.flowstack.server.node.restic.utils.ResticUtil;
-import com.flowstack.server.util.JsonUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.lang3.StringUtils;
@@ -42,21 +42,18 @@ public class FetchSnapshots extends BaseNode {
         CommandLine commandLine = new CommandLine("restic");
         commandLine.addArgument("--json");
         commandLine.addArgument("snapshots");
-        CommandResult result = ResticUtil.execute(
+        // snapshots 输出一个 json 数组, 元素没有 message_type, 逐个绑定
+        List<Snapshot> snapshots = new ArrayList<>();
+        CommandResult result = ResticUtil.decode(
                 resticPassword,
                 resticBackupRepository,
-                commandLine
+                null,
+                commandLine,
+                new ResticJsonDecoder().onUntyped(Snapshot.class, snapshots::add)
         );
         if (!result.isSuccess()) {
-            return NodeResult.failed("restic 运行失败: " + result.getError());
+            return NodeResult.failed(result.getExitCode(), "restic 运行失败: " + result.getError());
         }
-        String jsonOutput = result.getOutput();
-        if (StringUtils.isBlank(jsonOutput)) {
-            return NodeResult.success(
-                    Map.of(FieldRegistry.RESTIC_SNAPSHOTS, new ArrayList<List<Snapshot>>())
-            );
-        }
-        List<Snapshot> snapshots = JsonUtil.deserToList(jsonOutput, Snapshot.class);
         return NodeResult.success(
                 Map.of(FieldRegistry.RESTIC_SNAPSHOTS, snapshots)
         );
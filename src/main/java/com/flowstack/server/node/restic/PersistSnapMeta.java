@@ -8,6 +8,7 @@ import com.flowstack.server.mapper.SnapshotMetaMapper;
 import com.flowstack.server.model.db.SnapshotMetaEntity;
 import com.flowstack.server.node.registry.FieldRegistry;
 import com.flowstack.server.node.restic.model.Snapshot;
+import com.flowstack.server.service.SnapshotIndexService;
 import com.flowstack.server.util.JsonUtil;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -32,6 +33,7 @@ import java.util.Set;
 @RequiredArgsConstructor
 public class PersistSnapMeta extends BaseNode {
     private final SnapshotMetaMapper snapshotMetaMapper;
+    private final SnapshotIndexService snapshotIndexService;
 
     @Override
     public NodeResult execute(FlowContext context) {
@@ -58,6 +60,8 @@ public class PersistSnapMeta extends BaseNode {
         if (insertResult.size() != snapshotMetaEntityList.size()) {
             return NodeResult.failed("插入 db 失败");
         }
+        // 新的 snapshot 在后台生成目录树索引
+        snapshotMetaEntityList.forEach(this.snapshotIndexService::submitBuild);
         return NodeResult.success();
     }
 
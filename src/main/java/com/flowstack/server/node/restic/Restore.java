@@ -7,6 +7,7 @@ import com.flowstack.server.core.model.execution.NodeResult;
 import com.flowstack.server.node.model.CommandResult;
 import com.flowstack.server.node.registry.FieldRegistry;
 import com.flowstack.server.node.restic.model.SnapshotNode;
+import com.flowstack.server.node.restic.utils.ResticJsonDecoder;
 import com.flowstack.server.node.restic.utils.ResticUtil;
 import com.flowstack.server.util.FilesystemUtil;
 import lombok.extern.slf4j.Slf4j;
@@ -61,9 +62,10 @@ public class Restore extends BaseNode {
         CommandLine commandLine = snapshotNodes.size() == 1 ?
                 this.buildCommandLine(snapshotId, snapshotNodes.get(0), tempDirectory) :
                 this.buildCommandLine(snapshotId, snapshotNodes, tempDirectory);
-        CommandResult commandResult = ResticUtil.execute(password, repository, commandLine);
+        // --json 输出只用于进度, 流式解析, 不在内存中保留
+        CommandResult commandResult = ResticUtil.decode(password, repository, null, commandLine, new ResticJsonDecoder());
         if (!commandResult.isSuccess()) {
-            return NodeResult.failed(commandResult.getError());
+            return NodeResult.failed(commandResult.getExitCode(), commandResult.getError());
         }
         // pack files and dirs
         if (snapshotNodes.size() == 1 && snapshotNodes.get(0).isFile()) {
@@ -82,6 +84,7 @@ public class Restore extends BaseNode {
     private CommandLine buildCommandLine(String snapshotId, SnapshotNode snapshotNode, Path tempDir) {
         CommandLine commandLine = new CommandLine("restic");
         commandLine.addArgument("restore");
+        commandLine.addArgument("--json");
         commandLine.addArgument(snapshotId + ":" + snapshotNode.getParentPath());
         commandLine.addArgument("--target");
         commandLine.addArgument(tempDir.toAbsolutePath().toString());
@@ -93,6 +96,7 @@ public class Restore extends BaseNode {
     private CommandLine buildCommandLine(String snapshotId, List<SnapshotNode> snapshotNodes, Path tempDir) {
         CommandLine commandLine = new CommandLine("restic");
         commandLine.addArgument("restore");
+        commandLine.addArgument("--json");
         commandLine.addArgument(snapshotId);
         commandLine.addArgument("--target");
         commandLine.addArgument(tempDir.toAbsolutePath().toString());
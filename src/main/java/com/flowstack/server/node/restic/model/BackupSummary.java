@@ -0,0 +1,65 @@
+package com.flowstack.server.node.restic.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.OffsetDateTime;
+
+/**
+ * restic backup --json 最后输出的 summary 消息
+ */
+@Data
+@NoArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BackupSummary {
+
+    @JsonProperty("snapshot_id")
+    private String snapshotId;
+
+    @JsonProperty("files_new")
+    private Long filesNew;
+
+    @JsonProperty("files_changed")
+    private Long filesChanged;
+
+    @JsonProperty("files_unmodified")
+    private Long filesUnmodified;
+
+    @JsonProperty("dirs_new")
+    private Long dirsNew;
+
+    @JsonProperty("dirs_changed")
+    private Long dirsChanged;
+
+    @JsonProperty("dirs_unmodified")
+    private Long dirsUnmodified;
+
+    @JsonProperty("data_blobs")
+    private Long dataBlobs;
+
+    @JsonProperty("tree_blobs")
+    private Long treeBlobs;
+
+    @JsonProperty("data_added")
+    private Long dataAdded;
+
+    @JsonProperty("data_added_packed")
+    private Long dataAddedPacked;
+
+    @JsonProperty("total_files_processed")
+    private Long totalFilesProcessed;
+
+    @JsonProperty("total_bytes_processed")
+    private Long totalBytesProcessed;
+
+    @JsonProperty("total_duration")
+    private Double totalDuration;
+
+    @JsonProperty("backup_start")
+    private OffsetDateTime backupStart;
+
+    @JsonProperty("backup_end")
+    private OffsetDateTime backupEnd;
+}
@@ -0,0 +1,91 @@
+package com.flowstack.server.node.restic.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+import java.util.List;
+
+/**
+ * 两个 snapshot 之间的差异. 使用 snapshot 索引对比时包含每个文件的大小变化和文件增加, 删除的字节数,
+ * 使用 restic diff 对比时文件的大小和字节数都为 null, 只有仓库去重后增加和删除的数据量
+ */
+@Data
+@Accessors(chain = true)
+@NoArgsConstructor
+public class SnapshotDiff {
+    public static final String SOURCE_INDEX = "index";
+    public static final String SOURCE_RESTIC = "restic";
+
+    // modified 的原因: 类型变化, 内容(大小)变化, 只有元数据(ctime 等)变化
+    public static final String REASON_TYPE = "type";
+    public static final String REASON_CONTENT = "content";
+    public static final String REASON_METADATA = "metadata";
+
+    private String fromSnapshotId;
+
+    private String toSnapshotId;
+
+    // index 或者 restic
+    private String source;
+
+    private long addedCount;
+
+    private long removedCount;
+
+    private long modifiedCount;
+
+    // 文件大小增加和减少的字节数, 只有索引对比时有值
+    private Long addedBytes;
+
+    private Long removedBytes;
+
+    // restic diff statistics 中仓库去重后增加和删除的数据量, 只有 restic 对比时有值, 和文件大小不可比较
+    private Long repositoryAddedBytes;
+
+    private Long repositoryRemovedBytes;
+
+    // 按父目录 path 排序
+    private List<DirectoryChange> directories;
+
+    // 按索引顺序排序, 见 SnapshotIndex.compareIndexOrder
+    private List<PathChange> changes;
+
+    /**
+     * 只保留统计信息的副本
+     */
+    public SnapshotDiff toSummary() {
+        return new SnapshotDiff()
+                .setFromSnapshotId(this.fromSnapshotId)
+                .setToSnapshotId(this.toSnapshotId)
+                .setSource(this.source)
+                .setAddedCount(this.addedCount)
+                .setRemovedCount(this.removedCount)
+                .setModifiedCount(this.modifiedCount)
+                .setAddedBytes(this.addedBytes)
+                .setRemovedBytes(this.removedBytes)
+                .setRepositoryAddedBytes(this.repositoryAddedBytes)
+                .setRepositoryRemovedBytes(this.repositoryRemovedBytes);
+    }
+
+    /**
+     * @param change    added, removed 或 modified
+     * @param reason    modified 的原因 type, content 或 metadata, 其他变化为 null
+     * @param sizeDelta 新大小 - 旧大小, 不知道大小时为 null
+     */
+    public record PathChange(
+            String path,
+            String type,
+            String change,
+            String reason,
+            Long oldSize,
+            Long newSize,
+            Long sizeDelta) {
+    }
+
+    /**
+     * 一个目录的直接子节点的变化汇总
+     */
+    public record DirectoryChange(String path, long added, long removed, long modified, Long sizeDelta) {
+    }
+}
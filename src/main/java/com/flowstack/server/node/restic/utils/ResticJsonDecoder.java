@@ -0,0 +1,103 @@
+package com.flowstack.server.node.restic.utils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.flowstack.server.util.JsonUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * restic --json 输出的流式解析. 支持 json lines(每行一个对象)和 json 数组两种输出.
+ * <p>
+ * 逐个 token 读取对象, 找到 message_type 之前的字段暂存在 TokenBuffer 中, message_type 没有注册时跳过对象的剩余部分,
+ * 注册过的对象直接从 token 绑定到目标类型, 不构建 JsonNode 树. 没有 message_type 的对象(例如 snapshots 的数组元素)
+ * 交给 onUntyped 注册的处理方法
+ */
+public class ResticJsonDecoder {
+    private static final String MESSAGE_TYPE = "message_type";
+
+    private final Map<String, Handler<?>> handlers = new HashMap<>();
+
+    private Handler<?> untypedHandler;
+
+    public <T> ResticJsonDecoder on(String messageType, Class<T> clazz, Consumer<? super T> consumer) {
+        this.handlers.put(messageType, new Handler<>(clazz, consumer));
+        return this;
+    }
+
+    public <T> ResticJsonDecoder onUntyped(Class<T> clazz, Consumer<? super T> consumer) {
+        this.untypedHandler = new Handler<>(clazz, consumer);
+        return this;
+    }
+
+    public boolean handles(String messageType) {
+        return this.handlers.containsKey(messageType);
+    }
+
+    /**
+     * 读取到流结束, 处理方法在当前线程中调用. 不关闭 inputStream, 出现异常时由调用方继续读取剩余的输出
+     */
+    public void decode(InputStream inputStream) throws IOException {
+        try (JsonParser parser = JsonUtil.createParser(inputStream)
+                .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                switch (token) {
+                    case START_OBJECT -> this.decodeObject(parser);
+                    // 数组的元素按顶层对象处理
+                    case START_ARRAY, END_ARRAY -> {
+                    }
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void decodeObject(JsonParser parser) throws IOException {
+        TokenBuffer buffer = new TokenBuffer(parser);
+        buffer.writeStartObject();
+        Handler<?> handler = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            if (handler != null || !MESSAGE_TYPE.equals(parser.currentName())) {
+                buffer.copyCurrentStructure(parser);
+                continue;
+            }
+            parser.nextToken();
+            handler = this.handlers.get(parser.getValueAsString());
+            if (handler == null) {
+                skipRemainingFields(parser);
+                return;
+            }
+            buffer.writeFieldName(MESSAGE_TYPE);
+            buffer.copyCurrentEvent(parser);
+        }
+        buffer.writeEndObject();
+        if (handler == null) {
+            handler = this.untypedHandler;
+        }
+        if (handler != null) {
+            try (JsonParser bufferParser = buffer.asParser()) {
+                handler.accept(bufferParser);
+            }
+        }
+    }
+
+    private static void skipRemainingFields(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+
+    private record Handler<T>(Class<T> clazz, Consumer<? super T> consumer) {
+
+        void accept(JsonParser parser) throws IOException {
+            this.consumer.accept(parser.readValueAs(this.clazz));
+        }
+    }
+}
@@ -1,39 +1,63 @@
 package com.flowstack.server.node.restic.utils;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.flowstack.server.core.engine.NodeDeadline;
+import com.flowstack.server.core.engine.NodeProgress;
+import com.flowstack.server.core.model.execution.ProgressUpdate;
 import com.flowstack.server.exception.BusinessException;
 import com.flowstack.server.node.model.CommandResult;
 import com.flowstack.server.node.restic.enums.ResticExitCode;
+import com.flowstack.server.node.utils.ProcessRunner;
 import lombok.extern.slf4j.Slf4j;
 import net.sf.jsqlparser.util.validation.ValidationException;
 import org.apache.commons.exec.*;
-import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Slf4j
 public class ResticUtil {
+    // 不在 node 中执行时的超时时间. 计算公式 = 100G 文件备份 / 30MB/s 机械硬盘速度 / 60 ~= 60 分钟
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(60L);
 
-    public static CommandResult execute(
+    /**
+     * 执行 --json 命令, restic 运行的同时由 decoder 流式解析 stdout, 不在内存中保留原始输出.
+     * decoder 没有处理 status 消息时, status 转换为当前 node 的进度.
+     * decoder 的处理方法抛出异常后不再解析后续的输出, 返回失败
+     */
+    public static CommandResult decode(
             String resticPassword,
             String resticRepository,
-            CommandLine commandLine
+            String workingDirectory,
+            CommandLine commandLine,
+            ResticJsonDecoder decoder
     ) throws ValidationException {
-        return execute(resticPassword, resticRepository, null, commandLine);
+        // 上报方法在当前线程获取, 解析在 reader 线程执行
+        Consumer<ProgressUpdate> reporter = NodeProgress.current();
+        if (!decoder.handles("status")) {
+            decoder.on("status", JsonNode.class, status -> reporter.accept(toProgress(status)));
+        }
+        // 在 node 中执行时使用 node 剩余的时间作为超时
+        return run(resticPassword, resticRepository, environment -> ProcessRunner.run(
+                commandLine,
+                environment,
+                workingDirectory,
+                NodeDeadline.remaining(DEFAULT_TIMEOUT),
+                decoder::decode,
+                null
+        ));
     }
 
-    public static CommandResult execute(
+    private static CommandResult run(
             String resticPassword,
             String resticRepository,
-            String workingDirectory,
-            CommandLine commandLine
+            Function<Map<String, String>, ProcessRunner.Result> runner
     ) throws ValidationException {
         if (StringUtils.isAnyBlank(resticPassword, resticRepository)) {
             throw new ValidationException("restic execute failed. resticPassWord or resticRepository is null");
@@ -41,32 +65,19 @@ public class ResticUtil {
         if (!isInitialized(resticPassword, resticRepository)) {
             initRepository(resticPassword, resticRepository);
         }
-        Executor executor = DefaultExecutor.builder().get();
-        // 1. 工作目录
-        if (StringUtils.isNotBlank(workingDirectory)) {
-            executor.setWorkingDirectory(new File(workingDirectory));
-        }
-        // 2. 创建输出流处理器（捕获 stdout/stderr）
-        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
-        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
-        executor.setStreamHandler(new PumpStreamHandler(stdout, stderr));
-        // 3. 设置超时. 计算公式 = 100G 文件备份 / 30MB/s 机械硬盘速度 / 60 ~= 60 分钟
-        ExecuteWatchdog watchdog = ExecuteWatchdog.builder().setTimeout(Duration.ofMinutes(60L)).get();
-        executor.setWatchdog(watchdog);
-        try {
-            // 4. 阻塞执行
-            int exitCode = executor.execute(commandLine, genResticEnv(resticPassword, resticRepository));
-            if (exitCode == ResticExitCode.SUCCESS.getCode()) {
-                return CommandResult.success(exitCode, getStdAsString(stdout));
-            } else {
-                return CommandResult.failed(exitCode, getStdAsString(stderr));
-            }
-        } catch (Exception e) {
+        ProcessRunner.Result result = runner.apply(genResticEnv(resticPassword, resticRepository));
+        if (result.exception() != null) {
             return CommandResult.failed(
                     ResticExitCode.ERROR_WITHOUT_EXITCODE.getCode(),
-                    "exception: %s with stderr: %s".formatted(e, getStdAsString(stderr))
+                    "exception: %s with stderr: %s".formatted(result.exception(), result.stderrTail())
             );
         }
+        if (result.timedOut()) {
+            return CommandResult.failed(result.exitCode(), "restic 执行超时. stderr: %s".formatted(result.stderrTail()));
+        }
+        return result.exitCode() == ResticExitCode.SUCCESS.getCode() ?
+                CommandResult.success(result.exitCode(), null) :
+                CommandResult.failed(result.exitCode(), result.stderrTail());
     }
 
     private static void initRepository(String resticPassword, String resticRepository) {
@@ -108,11 +119,22 @@ public class ResticUtil {
         }
     }
 
-    private static String getStdAsString(ByteArrayOutputStream std) {
-        if (ObjectUtils.isEmpty(std)) {
-            return "";
-        }
-        return std.toString(StandardCharsets.UTF_8).trim();
+    /**
+     * restic --json 的 status 消息转换为进度, backup 输出 files_done/bytes_done, restore 输出 files_restored/bytes_restored
+     */
+    private static ProgressUpdate toProgress(JsonNode status) {
+        return new ProgressUpdate(
+                longOrNull(status, status.has("bytes_restored") ? "bytes_restored" : "bytes_done"),
+                longOrNull(status, "total_bytes"),
+                longOrNull(status, status.has("files_restored") ? "files_restored" : "files_done"),
+                longOrNull(status, "total_files"),
+                status.hasNonNull("percent_done") ? status.get("percent_done").asDouble() : null,
+                longOrNull(status, "seconds_remaining")
+        );
+    }
+
+    private static Long longOrNull(JsonNode node, String field) {
+        return node.hasNonNull(field) ? node.get(field).asLong() : null;
     }
 
     private static Map<String, String> genResticEnv(String resticPassword, String resticRepository) {
@@ -121,6 +143,8 @@ public class ResticUtil {
         // 设置 RESTIC 密码和备份目录
         result.put("RESTIC_PASSWORD", resticPassword);
         result.put("RESTIC_REPOSITORY", resticRepository);
+        // 每秒输出一次进度, 没有设置时 restic 输出频率过高
+        result.putIfAbsent("RESTIC_PROGRESS_FPS", "1");
         return result;
     }
 }
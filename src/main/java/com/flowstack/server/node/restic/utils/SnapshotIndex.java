@@ -0,0 +1,648 @@
+package com.flowstack.server.node.restic.utils;
+
+import com.flowstack.server.exception.BusinessException;
+import com.flowstack.server.node.restic.model.SnapshotNode;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * 单个 snapshot 的只读目录树索引, 由一次完整的 restic ls 生成, 使用 mmap 读取.
+ * <p>
+ * 文件格式:
+ * <pre>
+ * header : magic(4) version(4) count(4) reserved(4)
+ * record : parent(4) childStart(4) childCount(4) type(1) padding(3) size(8) totalSize(8) ctime(8)
+ *          pathOffset(4) pathLength(4), 共 count 条
+ * pool   : 所有 path 的 UTF-8 字节
+ * </pre>
+ * record 按广度优先的顺序排列(见 compareIndexOrder), 第 0 条是根目录 "/". 同一个目录的子节点连续存放并且按 name 排序,
+ * 列目录直接读取 [childStart, childStart + childCount), 按 path 查找时逐级二分查找.
+ * totalSize 是目录下所有文件的大小之和, 生成时计算
+ */
+public final class SnapshotIndex {
+    private static final int MAGIC = 0x46534958; // FSIX
+    private static final int VERSION = 2; // 1: 按 (父目录 path, name) 排序
+    private static final int HEADER_BYTES = 16;
+    private static final int RECORD_BYTES = 48;
+    private static final long NO_CTIME = Long.MIN_VALUE;
+    private static final List<String> TYPES = List.of(
+            "dir", "file", "symlink", "dev", "chardev", "fifo", "socket", "irregular"
+    );
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int poolOffset;
+
+    private SnapshotIndex(MappedByteBuffer buffer, int count) {
+        this.buffer = buffer;
+        this.count = count;
+        this.poolOffset = HEADER_BYTES + count * RECORD_BYTES;
+    }
+
+    public enum SortField {
+        NAME, SIZE, CTIME
+    }
+
+    /**
+     * @param name      文件名, 根目录为空字符串
+     * @param totalSize 文件为自身大小, 目录为目录下所有文件的大小之和
+     * @param ctime     restic 没有输出时为 null
+     */
+    public record Entry(String name, String type, String path, long size, long totalSize, Instant ctime) {
+
+        public boolean isDirectory() {
+            return "dir".equals(this.type);
+        }
+    }
+
+    /**
+     * 打开索引文件. 文件不是当前版本的索引时抛出 BusinessException
+     */
+    public static SnapshotIndex open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_BYTES || fileSize > Integer.MAX_VALUE) {
+                throw new BusinessException("snapshot 索引 %s 大小 %s 无效".formatted(file, fileSize));
+            }
+            // mapping 在 channel 关闭后仍然有效
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new BusinessException("snapshot 索引 %s 格式或版本不匹配".formatted(file));
+            }
+            int count = buffer.getInt(8);
+            if (count <= 0 || HEADER_BYTES + (long) count * RECORD_BYTES > fileSize) {
+                throw new BusinessException("snapshot 索引 %s 已损坏".formatted(file));
+            }
+            return new SnapshotIndex(buffer, count);
+        }
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * 按索引顺序(见 compareIndexOrder)读取第 index 条, 第 0 条是根目录.
+     * 所有索引使用相同的顺序, 两个索引可以按下标顺序归并对比
+     */
+    public Entry get(int index) {
+        Objects.checkIndex(index, this.count);
+        return this.entry(index);
+    }
+
+    public Entry get(String path) {
+        int index = this.lookup(path);
+        return index < 0 ? null : this.entry(index);
+    }
+
+    /**
+     * 目录子节点的一页, path 不存在或者不是目录时返回空列表. 同一个目录的子节点按 name 有序, namePrefix 用二分查找确定范围, 按 name 排序时直接按下标读取,
+     * 按 size 或 ctime 排序时只对下标排序, 只为返回的 limit 条生成 Entry. 相同的 size 或 ctime 按 name 排序
+     */
+    public List<Entry> list(String path, String namePrefix, SortField sortField, boolean descending,
+                            int offset, int limit) {
+        int index = this.lookup(path);
+        if (index < 0 || offset < 0 || limit <= 0) {
+            return List.of();
+        }
+        int start = this.childStart(index);
+        int end = start + this.childCount(index);
+        if (StringUtils.isNotEmpty(namePrefix)) {
+            start = this.firstChild(start, end, name -> name.compareTo(namePrefix) >= 0);
+            end = this.firstChild(start, end, name -> !name.startsWith(namePrefix));
+        }
+        int total = end - start;
+        if (offset >= total) {
+            return List.of();
+        }
+        int pageSize = Math.min(limit, total - offset);
+        List<Entry> result = new ArrayList<>(pageSize);
+        if (sortField == SortField.NAME) {
+            for (int i = offset; i < offset + pageSize; i++) {
+                result.add(this.entry(descending ? end - 1 - i : start + i));
+            }
+            return result;
+        }
+        int keyOffset = sortField == SortField.SIZE ? 16 : 32;
+        Integer[] indexes = new Integer[total];
+        long[] keys = new long[total];
+        for (int i = 0; i < total; i++) {
+            indexes[i] = start + i;
+            keys[i] = this.buffer.getLong(recordOffset(start + i) + keyOffset);
+        }
+        int base = start;
+        Comparator<Integer> comparator = Comparator.<Integer>comparingLong(i -> keys[i - base])
+                .thenComparingInt(i -> i);
+        Arrays.sort(indexes, descending ? comparator.reversed() : comparator);
+        for (int i = offset; i < offset + pageSize; i++) {
+            result.add(this.entry(indexes[i]));
+        }
+        return result;
+    }
+
+    /**
+     * 文件名包含 keyword (忽略大小写)的节点, 按索引顺序返回前 limit 个
+     */
+    public List<Entry> search(String keyword, int limit) {
+        if (StringUtils.isEmpty(keyword) || limit <= 0) {
+            return List.of();
+        }
+        String lowerKeyword = keyword.toLowerCase(Locale.ROOT);
+        List<Entry> result = new ArrayList<>();
+        for (int i = 1; i < this.count && result.size() < limit; i++) {
+            if (this.name(i).toLowerCase(Locale.ROOT).contains(lowerKeyword)) {
+                result.add(this.entry(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * path 对应的 record 下标, 不存在时返回 -1
+     */
+    private int lookup(String path) {
+        if (StringUtils.isBlank(path)) {
+            return -1;
+        }
+        int current = 0;
+        for (String component : path.split("/")) {
+            if (component.isEmpty()) {
+                continue;
+            }
+            current = this.findChild(current, component);
+            if (current < 0) {
+                return -1;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * [start, end) 中第一个 name 满足 predicate 的下标, 要求 predicate 在范围内单调(前面不满足, 后面满足)
+     */
+    private int firstChild(int start, int end, Predicate<String> predicate) {
+        int low = start;
+        int high = end;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (predicate.test(this.name(mid))) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private int findChild(int parent, String name) {
+        int low = this.childStart(parent);
+        int high = low + this.childCount(parent) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = this.name(mid).compareTo(name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private Entry entry(int index) {
+        int base = recordOffset(index);
+        String path = this.path(index);
+        long ctime = this.buffer.getLong(base + 32);
+        return new Entry(
+                index == 0 ? "" : path.substring(path.lastIndexOf('/') + 1),
+                TYPES.get(this.buffer.get(base + 12)),
+                path,
+                this.buffer.getLong(base + 16),
+                this.buffer.getLong(base + 24),
+                ctime == NO_CTIME ? null : Instant.ofEpochMilli(ctime)
+        );
+    }
+
+    private int childStart(int index) {
+        return this.buffer.getInt(recordOffset(index) + 4);
+    }
+
+    private int childCount(int index) {
+        return this.buffer.getInt(recordOffset(index) + 8);
+    }
+
+    private String path(int index) {
+        int base = recordOffset(index);
+        byte[] bytes = new byte[this.buffer.getInt(base + 44)];
+        this.buffer.get(this.poolOffset + this.buffer.getInt(base + 40), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 只解码 path 最后一个 / 之后的部分
+     */
+    private String name(int index) {
+        int base = recordOffset(index);
+        int start = this.poolOffset + this.buffer.getInt(base + 40);
+        int end = start + this.buffer.getInt(base + 44);
+        int nameStart = end;
+        while (nameStart > start && this.buffer.get(nameStart - 1) != '/') {
+            nameStart--;
+        }
+        byte[] bytes = new byte[end - nameStart];
+        this.buffer.get(nameStart, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int recordOffset(int index) {
+        return HEADER_BYTES + index * RECORD_BYTES;
+    }
+
+    /**
+     * 收集 restic ls 输出的 node, 生成索引文件. 缺少的父目录会自动补上.
+     * <p>
+     * 内存中最多保留 runSize 个 node, 超过时按索引顺序排序后写入临时文件, writeTo 时多路归并, 按顺序逐条写入记录.
+     * 广度优先的顺序中子节点组的顺序和目录的顺序相同, 父节点的下标从目录队列的队首得到.
+     * childStart, childCount, totalSize 最后在映射的索引文件上回填. 内存占用和 snapshot 的 node 数量无关
+     */
+    public static class Builder implements Closeable {
+        private static final int DEFAULT_RUN_SIZE = 100_000;
+        private static final byte DIR = (byte) TYPES.indexOf("dir");
+        // 相同 path 只保留一个: restic 输出的优先于补上的目录, 后输出的优先
+        private static final Comparator<Item> ITEM_ORDER = Comparator
+                .comparing(Item::path, SnapshotIndex::compareIndexOrder)
+                .thenComparing(Item::synthetic)
+                .thenComparing(Comparator.comparingLong(Item::sequence).reversed());
+
+        private final int runSize;
+        private final List<Item> buffer = new ArrayList<>();
+        private final List<Path> runs = new ArrayList<>();
+        // restic ls 按深度优先输出, 当前 node 的祖先目录, 用于判断父目录是否缺少
+        private final Deque<String> ancestors = new ArrayDeque<>();
+        private Path tempDirectory;
+        private long sequence;
+
+        public Builder() {
+            this(DEFAULT_RUN_SIZE);
+        }
+
+        Builder(int runSize) {
+            this.runSize = runSize;
+        }
+
+        public void add(SnapshotNode node) {
+            if (StringUtils.isBlank(node.getPath()) || "/".equals(node.getPath())) {
+                return;
+            }
+            int type = TYPES.indexOf(StringUtils.defaultString(node.getType()));
+            this.addMissingParents(parentOf(node.getPath()));
+            this.put(new Item(
+                    node.getPath(),
+                    (byte) (type < 0 ? TYPES.indexOf("irregular") : type),
+                    node.isDirectory() || ObjectUtils.isEmpty(node.getSize()) ? 0L : node.getSize().longValue(),
+                    ObjectUtils.isEmpty(node.getCtime()) ? NO_CTIME : node.getCtime().toInstant().toEpochMilli(),
+                    false,
+                    this.sequence++
+            ));
+            if (node.isDirectory()) {
+                this.ancestors.push(node.getPath());
+            }
+        }
+
+        private void addMissingParents(String parent) {
+            while (!this.ancestors.isEmpty()
+                    && !parent.equals(this.ancestors.peek()) && !parent.startsWith(this.ancestors.peek() + "/")) {
+                this.ancestors.pop();
+            }
+            String top = this.ancestors.isEmpty() ? "/" : this.ancestors.peek();
+            List<String> missing = new ArrayList<>();
+            for (String path = parent; !path.equals(top); path = parentOf(path)) {
+                missing.add(path);
+            }
+            for (int i = missing.size() - 1; i >= 0; i--) {
+                this.put(new Item(missing.get(i), DIR, 0L, NO_CTIME, true, this.sequence++));
+                this.ancestors.push(missing.get(i));
+            }
+        }
+
+        private void put(Item item) {
+            this.buffer.add(item);
+            if (this.buffer.size() >= this.runSize) {
+                this.spill();
+            }
+        }
+
+        private void spill() {
+            this.buffer.sort(ITEM_ORDER);
+            try {
+                if (this.tempDirectory == null) {
+                    this.tempDirectory = Files.createTempDirectory("flowstack-index-");
+                }
+                Path run = this.tempDirectory.resolve("run-" + this.runs.size());
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+                    out.writeInt(this.buffer.size());
+                    for (Item item : this.buffer) {
+                        item.writeTo(out);
+                    }
+                }
+                this.runs.add(run);
+            } catch (IOException e) {
+                throw new BusinessException("snapshot 索引临时文件写入失败", e);
+            }
+            this.buffer.clear();
+        }
+
+        /**
+         * 先写临时文件再原子替换, 读取方不会看到写了一半的索引
+         */
+        public void writeTo(Path file) throws IOException {
+            this.buffer.sort(ITEM_ORDER);
+            List<RunReader> readers = new ArrayList<>();
+            try {
+                for (Path run : this.runs) {
+                    readers.add(new RunReader(run));
+                }
+                Files.createDirectories(file.toAbsolutePath().getParent());
+                Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+                Path poolFile = file.resolveSibling(file.getFileName() + ".pool.tmp");
+                int count;
+                try {
+                    count = this.writeRecords(new Merge(this.buffer, readers), tmpFile, poolFile);
+                    try (OutputStream out = Files.newOutputStream(tmpFile, StandardOpenOption.APPEND)) {
+                        Files.copy(poolFile, out);
+                    }
+                } finally {
+                    Files.deleteIfExists(poolFile);
+                }
+                fillTree(tmpFile, count);
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                for (RunReader reader : readers) {
+                    reader.close();
+                }
+            }
+        }
+
+        /**
+         * 按索引顺序写入头部和记录, path 写入 poolFile. childStart, childCount 写 0, totalSize 先写自身大小
+         */
+        private int writeRecords(Iterator<Item> items, Path tmpFile, Path poolFile) throws IOException {
+            // 已经写入, 子节点还没有写入的目录
+            Deque<DirectoryRef> directories = new ArrayDeque<>();
+            long poolSize = 0;
+            int count = 0;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)));
+                 OutputStream pool = new BufferedOutputStream(Files.newOutputStream(poolFile))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(0); // count 最后回填
+                out.writeInt(0);
+                Item root = new Item("/", DIR, 0L, NO_CTIME, true, -1);
+                String lastPath = null;
+                for (Item item = root; item != null; item = items.hasNext() ? items.next() : null) {
+                    if (item.path().equals(lastPath)) {
+                        continue;
+                    }
+                    lastPath = item.path();
+                    int parent = -1;
+                    if (item != root) {
+                        String parentPath = parentOf(item.path());
+                        while (!directories.isEmpty()
+                                && compareIndexOrder(directories.peekFirst().path(), parentPath) < 0) {
+                            directories.pollFirst();
+                        }
+                        if (directories.isEmpty() || !directories.peekFirst().path().equals(parentPath)) {
+                            // 父节点不是目录, 不会出现在 restic 的输出中, 丢弃
+                            continue;
+                        }
+                        parent = directories.peekFirst().index();
+                    }
+                    byte[] path = item.path().getBytes(StandardCharsets.UTF_8);
+                    if (HEADER_BYTES + (long) (count + 1) * RECORD_BYTES + poolSize + path.length > Integer.MAX_VALUE) {
+                        throw new BusinessException("snapshot 节点数量 %s 超过索引上限".formatted(count));
+                    }
+                    out.writeInt(parent);
+                    out.writeInt(0);
+                    out.writeInt(0);
+                    out.writeByte(item.type());
+                    out.write(new byte[3]);
+                    out.writeLong(item.size());
+                    out.writeLong(item.size());
+                    out.writeLong(item.ctime());
+                    out.writeInt((int) poolSize);
+                    out.writeInt(path.length);
+                    pool.write(path);
+                    poolSize += path.length;
+                    if (item.type() == DIR) {
+                        directories.addLast(new DirectoryRef(item.path(), count));
+                    }
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * 在映射的文件上回填 count, 每个目录的 childStart, childCount 和 totalSize.
+         * 同一个目录的子节点连续存放, 子节点的下标大于父节点, 倒序累加时子节点先于父节点完成
+         */
+        private static void fillTree(Path tmpFile, int count) throws IOException {
+            try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                buffer.putInt(8, count);
+                int previousParent = -1;
+                for (int i = 1; i < count; i++) {
+                    int parentOffset = recordOffset(buffer.getInt(recordOffset(i)));
+                    if (buffer.getInt(recordOffset(i)) != previousParent) {
+                        previousParent = buffer.getInt(recordOffset(i));
+                        buffer.putInt(parentOffset + 4, i);
+                    }
+                    buffer.putInt(parentOffset + 8, buffer.getInt(parentOffset + 8) + 1);
+                }
+                for (int i = count - 1; i > 0; i--) {
+                    int parentOffset = recordOffset(buffer.getInt(recordOffset(i)));
+                    buffer.putLong(parentOffset + 24,
+                            buffer.getLong(parentOffset + 24) + buffer.getLong(recordOffset(i) + 24));
+                }
+                buffer.force();
+            }
+        }
+
+        /**
+         * 删除临时文件. writeTo 之后或者生成失败时调用
+         */
+        @Override
+        public void close() throws IOException {
+            this.buffer.clear();
+            for (Path run : this.runs) {
+                Files.deleteIfExists(run);
+            }
+            this.runs.clear();
+            if (this.tempDirectory != null) {
+                Files.deleteIfExists(this.tempDirectory);
+                this.tempDirectory = null;
+            }
+        }
+
+        private record Item(String path, byte type, long size, long ctime, boolean synthetic, long sequence) {
+
+            void writeTo(DataOutputStream out) throws IOException {
+                byte[] bytes = this.path.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeByte(this.type);
+                out.writeLong(this.size);
+                out.writeLong(this.ctime);
+                out.writeBoolean(this.synthetic);
+                out.writeLong(this.sequence);
+            }
+
+            static Item readFrom(DataInputStream in) throws IOException {
+                byte[] bytes = in.readNBytes(in.readInt());
+                return new Item(
+                        new String(bytes, StandardCharsets.UTF_8),
+                        in.readByte(),
+                        in.readLong(),
+                        in.readLong(),
+                        in.readBoolean(),
+                        in.readLong()
+                );
+            }
+        }
+
+        private record DirectoryRef(String path, int index) {
+        }
+
+        /**
+         * 顺序读取一个已经排序的临时文件
+         */
+        private static final class RunReader implements Closeable {
+            private final DataInputStream in;
+            private int remaining;
+
+            private RunReader(Path run) throws IOException {
+                this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+                this.remaining = this.in.readInt();
+            }
+
+            private Item next() throws IOException {
+                if (this.remaining == 0) {
+                    return null;
+                }
+                this.remaining--;
+                return Item.readFrom(this.in);
+            }
+
+            @Override
+            public void close() throws IOException {
+                this.in.close();
+            }
+        }
+
+        /**
+         * 内存中剩余的 node 和所有临时文件的多路归并
+         */
+        private static final class Merge implements Iterator<Item> {
+            private final PriorityQueue<Head> heads = new PriorityQueue<>(
+                    Comparator.comparing(Head::item, ITEM_ORDER));
+
+            private Merge(List<Item> memory, List<RunReader> readers) throws IOException {
+                Iterator<Item> iterator = memory.iterator();
+                this.offer(() -> iterator.hasNext() ? iterator.next() : null);
+                for (RunReader reader : readers) {
+                    this.offer(reader::next);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !this.heads.isEmpty();
+            }
+
+            @Override
+            public Item next() {
+                Head head = this.heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    this.offer(head.source());
+                } catch (IOException e) {
+                    throw new BusinessException("snapshot 索引临时文件读取失败", e);
+                }
+                return head.item();
+            }
+
+            private void offer(Source source) throws IOException {
+                Item item = source.next();
+                if (item != null) {
+                    this.heads.add(new Head(item, source));
+                }
+            }
+
+            @FunctionalInterface
+            private interface Source {
+                Item next() throws IOException;
+            }
+
+            private record Head(Item item, Source source) {
+            }
+        }
+    }
+
+    /**
+     * 索引顺序: 先按深度, 同一深度逐级按 name 比较(也就是先比较父目录, 再比较 name), 即广度优先的顺序.
+     * 只由 path 决定, 所有索引使用相同的顺序
+     */
+    public static int compareIndexOrder(String path1, String path2) {
+        int cmp = Integer.compare(depth(path1), depth(path2));
+        if (cmp != 0) {
+            return cmp;
+        }
+        int length = Math.min(path1.length(), path2.length());
+        for (int i = 0; i < length; i++) {
+            char c1 = path1.charAt(i);
+            char c2 = path2.charAt(i);
+            if (c1 != c2) {
+                // 一个 name 先结束, 短的在前
+                return c1 == '/' ? -1 : c2 == '/' ? 1 : Character.compare(c1, c2);
+            }
+        }
+        return Integer.compare(path1.length(), path2.length());
+    }
+
+    private static int depth(String path) {
+        if ("/".equals(path)) {
+            return 0;
+        }
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * 父目录 path, 根目录的子节点返回 "/"
+     */
+    public static String parentOf(String path) {
+        int lastSlash = path.lastIndexOf('/');
+        return lastSlash <= 0 ? "/" : path.substring(0, lastSlash);
+    }
+}
@@ -0,0 +1,87 @@
+package com.flowstack.server.node.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 在内存中保留不超过 limit 字节的输出, 超过后释放已有的数据并丢弃后续输出, 只记录总字节数.
+ * 指定 spillPrefix 时超过 limit 后不丢弃, 完整的输出写入临时文件用于审计和排查, 临时文件由调用方删除.
+ * 输出较大的命令应该流式解析, 不使用这个类
+ */
+public class LimitedOutputStream extends OutputStream {
+    private final int limit;
+    private final String spillPrefix;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private OutputStream file;
+    private Path spillFile;
+    private long written;
+
+    public LimitedOutputStream(int limit) {
+        this(limit, null);
+    }
+
+    /**
+     * @param spillPrefix 临时文件名前缀, 为 null 时超过 limit 的输出直接丢弃
+     */
+    public LimitedOutputStream(int limit, String spillPrefix) {
+        this.limit = limit;
+        this.spillPrefix = spillPrefix;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        this.written += len;
+        if (this.memory != null && this.written > this.limit) {
+            if (this.spillPrefix != null) {
+                this.spillFile = Files.createTempFile(this.spillPrefix, ".log");
+                this.file = Files.newOutputStream(this.spillFile);
+                this.memory.writeTo(this.file);
+            }
+            this.memory = null;
+        }
+        if (this.memory != null) {
+            this.memory.write(b, off, len);
+        } else if (this.file != null) {
+            this.file.write(b, off, len);
+        }
+    }
+
+    public synchronized boolean isOverflowed() {
+        return this.memory == null;
+    }
+
+    public synchronized long getWritten() {
+        return this.written;
+    }
+
+    /**
+     * 保存完整输出的临时文件, 没有超过 limit 或者没有指定 spillPrefix 时返回 null
+     */
+    public synchronized Path getSpillFile() {
+        return this.spillFile;
+    }
+
+    /**
+     * 内存中的输出, 超过上限时返回 null
+     */
+    @Override
+    public synchronized String toString() {
+        return this.isOverflowed() ? null : this.memory.toString(StandardCharsets.UTF_8).trim();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.file != null) {
+            this.file.close();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.flowstack.server.node.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.exec.*;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 外部命令执行. stdout 交给调用方的输出流或者 StdoutReader 处理(按行解析, 流式解析或者有上限的缓存), stderr 只保留最后
+ * STDERR_TAIL_BYTES 字节用于错误信息, 内存占用和命令输出的大小无关
+ */
+@Slf4j
+public final class ProcessRunner {
+    private static final int STDERR_TAIL_BYTES = 64 * 1024;
+
+    private ProcessRunner() {
+    }
+
+    /**
+     * @param exitCode    进程没有启动或者执行中出现异常时为 null
+     * @param timedOut    watchdog 超时结束了进程
+     * @param stderrTail  stderr 的最后一部分
+     * @param exception   执行中的异常
+     */
+    public record Result(Integer exitCode, boolean timedOut, String stderrTail, Exception exception) {
+    }
+
+    /**
+     * 直接读取 stdout 的方法. 在单独的线程中执行, 方法返回或者抛出异常后剩余的输出会被丢弃, 避免进程阻塞
+     */
+    @FunctionalInterface
+    public interface StdoutReader {
+        void read(InputStream stdout) throws Exception;
+    }
+
+    /**
+     * 阻塞执行命令, 不按 exit code 抛出异常, 保留真实的 exit code 用于判断是否重试
+     *
+     * @param stdout stdout 的去向
+     * @param stderr stderr 除了保留最后一部分外的额外去向, 可以为 null
+     */
+    public static Result run(
+            CommandLine commandLine,
+            Map<String, String> environment,
+            String workingDirectory,
+            Duration timeout,
+            OutputStream stdout,
+            OutputStream stderr) {
+        try {
+            return execute(commandLine, environment, workingDirectory, timeout,
+                    stderrSink -> new PumpStreamHandler(stdout, stderrSink), stderr);
+        } finally {
+            // 处理最后一行没有换行符的输出
+            closeQuietly(stdout);
+            closeQuietly(stderr);
+        }
+    }
+
+    /**
+     * 阻塞执行命令, stdout 交给 stdoutReader 直接读取, 用于边执行边做流式解析.
+     * 进程正常结束(exit code 为 0)但是 stdoutReader 抛出异常时, 异常放在 Result.exception 中返回
+     *
+     * @param stderr stderr 除了保留最后一部分外的额外去向, 可以为 null
+     */
+    public static Result run(
+            CommandLine commandLine,
+            Map<String, String> environment,
+            String workingDirectory,
+            Duration timeout,
+            StdoutReader stdoutReader,
+            OutputStream stderr) {
+        ReaderStreamHandler handler = new ReaderStreamHandler(stdoutReader);
+        try {
+            Result result = execute(commandLine, environment, workingDirectory, timeout, handler::withStderr, stderr);
+            if (result.exception() == null
+                    && Integer.valueOf(0).equals(result.exitCode())
+                    && handler.error != null) {
+                return new Result(result.exitCode(), result.timedOut(), result.stderrTail(), handler.error);
+            }
+            return result;
+        } finally {
+            closeQuietly(stderr);
+        }
+    }
+
+    private static Result execute(
+            CommandLine commandLine,
+            Map<String, String> environment,
+            String workingDirectory,
+            Duration timeout,
+            Function<OutputStream, ExecuteStreamHandler> streamHandlerFactory,
+            OutputStream stderr) {
+        Executor executor = DefaultExecutor.builder().get();
+        if (StringUtils.isNotBlank(workingDirectory)) {
+            executor.setWorkingDirectory(new File(workingDirectory));
+        }
+        TailOutputStream stderrTail = new TailOutputStream(STDERR_TAIL_BYTES);
+        OutputStream stderrSink = stderr == null ? stderrTail : new TeeOutputStream(stderrTail, stderr);
+        executor.setStreamHandler(streamHandlerFactory.apply(stderrSink));
+        ExecuteWatchdog watchdog = ExecuteWatchdog.builder().setTimeout(timeout).get();
+        executor.setWatchdog(watchdog);
+        executor.setExitValues(null);
+        try {
+            int exitCode = executor.execute(commandLine, environment);
+            return new Result(exitCode, watchdog.killedProcess(), stderrTail.toString(), null);
+        } catch (IOException e) {
+            return new Result(null, watchdog.killedProcess(), stderrTail.toString(), e);
+        }
+    }
+
+    private static void closeQuietly(OutputStream outputStream) {
+        if (outputStream == null) {
+            return;
+        }
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            log.warn("关闭命令输出流失败", e);
+        }
+    }
+
+    /**
+     * stdout 在单独的线程中交给 StdoutReader 读取, stdin 和 stderr 仍然由 PumpStreamHandler 处理
+     */
+    private static final class ReaderStreamHandler implements ExecuteStreamHandler {
+        private final StdoutReader reader;
+        private PumpStreamHandler stderrHandler;
+        private InputStream stdout;
+        private Thread readerThread;
+        private volatile Exception error;
+
+        private ReaderStreamHandler(StdoutReader reader) {
+            this.reader = reader;
+        }
+
+        private ReaderStreamHandler withStderr(OutputStream stderrSink) {
+            this.stderrHandler = new PumpStreamHandler(OutputStream.nullOutputStream(), stderrSink);
+            return this;
+        }
+
+        @Override
+        public void setProcessInputStream(OutputStream os) {
+            this.stderrHandler.setProcessInputStream(os);
+        }
+
+        @Override
+        public void setProcessErrorStream(InputStream is) {
+            this.stderrHandler.setProcessErrorStream(is);
+        }
+
+        @Override
+        public void setProcessOutputStream(InputStream is) {
+            this.stdout = is;
+        }
+
+        @Override
+        public void start() {
+            this.stderrHandler.start();
+            this.readerThread = new Thread(this::consume, "Process-Stdout-Reader");
+            this.readerThread.setDaemon(true);
+            this.readerThread.start();
+        }
+
+        @Override
+        public void stop() throws IOException {
+            this.stderrHandler.stop();
+            try {
+                // 进程已经结束, stdout 读到结尾后线程退出
+                this.readerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("等待 stdout 读取结束时被中断");
+            }
+        }
+
+        private void consume() {
+            try {
+                this.reader.read(this.stdout);
+            } catch (Exception e) {
+                this.error = e;
+            } finally {
+                try {
+                    this.stdout.transferTo(OutputStream.nullOutputStream());
+                } catch (IOException e) {
+                    // 进程结束后流被关闭
+                    log.debug("丢弃剩余 stdout 失败", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.flowstack.server.node.utils;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 只保留最后 capacity 个字节的输出, 用于 stderr 错误信息. 内存占用固定
+ */
+public class TailOutputStream extends OutputStream {
+    private final byte[] buffer;
+    private long written;
+
+    public TailOutputStream(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        this.buffer[(int) (this.written % this.buffer.length)] = (byte) b;
+        this.written++;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        // 超过容量时只需要最后 capacity 个字节
+        if (len > this.buffer.length) {
+            this.written += len - this.buffer.length;
+            off += len - this.buffer.length;
+            len = this.buffer.length;
+        }
+        for (int i = 0; i < len; i++) {
+            this.buffer[(int) ((this.written + i) % this.buffer.length)] = b[off + i];
+        }
+        this.written += len;
+    }
+
+    public synchronized boolean isTruncated() {
+        return this.written > this.buffer.length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int size = (int) Math.min(this.written, this.buffer.length);
+        byte[] result = new byte[size];
+        int start = (int) ((this.written - size) % this.buffer.length);
+        int firstPart = Math.min(size, this.buffer.length - start);
+        System.arraycopy(this.buffer, start, result, 0, firstPart);
+        System.arraycopy(this.buffer, 0, result, firstPart, size - firstPart);
+        String tail = new String(result, StandardCharsets.UTF_8).trim();
+        return this.isTruncated() ? "...(省略前 %s 字节) %s".formatted(this.written - size, tail) : tail;
+    }
+}
@@ -0,0 +1,205 @@
+package com.flowstack.server.service;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.baomidou.mybatisplus.core.toolkit.support.SFunction;
+import com.flowstack.server.exception.ValidationException;
+import com.flowstack.server.mapper.FlowExecutionMapper;
+import com.flowstack.server.mapper.NodeExecutionMapper;
+import com.flowstack.server.model.api.info.CursorPageDTO;
+import com.flowstack.server.model.api.info.ExecutionQueryDTO;
+import com.flowstack.server.model.api.info.FlowExecutionDTO;
+import com.flowstack.server.model.api.info.NodeExecutionDTO;
+import com.flowstack.server.model.db.FlowExecutionEntity;
+import com.flowstack.server.model.db.NodeExecutionEntity;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 执行历史查询. 按 (start_time, id) 倒序做 keyset 分页, 每页只扫描索引上的 limit + 1 行,
+ * 翻到很久以前的数据也不会变慢. 默认不读取 JSON 大字段.
+ * start_time 为空(还没有开始)的记录无法放进分页位置, 不在列表中
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class ExecutionHistoryService {
+    private static final int DEFAULT_LIMIT = 50;
+    private static final int MAX_LIMIT = 500;
+
+    private final FlowExecutionMapper flowExecutionMapper;
+    private final NodeExecutionMapper nodeExecutionMapper;
+
+    public CursorPageDTO<FlowExecutionDTO> listFlowExecutions(ExecutionQueryDTO query) {
+        int limit = resolveLimit(query.getLimit());
+        boolean includeData = BooleanUtils.isTrue(query.getIncludeData());
+        List<SFunction<FlowExecutionEntity, ?>> columns = new ArrayList<>(List.of(
+                FlowExecutionEntity::getFlowExecutionId,
+                FlowExecutionEntity::getFlowExecutionUuidV4,
+                FlowExecutionEntity::getFlowDefinitionId,
+                FlowExecutionEntity::getExecutionStatus,
+                FlowExecutionEntity::getErrorMessage,
+                FlowExecutionEntity::getStartTime,
+                FlowExecutionEntity::getEndTime,
+                FlowExecutionEntity::getArchivePath
+        ));
+        if (includeData) {
+            columns.add(FlowExecutionEntity::getContextData);
+        }
+        LambdaQueryWrapper<FlowExecutionEntity> queryWrapper = new LambdaQueryWrapper<>();
+        queryWrapper.select(columns)
+                .isNotNull(FlowExecutionEntity::getStartTime)
+                .eq(ObjectUtils.isNotEmpty(query.getFlowDefinitionId()),
+                        FlowExecutionEntity::getFlowDefinitionId, query.getFlowDefinitionId())
+                .eq(StringUtils.isNotBlank(query.getExecutionStatus()),
+                        FlowExecutionEntity::getExecutionStatus, query.getExecutionStatus())
+                .ge(ObjectUtils.isNotEmpty(query.getStartTimeFrom()),
+                        FlowExecutionEntity::getStartTime, toTimestamp(query.getStartTimeFrom()))
+                .lt(ObjectUtils.isNotEmpty(query.getStartTimeTo()),
+                        FlowExecutionEntity::getStartTime, toTimestamp(query.getStartTimeTo()));
+        Cursor cursor = Cursor.parse(query.getCursor());
+        if (ObjectUtils.isNotEmpty(cursor)) {
+            // (start_time, id) < (cursor.startTime, cursor.id)
+            queryWrapper.and(w -> w.lt(FlowExecutionEntity::getStartTime, cursor.startTime())
+                    .or(o -> o.eq(FlowExecutionEntity::getStartTime, cursor.startTime())
+                            .lt(FlowExecutionEntity::getFlowExecutionId, cursor.id())));
+        }
+        queryWrapper.orderByDesc(FlowExecutionEntity::getStartTime, FlowExecutionEntity::getFlowExecutionId)
+                .last("LIMIT " + (limit + 1));
+        List<FlowExecutionEntity> dbResult = this.flowExecutionMapper.selectList(queryWrapper);
+        List<FlowExecutionDTO> items = new ArrayList<>();
+        for (FlowExecutionEntity entity : dbResult.subList(0, Math.min(limit, dbResult.size()))) {
+            items.add(new FlowExecutionDTO()
+                    .setFlowExecutionId(entity.getFlowExecutionId())
+                    .setFlowExecutionUuidV4(entity.getFlowExecutionUuidV4())
+                    .setFlowDefinitionId(entity.getFlowDefinitionId())
+                    .setExecutionStatus(entity.getExecutionStatus())
+                    .setErrorMessage(entity.getErrorMessage())
+                    .setStartTime(entity.getStartTime())
+                    .setEndTime(entity.getEndTime())
+                    .setArchived(StringUtils.isNotEmpty(entity.getArchivePath()))
+                    .setContextData(entity.getContextData()));
+        }
+        String nextCursor = null;
+        if (dbResult.size() > limit) {
+            FlowExecutionEntity last = dbResult.get(limit - 1);
+            nextCursor = new Cursor(last.getStartTime(), last.getFlowExecutionId()).format();
+        }
+        return new CursorPageDTO<FlowExecutionDTO>().setItems(items).setNextCursor(nextCursor);
+    }
+
+    public CursorPageDTO<NodeExecutionDTO> listNodeExecutions(ExecutionQueryDTO query) {
+        int limit = resolveLimit(query.getLimit());
+        boolean includeData = BooleanUtils.isTrue(query.getIncludeData());
+        List<SFunction<NodeExecutionEntity, ?>> columns = new ArrayList<>(List.of(
+                NodeExecutionEntity::getNodeExecutionId,
+                NodeExecutionEntity::getNodeExecutionUuidV4,
+                NodeExecutionEntity::getFlowExecutionId,
+                NodeExecutionEntity::getFlowDefinitionId,
+                NodeExecutionEntity::getNodeId,
+                NodeExecutionEntity::getNodeName,
+                NodeExecutionEntity::getExecutionStatus,
+                NodeExecutionEntity::getNodeExecutionLog,
+                NodeExecutionEntity::getStartTime,
+                NodeExecutionEntity::getEndTime
+        ));
+        if (includeData) {
+            columns.add(NodeExecutionEntity::getInputData);
+            columns.add(NodeExecutionEntity::getOutputData);
+        }
+        LambdaQueryWrapper<NodeExecutionEntity> queryWrapper = new LambdaQueryWrapper<>();
+        queryWrapper.select(columns)
+                .isNotNull(NodeExecutionEntity::getStartTime)
+                .eq(ObjectUtils.isNotEmpty(query.getFlowDefinitionId()),
+                        NodeExecutionEntity::getFlowDefinitionId, query.getFlowDefinitionId())
+                .eq(ObjectUtils.isNotEmpty(query.getFlowExecutionId()),
+                        NodeExecutionEntity::getFlowExecutionId, query.getFlowExecutionId())
+                .eq(StringUtils.isNotBlank(query.getExecutionStatus()),
+                        NodeExecutionEntity::getExecutionStatus, query.getExecutionStatus())
+                .ge(ObjectUtils.isNotEmpty(query.getStartTimeFrom()),
+                        NodeExecutionEntity::getStartTime, toTimestamp(query.getStartTimeFrom()))
+                .lt(ObjectUtils.isNotEmpty(query.getStartTimeTo()),
+                        NodeExecutionEntity::getStartTime, toTimestamp(query.getStartTimeTo()));
+        Cursor cursor = Cursor.parse(query.getCursor());
+        if (ObjectUtils.isNotEmpty(cursor)) {
+            queryWrapper.and(w -> w.lt(NodeExecutionEntity::getStartTime, cursor.startTime())
+                    .or(o -> o.eq(NodeExecutionEntity::getStartTime, cursor.startTime())
+                            .lt(NodeExecutionEntity::getNodeExecutionId, cursor.id())));
+        }
+        queryWrapper.orderByDesc(NodeExecutionEntity::getStartTime, NodeExecutionEntity::getNodeExecutionId)
+                .last("LIMIT " + (limit + 1));
+        List<NodeExecutionEntity> dbResult = this.nodeExecutionMapper.selectList(queryWrapper);
+        List<NodeExecutionDTO> items = new ArrayList<>();
+        for (NodeExecutionEntity entity : dbResult.subList(0, Math.min(limit, dbResult.size()))) {
+            items.add(new NodeExecutionDTO()
+                    .setNodeExecutionId(entity.getNodeExecutionId())
+                    .setNodeExecutionUuidV4(entity.getNodeExecutionUuidV4())
+                    .setFlowExecutionId(entity.getFlowExecutionId())
+                    .setFlowDefinitionId(entity.getFlowDefinitionId())
+                    .setNodeId(entity.getNodeId())
+                    .setNodeName(entity.getNodeName())
+                    .setExecutionStatus(entity.getExecutionStatus())
+                    .setNodeExecutionLog(entity.getNodeExecutionLog())
+                    .setStartTime(entity.getStartTime())
+                    .setEndTime(entity.getEndTime())
+                    .setInputData(entity.getInputData())
+                    .setOutputData(entity.getOutputData()));
+        }
+        String nextCursor = null;
+        if (dbResult.size() > limit) {
+            NodeExecutionEntity last = dbResult.get(limit - 1);
+            nextCursor = new Cursor(last.getStartTime(), last.getNodeExecutionId()).format();
+        }
+        return new CursorPageDTO<NodeExecutionDTO>().setItems(items).setNextCursor(nextCursor);
+    }
+
+    private static int resolveLimit(Integer limit) {
+        if (ObjectUtils.isEmpty(limit)) {
+            return DEFAULT_LIMIT;
+        }
+        if (limit <= 0 || limit > MAX_LIMIT) {
+            throw new ValidationException("limit 必须在 1 到 %s 之间, 当前是 %s".formatted(MAX_LIMIT, limit));
+        }
+        return limit;
+    }
+
+    private static Timestamp toTimestamp(Instant instant) {
+        return ObjectUtils.isEmpty(instant) ? null : Timestamp.from(instant);
+    }
+
+    /**
+     * 分页位置: 上一页最后一条的开始时间和 id, 格式 "epochSecond_nanos_id".
+     * 数据库的 TIMESTAMP 精度高于毫秒, 只保存毫秒时同一毫秒内的行会被跳过
+     */
+    private record Cursor(Timestamp startTime, Long id) {
+
+        static Cursor parse(String cursor) {
+            if (StringUtils.isBlank(cursor)) {
+                return null;
+            }
+            String[] parts = cursor.split("_");
+            try {
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("cursor 应该有 3 部分");
+                }
+                Instant startTime = Instant.ofEpochSecond(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+                return new Cursor(Timestamp.from(startTime), Long.parseLong(parts[2]));
+            } catch (RuntimeException e) {
+                throw new ValidationException("cursor %s 格式错误".formatted(cursor), e);
+            }
+        }
+
+        String format() {
+            Instant startTime = this.startTime.toInstant();
+            return startTime.getEpochSecond() + "_" + startTime.getNano() + "_" + this.id;
+        }
+    }
+}
@@ -68,6 +68,7 @@ public class FlowEditorService {
                 .setDescription(createFlowRequest.description())
                 .setDefinition(flowDefinition)
                 .setCronConfig(createFlowRequest.cron())
+                .setVersion(1)
                 .setEnabled(1);
     }
 
@@ -1,10 +1,14 @@
 package com.flowstack.server.service;
 
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
 import com.flowstack.server.core.annotaion.Node;
 import com.flowstack.server.core.channel.ChannelService;
 import com.flowstack.server.core.channel.Message;
 import com.flowstack.server.core.engine.FlowValidator;
+import com.flowstack.server.core.enums.ExecStatus;
+import com.flowstack.server.core.model.execution.Checkpoint;
+import com.flowstack.server.core.model.execution.ContextLayer;
 import com.flowstack.server.core.model.definition.FlowNode;
 import com.flowstack.server.enums.DeletedEnum;
 import com.flowstack.server.exception.BusinessException;
@@ -16,41 +20,80 @@ import com.flowstack.server.model.api.info.FlowInfoDTO;
 import com.flowstack.server.model.db.FlowDefinitionEntity;
 import com.flowstack.server.model.db.FlowExecutionEntity;
 import com.flowstack.server.model.db.NodeExecutionEntity;
+import com.flowstack.server.util.LruCache;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.collections4.MapUtils;
 import org.apache.commons.lang3.ObjectUtils;
+import org.apache.ibatis.executor.BatchResult;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.SmartLifecycle;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 @Service
 @Slf4j
 @RequiredArgsConstructor
 public class FlowMsgPersistService implements SmartLifecycle {
+    private static final long WRITER_POLL_MILLIS = 500;
+
     private final Thread msgHandleThread = new Thread(this::persisMsg, "FlowMsg-Persis-Thread");
+    private final List<Thread> writerThreads = new ArrayList<>();
+    private final List<BlockingQueue<Message>> writerQueues = new ArrayList<>();
     private final ChannelService channel;
     private final FlowDefinitionMapper flowDefinitionMapper;
     private final FlowExecutionMapper flowExecutionMapper;
     private final NodeExecutionMapper nodeExecutionMapper;
     private final FlowValidator flowValidator;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${flowstack.server.system.persistWriterCount:2}")
+    private int persistWriterCount;
+
+    @Value("${flowstack.server.system.persistBatchSize:200}")
+    private int persistBatchSize;
+
+    @Value("${flowstack.server.system.persistIdCacheSize:10000}")
+    private int persistIdCacheSize;
+
+    // 运行中的 execution uuid -> 数据库 id, RUNNING 插入时写入, 结束时移除
+    private LruCache<String, FlowExecutionEntity> flowExecutionCache;
+
+    private LruCache<String, Long> nodeExecutionIdCache;
+
+    // 分配线程已经退出, writer 处理完队列后退出
+    private volatile boolean writersStopping = false;
 
     public List<FlowInfoDTO> getAllFlowInfo() {
         LambdaQueryWrapper<FlowDefinitionEntity> queryWrapper = new LambdaQueryWrapper<>();
         queryWrapper.eq(FlowDefinitionEntity::getRecordDeleted, DeletedEnum.NOT_DELETED.getCode());
         List<FlowDefinitionEntity> dbResult = this.flowDefinitionMapper.selectList(queryWrapper);
+        // 一次查询所有 flow 最近一次执行, 开始时间相同时取 id 大的
+        Map<Long, FlowExecutionEntity> lastExecutionMap = new HashMap<>();
+        for (FlowExecutionEntity execution : this.flowExecutionMapper.selectLastExecutions()) {
+            lastExecutionMap.merge(execution.getFlowDefinitionId(), execution, (a, b) ->
+                    a.getFlowExecutionId() > b.getFlowExecutionId() ? a : b);
+        }
         List<FlowInfoDTO> result = new ArrayList<>();
         for (FlowDefinitionEntity entity : dbResult) {
             FlowInfoDTO flowInfoDTO = new FlowInfoDTO()
                     .setFlowDefinitionId(entity.getFlowDefinitionId())
                     .setFlowName(entity.getName())
                     .setCronConfig(entity.getCronConfig())
-                    .setEnabled(entity.getEnabled());
-            FlowExecutionEntity lastExecution = this.getLastExecution(entity);
+                    .setEnabled(entity.getEnabled())
+                    .setRetentionFullRuns(entity.getRetentionFullRuns())
+                    .setRetentionSummaryDays(entity.getRetentionSummaryDays());
+            FlowExecutionEntity lastExecution = lastExecutionMap.get(entity.getFlowDefinitionId());
             if (ObjectUtils.isEmpty(lastExecution)) {
                 result.add(flowInfoDTO);
                 continue;
@@ -70,59 +113,340 @@ public class FlowMsgPersistService implements SmartLifecycle {
                 Duration.between(startTime, endTime.toInstant()).getSeconds();
     }
 
-    private FlowExecutionEntity getLastExecution(FlowDefinitionEntity flowDefinitionEntity) {
+    /**
+     * 读取 flow 最近一次失败执行的检查点: 执行成功的 node 和它们的输出
+     */
+    public Checkpoint loadCheckpoint(Long flowDefinitionId) {
+        FlowExecutionEntity lastExecution = this.getLastExecution(flowDefinitionId);
+        if (ObjectUtils.isEmpty(lastExecution)) {
+            throw new BusinessException("flow %s 没有执行记录".formatted(flowDefinitionId));
+        }
+        if (!ExecStatus.FAILED.name().equals(lastExecution.getExecutionStatus())) {
+            throw new BusinessException("flow %s 最近一次执行状态是 %s, 只能恢复失败的执行".formatted(
+                    flowDefinitionId, lastExecution.getExecutionStatus()));
+        }
+        LambdaQueryWrapper<NodeExecutionEntity> queryWrapper = new LambdaQueryWrapper<>();
+        queryWrapper.eq(NodeExecutionEntity::getFlowExecutionId, lastExecution.getFlowExecutionId());
+        queryWrapper.eq(NodeExecutionEntity::getExecutionStatus, ExecStatus.SUCCESS.name());
+        queryWrapper.orderByAsc(NodeExecutionEntity::getStartTime);
+        List<NodeExecutionEntity> dbResult = this.nodeExecutionMapper.selectList(queryWrapper);
+        Set<String> completedNodeIds = new HashSet<>();
+        Map<String, Object> data = new HashMap<>();
+        for (NodeExecutionEntity nodeExecution : dbResult) {
+            completedNodeIds.add(nodeExecution.getNodeId());
+            if (MapUtils.isNotEmpty(nodeExecution.getOutputData())) {
+                data.putAll(nodeExecution.getOutputData());
+            }
+        }
+        return new Checkpoint(UUID.fromString(lastExecution.getFlowExecutionUuidV4()), completedNodeIds, data);
+    }
+
+    private FlowExecutionEntity getLastExecution(Long flowDefinitionId) {
+        // 只取最近一条, 不读取 context data
         LambdaQueryWrapper<FlowExecutionEntity> queryWrapper = new LambdaQueryWrapper<>();
-        queryWrapper.eq(FlowExecutionEntity::getFlowDefinitionId, flowDefinitionEntity.getFlowDefinitionId());
-        queryWrapper.orderByDesc(FlowExecutionEntity::getStartTime);
-        List<FlowExecutionEntity> dbResult = this.flowExecutionMapper.selectList(queryWrapper);
-        return CollectionUtils.isEmpty(dbResult) ? null : dbResult.get(0);
+        queryWrapper.select(
+                FlowExecutionEntity::getFlowExecutionId,
+                FlowExecutionEntity::getFlowExecutionUuidV4,
+                FlowExecutionEntity::getExecutionStatus
+        );
+        queryWrapper.eq(FlowExecutionEntity::getFlowDefinitionId, flowDefinitionId);
+        queryWrapper.orderByDesc(FlowExecutionEntity::getStartTime, FlowExecutionEntity::getFlowExecutionId);
+        queryWrapper.last("LIMIT 1");
+        return this.flowExecutionMapper.selectOne(queryWrapper);
     }
 
+    /**
+     * 从 channel 取出消息, 按 flow execution 分配给 writer. 同一个 flow 的消息由同一个 writer 按顺序处理.
+     * 停止(中断)时已经取出但是没有放入 writer 队列的消息放回 channel
+     */
     private void persisMsg() {
         while (!Thread.currentThread().isInterrupted()) {
-            Message msg = null;
+            Message msg;
             try {
                 msg = this.channel.take();
-                if (msg.type().equals("FLOW")) {
-                    this.handleFlowMsg(msg);
-                } else if (msg.type().equals("NODE")) {
-                    this.handleNodeMsg(msg);
-                } else {
-                    throw new ValidationException("未识别的 msg type:%s".formatted(msg.type()));
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            int shard = Math.floorMod(msg.flowExecutionUuidV4().hashCode(), this.writerQueues.size());
+            try {
+                this.writerQueues.get(shard).put(msg);
+            } catch (InterruptedException ignored) {
+                this.channel.requeue(msg);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 批量取出消息, 一个批次在一个事务中写入. 批次失败时逐条重试, 只跳过有问题的消息.
+     * 停止时不中断 writer, 处理完队列中剩余的消息后退出
+     */
+    private void writeMsg(BlockingQueue<Message> queue) {
+        List<Message> batch = new ArrayList<>(this.persistBatchSize);
+        while (true) {
+            try {
+                Message first = queue.poll(WRITER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (this.writersStopping) {
+                        return;
+                    }
+                    continue;
                 }
+                batch.add(first);
+                queue.drainTo(batch, this.persistBatchSize - 1);
+                this.transactionTemplate.executeWithoutResult(status -> this.persistBatch(batch));
             } catch (InterruptedException ignored) {
+                // stop 不会中断 writer, 被其他原因中断时把剩余消息放回 channel
                 Thread.currentThread().interrupt();
+                List<Message> remaining = new ArrayList<>();
+                queue.drainTo(remaining);
+                remaining.reversed().forEach(this.channel::requeue);
+                return;
             } catch (Exception e) {
-                log.warn("msg:{} 处理失败", msg, e);
+                log.warn("{} 条 msg 批量处理失败, 逐条处理", batch.size(), e);
+                // 事务已回滚, 本批次写入缓存的 id 可能不存在
+                this.evictCache(batch);
+                for (Message msg : batch) {
+                    try {
+                        this.transactionTemplate.executeWithoutResult(status -> this.persistBatch(List.of(msg)));
+                    } catch (Exception ex) {
+                        this.evictCache(List.of(msg));
+                        log.warn("msg:{} 处理失败", msg, ex);
+                    }
+                }
+            } finally {
+                batch.clear();
             }
         }
     }
 
-    private void handleNodeMsg(Message msg) {
-        NodeExecutionEntity entity = createNodeExecutionFromMsg(msg);
-        switch (msg.execStatus()) {
-            case RUNNING -> {
-                entity.setStartTime(Timestamp.from(Instant.now()));
-                isDbOperationSuccess(this.nodeExecutionMapper.insert(entity));
-            }
-            case SUCCESS, FAILED -> {
-                // 查找数据库
-                NodeExecutionEntity dbResult = this.getNodeExecutionByUuidV4(msg.nodeExecutionUuidV4());
-                if (ObjectUtils.isEmpty(dbResult)) {
-                    throw new BusinessException("找不到 node execution." +
-                            "UUID 是 %s".formatted(msg.nodeExecutionUuidV4()));
+    /**
+     * 按依赖顺序写入一个批次: flow 开始 -> node 开始 -> node 结束 -> flow 结束.
+     * 同类操作使用 JDBC batch, uuid 对应的数据库 id 每类只查询一次.
+     * 同一个 node execution 的开始和结束消息都在批次中时(执行很快的 node), 合并为一次插入
+     */
+    private void persistBatch(List<Message> batch) {
+        List<Message> flowStarts = new ArrayList<>();
+        List<Message> nodeStarts = new ArrayList<>();
+        Map<String, Message> nodeEnds = new LinkedHashMap<>(); // node execution uuid -> 结束消息
+        List<Message> flowEnds = new ArrayList<>();
+        for (Message msg : batch) {
+            boolean running = ExecStatus.RUNNING.equals(msg.execStatus());
+            switch (msg.type()) {
+                case "FLOW" -> (running ? flowStarts : flowEnds).add(msg);
+                case "NODE" -> {
+                    if (running) {
+                        nodeStarts.add(msg);
+                    } else {
+                        nodeEnds.put(msg.nodeExecutionUuidV4().toString(), msg);
+                    }
                 }
-                // entity 设置数据库 ID, output data 和 end time
-                entity.setNodeExecutionId(dbResult.getNodeExecutionId())
-                        .setOutputData(this.getNodeData(msg.node(), msg.data(), false))
-                        .setEndTime(Timestamp.from(Instant.now()));
-                isDbOperationSuccess(this.nodeExecutionMapper.updateById(entity));
+                default -> throw new ValidationException("未识别的 msg type:%s".formatted(msg.type()));
             }
         }
+        // uuid -> flow execution, 只包含 id, uuid 和 flow definition id
+        Map<String, FlowExecutionEntity> flowExecutionMap = this.persistFlowStarts(flowStarts);
+        this.loadFlowExecutions(
+                flowExecutionMap,
+                batch.stream().map(msg -> msg.flowExecutionUuidV4().toString()).collect(Collectors.toSet())
+        );
+        // uuid -> node execution id
+        Map<String, Long> nodeExecutionIdMap = this.persistNodeStarts(nodeStarts, nodeEnds, flowExecutionMap);
+        this.persistNodeEnds(List.copyOf(nodeEnds.values()), flowExecutionMap, nodeExecutionIdMap);
+        this.persistFlowEnds(flowEnds, flowExecutionMap);
     }
 
-    private NodeExecutionEntity createNodeExecutionFromMsg(Message msg) {
-        FlowExecutionEntity flowExecution = this.getFlowExecutionByUuidV4(msg.flowExecutionUuidV4());
+    private Map<String, FlowExecutionEntity> persistFlowStarts(List<Message> flowStarts) {
+        Map<String, FlowExecutionEntity> result = new HashMap<>();
+        if (flowStarts.isEmpty()) {
+            return result;
+        }
+        // 已经存在的 uuid 是从检查点恢复执行, 沿用原来的记录
+        this.loadFlowExecutions(
+                result,
+                flowStarts.stream().map(msg -> msg.flowExecutionUuidV4().toString()).collect(Collectors.toSet())
+        );
+        List<FlowExecutionEntity> inserts = new ArrayList<>();
+        for (Message msg : flowStarts) {
+            FlowExecutionEntity dbResult = result.get(msg.flowExecutionUuidV4().toString());
+            if (ObjectUtils.isNotEmpty(dbResult)) {
+                LambdaUpdateWrapper<FlowExecutionEntity> updateWrapper = new LambdaUpdateWrapper<>();
+                updateWrapper.eq(FlowExecutionEntity::getFlowExecutionId, dbResult.getFlowExecutionId())
+                        .set(FlowExecutionEntity::getExecutionStatus, msg.execStatus().name())
+                        .set(FlowExecutionEntity::getErrorMessage, null)
+                        .set(FlowExecutionEntity::getEndTime, null);
+                isDbOperationSuccess(this.flowExecutionMapper.update(updateWrapper));
+                continue;
+            }
+            FlowExecutionEntity entity = this.createFlowExecutionFromMsg(msg);
+            entity.setStartTime(eventTime(msg));
+            inserts.add(entity);
+        }
+        if (!inserts.isEmpty()) {
+            isBatchOperationSuccess(this.flowExecutionMapper.insert(inserts));
+            for (FlowExecutionEntity entity : inserts) {
+                // 缓存只保留 id, 不持有 context data
+                FlowExecutionEntity cached = new FlowExecutionEntity()
+                        .setFlowExecutionId(entity.getFlowExecutionId())
+                        .setFlowExecutionUuidV4(entity.getFlowExecutionUuidV4())
+                        .setFlowDefinitionId(entity.getFlowDefinitionId());
+                result.put(cached.getFlowExecutionUuidV4(), cached);
+                this.flowExecutionCache.put(cached.getFlowExecutionUuidV4(), cached);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 插入 node 开始记录. 结束消息也在 nodeEnds 中的 node, 从 nodeEnds 移除, 直接插入最终状态
+     */
+    private Map<String, Long> persistNodeStarts(
+            List<Message> nodeStarts,
+            Map<String, Message> nodeEnds,
+            Map<String, FlowExecutionEntity> flowExecutionMap) {
+        Map<String, Long> result = new HashMap<>();
+        if (nodeStarts.isEmpty()) {
+            return result;
+        }
+        List<NodeExecutionEntity> inserts = new ArrayList<>(nodeStarts.size());
+        Set<String> finished = new HashSet<>();
+        for (Message msg : nodeStarts) {
+            // input data 使用开始时的 context
+            NodeExecutionEntity entity = this.createNodeExecutionFromMsg(msg, flowExecutionMap)
+                    .setStartTime(eventTime(msg));
+            Message end = nodeEnds.remove(entity.getNodeExecutionUuidV4());
+            if (ObjectUtils.isNotEmpty(end)) {
+                entity.setExecutionStatus(end.execStatus().name())
+                        .setOutputData(this.getNodeData(end.node(), end.context(), false))
+                        .setNodeExecutionLog(end.errorMessage())
+                        .setEndTime(eventTime(end));
+                finished.add(entity.getNodeExecutionUuidV4());
+            }
+            inserts.add(entity);
+        }
+        isBatchOperationSuccess(this.nodeExecutionMapper.insert(inserts));
+        for (NodeExecutionEntity entity : inserts) {
+            result.put(entity.getNodeExecutionUuidV4(), entity.getNodeExecutionId());
+            // 已经结束的 node 不会再有消息, 不需要缓存
+            if (!finished.contains(entity.getNodeExecutionUuidV4())) {
+                this.nodeExecutionIdCache.put(entity.getNodeExecutionUuidV4(), entity.getNodeExecutionId());
+            }
+        }
+        return result;
+    }
+
+    private void persistNodeEnds(
+            List<Message> nodeEnds,
+            Map<String, FlowExecutionEntity> flowExecutionMap,
+            Map<String, Long> nodeExecutionIdMap) {
+        if (nodeEnds.isEmpty()) {
+            return;
+        }
+        // 不在本批次中开始的 node execution 先查缓存, 缓存被淘汰(比如重启)才查询数据库
+        Set<String> missing = new HashSet<>();
+        for (Message msg : nodeEnds) {
+            String uuid = msg.nodeExecutionUuidV4().toString();
+            if (nodeExecutionIdMap.containsKey(uuid)) {
+                continue;
+            }
+            Long cached = this.nodeExecutionIdCache.get(uuid);
+            if (ObjectUtils.isEmpty(cached)) {
+                missing.add(uuid);
+            } else {
+                nodeExecutionIdMap.put(uuid, cached);
+            }
+        }
+        if (!missing.isEmpty()) {
+            LambdaQueryWrapper<NodeExecutionEntity> queryWrapper = new LambdaQueryWrapper<>();
+            queryWrapper.select(NodeExecutionEntity::getNodeExecutionId, NodeExecutionEntity::getNodeExecutionUuidV4);
+            queryWrapper.in(NodeExecutionEntity::getNodeExecutionUuidV4, missing);
+            this.nodeExecutionMapper.selectList(queryWrapper).forEach(entity ->
+                    nodeExecutionIdMap.put(entity.getNodeExecutionUuidV4(), entity.getNodeExecutionId()));
+        }
+        List<NodeExecutionEntity> updates = new ArrayList<>(nodeEnds.size());
+        for (Message msg : nodeEnds) {
+            Long nodeExecutionId = nodeExecutionIdMap.get(msg.nodeExecutionUuidV4().toString());
+            if (ObjectUtils.isEmpty(nodeExecutionId)) {
+                throw new BusinessException("找不到 node execution." +
+                        "UUID 是 %s".formatted(msg.nodeExecutionUuidV4()));
+            }
+            // entity 设置数据库 ID, output data 和 end time
+            updates.add(this.createNodeExecutionFromMsg(msg, flowExecutionMap)
+                    .setNodeExecutionId(nodeExecutionId)
+                    .setOutputData(this.getNodeData(msg.node(), msg.context(), false))
+                    .setEndTime(eventTime(msg)));
+        }
+        isBatchOperationSuccess(this.nodeExecutionMapper.updateById(updates));
+        // node 结束后不会再有消息
+        nodeEnds.forEach(msg -> this.nodeExecutionIdCache.remove(msg.nodeExecutionUuidV4().toString()));
+    }
+
+    private void persistFlowEnds(List<Message> flowEnds, Map<String, FlowExecutionEntity> flowExecutionMap) {
+        if (flowEnds.isEmpty()) {
+            return;
+        }
+        List<FlowExecutionEntity> updates = new ArrayList<>(flowEnds.size());
+        for (Message msg : flowEnds) {
+            FlowExecutionEntity dbResult = flowExecutionMap.get(msg.flowExecutionUuidV4().toString());
+            if (ObjectUtils.isEmpty(dbResult)) {
+                throw new BusinessException(("找不到 flow execution. " +
+                        "uuid 是 %s").formatted(msg.flowExecutionUuidV4()));
+            }
+            // entity 设置数据库 id 和 结束时间
+            updates.add(this.createFlowExecutionFromMsg(msg)
+                    .setFlowExecutionId(dbResult.getFlowExecutionId())
+                    .setEndTime(eventTime(msg)));
+        }
+        isBatchOperationSuccess(this.flowExecutionMapper.updateById(updates));
+        flowEnds.forEach(msg -> this.flowExecutionCache.remove(msg.flowExecutionUuidV4().toString()));
+    }
+
+    /**
+     * 查询 uuid 对应的 flow execution 放入 map. 已经在 map 中的跳过, 缓存中有的不查询数据库
+     */
+    private void loadFlowExecutions(Map<String, FlowExecutionEntity> flowExecutionMap, Set<String> uuids) {
+        Set<String> missing = new HashSet<>();
+        for (String uuid : uuids) {
+            if (flowExecutionMap.containsKey(uuid)) {
+                continue;
+            }
+            FlowExecutionEntity cached = this.flowExecutionCache.get(uuid);
+            if (ObjectUtils.isEmpty(cached)) {
+                missing.add(uuid);
+            } else {
+                flowExecutionMap.put(uuid, cached);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        LambdaQueryWrapper<FlowExecutionEntity> queryWrapper = new LambdaQueryWrapper<>();
+        queryWrapper.select(
+                FlowExecutionEntity::getFlowExecutionId,
+                FlowExecutionEntity::getFlowExecutionUuidV4,
+                FlowExecutionEntity::getFlowDefinitionId
+        );
+        queryWrapper.in(FlowExecutionEntity::getFlowExecutionUuidV4, missing);
+        for (FlowExecutionEntity entity : this.flowExecutionMapper.selectList(queryWrapper)) {
+            flowExecutionMap.put(entity.getFlowExecutionUuidV4(), entity);
+            this.flowExecutionCache.put(entity.getFlowExecutionUuidV4(), entity);
+        }
+    }
+
+    private void evictCache(List<Message> messages) {
+        for (Message msg : messages) {
+            this.flowExecutionCache.remove(msg.flowExecutionUuidV4().toString());
+            if (ObjectUtils.isNotEmpty(msg.nodeExecutionUuidV4())) {
+                this.nodeExecutionIdCache.remove(msg.nodeExecutionUuidV4().toString());
+            }
+        }
+    }
+
+    private NodeExecutionEntity createNodeExecutionFromMsg(
+            Message msg,
+            Map<String, FlowExecutionEntity> flowExecutionMap) {
+        FlowExecutionEntity flowExecution = flowExecutionMap.get(msg.flowExecutionUuidV4().toString());
         if (ObjectUtils.isEmpty(flowExecution)) {
             throw new BusinessException("找不到 flow execution. " +
                     "UUID 是 %s".formatted(msg.flowExecutionUuidV4()));
@@ -134,80 +458,93 @@ public class FlowMsgPersistService implements SmartLifecycle {
                 .setNodeId(msg.node().getNodeId())
                 .setNodeName(msg.node().getName())
                 .setExecutionStatus(msg.execStatus().name())
-                .setInputData(this.getNodeData(msg.node(), msg.data(), true))
+                .setInputData(this.getNodeData(msg.node(), msg.context(), true))
                 .setNodeExecutionLog(msg.errorMessage());
     }
 
-    private NodeExecutionEntity getNodeExecutionByUuidV4(UUID uuidV4) {
-        LambdaQueryWrapper<NodeExecutionEntity> queryWrapper = new LambdaQueryWrapper<>();
-        queryWrapper.eq(NodeExecutionEntity::getNodeExecutionUuidV4, uuidV4.toString());
-        return this.nodeExecutionMapper.selectOne(queryWrapper);
-    }
-
-    private FlowExecutionEntity getFlowExecutionByUuidV4(UUID uuidV4) {
-        LambdaQueryWrapper<FlowExecutionEntity> queryWrapper = new LambdaQueryWrapper<>();
-        queryWrapper.eq(FlowExecutionEntity::getFlowExecutionUuidV4, uuidV4.toString());
-        return this.flowExecutionMapper.selectOne(queryWrapper);
-    }
-
-    private void handleFlowMsg(Message msg) {
-        FlowExecutionEntity entity = this.createFlowExecutionFromMsg(msg);
-        switch (msg.execStatus()) {
-            case RUNNING -> {
-                entity.setStartTime(Timestamp.from(Instant.now()));
-                isDbOperationSuccess(this.flowExecutionMapper.insert(entity));
-            }
-            case SUCCESS, FAILED -> {
-                // 查找数据库
-                LambdaQueryWrapper<FlowExecutionEntity> queryWrapper = new LambdaQueryWrapper<>();
-                queryWrapper.eq(FlowExecutionEntity::getFlowExecutionUuidV4, entity.getFlowExecutionUuidV4());
-                FlowExecutionEntity dbResult = this.flowExecutionMapper.selectOne(queryWrapper);
-                if (ObjectUtils.isEmpty(dbResult)) {
-                    throw new BusinessException(("找不到 flow execution. " +
-                            "uuid 是 %s").formatted(entity.getFlowExecutionUuidV4()));
-                }
-                // entity 设置数据库 id 和 结束时间
-                entity.setFlowExecutionId(dbResult.getFlowExecutionId())
-                        .setEndTime(Timestamp.from(Instant.now()));
-                // 更新数据库
-                isDbOperationSuccess(this.flowExecutionMapper.updateById(entity));
-            }
-        }
-    }
-
     private FlowExecutionEntity createFlowExecutionFromMsg(Message msg) {
         return new FlowExecutionEntity()
                 .setFlowExecutionUuidV4(msg.flowExecutionUuidV4().toString())
                 .setFlowDefinitionId(msg.registerId())
                 .setExecutionStatus(msg.execStatus().name())
-                .setContextData(msg.data())
+                .setContextData(msg.context().flatten())
                 .setErrorMessage(msg.errorMessage());
     }
 
+    // spool 中旧格式的消息没有时间, 使用当前时间
+    private static Timestamp eventTime(Message msg) {
+        return Timestamp.from(ObjectUtils.defaultIfNull(msg.timestamp(), Instant.now()));
+    }
+
     private void isDbOperationSuccess(int count) {
         if (count != 1) {
             throw new BusinessException("db 操作失败, count = %s".formatted(count));
         }
     }
 
-    private Map<String, Object> getNodeData(FlowNode node, Map<String, Object> contextData, boolean input) {
+    private void isBatchOperationSuccess(List<BatchResult> batchResults) {
+        for (BatchResult batchResult : batchResults) {
+            for (int count : batchResult.getUpdateCounts()) {
+                // 驱动重写 batch 时返回 SUCCESS_NO_INFO
+                if (count != 1 && count != Statement.SUCCESS_NO_INFO) {
+                    throw new BusinessException("db 批量操作失败, count = %s".formatted(count));
+                }
+            }
+        }
+    }
+
+    private Map<String, Object> getNodeData(FlowNode node, ContextLayer context, boolean input) {
         Node annotation = this.flowValidator.getAnnotationByNodeName(node.getName());
         String[] paramKeys = input ? annotation.inputParams() : annotation.outputParams();
         HashMap<String, Object> result = new HashMap<>();
         for (String paramKey : paramKeys) {
-            result.put(paramKey, contextData.get(paramKey));
+            result.put(paramKey, context.get(paramKey));
         }
         return result;
     }
 
     @Override
     public void start() {
+        this.flowExecutionCache = new LruCache<>(this.persistIdCacheSize);
+        this.nodeExecutionIdCache = new LruCache<>(this.persistIdCacheSize);
+        for (int i = 0; i < this.persistWriterCount; i++) {
+            BlockingQueue<Message> queue = new ArrayBlockingQueue<>(this.persistBatchSize * 4);
+            this.writerQueues.add(queue);
+            this.writerThreads.add(new Thread(() -> this.writeMsg(queue), "FlowMsg-Writer-Thread-" + i));
+        }
+        this.writerThreads.forEach(Thread::start);
         msgHandleThread.start();
     }
 
+    /**
+     * 先停止分配消息, 再等待 writer 写完队列中的消息. Spring 等待 callback 后再关闭 channel 和数据源
+     */
+    @Override
+    public void stop(Runnable callback) {
+        Thread stopThread = new Thread(() -> {
+            try {
+                this.stop();
+            } finally {
+                callback.run();
+            }
+        }, "FlowMsg-Persis-Stop-Thread");
+        stopThread.start();
+    }
+
     @Override
     public void stop() {
         msgHandleThread.interrupt();
+        try {
+            msgHandleThread.join();
+            this.writersStopping = true;
+            for (Thread writerThread : this.writerThreads) {
+                writerThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("等待消息写入结束时被中断, writer 队列中 {} 条消息没有写入",
+                    this.writerQueues.stream().mapToInt(BlockingQueue::size).sum());
+        }
     }
 
     @Override
@@ -1,7 +1,9 @@
 package com.flowstack.server.service;
 
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.flowstack.server.core.engine.ExecutionPlanCache;
 import com.flowstack.server.core.engine.FlowEngine;
+import com.flowstack.server.core.model.execution.Checkpoint;
 import com.flowstack.server.enums.DeletedEnum;
 import com.flowstack.server.exception.BusinessException;
 import com.flowstack.server.mapper.FlowDefinitionMapper;
@@ -27,6 +29,8 @@ import java.util.concurrent.ScheduledFuture;
 @RequiredArgsConstructor
 public class FlowScheduler implements SmartLifecycle {
     private final FlowEngine flowEngine;
+    private final ExecutionPlanCache executionPlanCache;
+    private final FlowMsgPersistService flowMsgPersistService;
     private final FlowDefinitionMapper flowDefinitionMapper;
     private final TaskScheduler systemManagementTaskScheduler;
     private final Map<Long, FlowScheduleInfo> flowScheduleMap = new ConcurrentHashMap<>();
@@ -51,7 +55,7 @@ public class FlowScheduler implements SmartLifecycle {
         FlowScheduleInfo flowScheduleInfo = flowScheduleMap.get(flowDefinitionId);
         if (flowScheduleInfo.isExecutionIdle()) {
             // 开始执行
-            flowScheduleInfo.execution = this.flowEngine.execute(flowDefinitionId, entity.getDefinition());
+            flowScheduleInfo.execution = this.flowEngine.execute(entity);
         } else {
             // 跳过本次执行
             log.warn("跳过 flow 执行. flow definition id: {}", flowDefinitionId);
@@ -64,6 +68,8 @@ public class FlowScheduler implements SmartLifecycle {
             flowScheduleInfo.stop();
             this.flowScheduleMap.remove(flowDefinitionId);
         }
+        // 执行计划失效, 重新启用时按 DB 中的 definition 重新编译
+        this.executionPlanCache.invalidate(flowDefinitionId);
         FlowDefinitionEntity dbResult = this.flowDefinitionMapper.selectById(flowDefinitionId);
         if (ObjectUtils.isNotEmpty(dbResult)) {
             dbResult.setEnabled(0);
@@ -103,6 +109,28 @@ public class FlowScheduler implements SmartLifecycle {
         this.schedule(dbResult);
     }
 
+    /**
+     * 从最近一次失败执行的检查点恢复, 已经成功的 node 不再执行
+     */
+    public void resumeFlow(Long flowDefinitionId) {
+        FlowDefinitionEntity dbResult = this.flowDefinitionMapper.selectById(flowDefinitionId);
+        if (ObjectUtils.isEmpty(dbResult) || dbResult.getRecordDeleted().equals(DeletedEnum.DELETED.getCode())) {
+            throw new BusinessException("flow %s 不存在".formatted(flowDefinitionId));
+        }
+        FlowScheduleInfo flowScheduleInfo = this.flowScheduleMap.get(flowDefinitionId);
+        if (ObjectUtils.isNotEmpty(flowScheduleInfo) && !flowScheduleInfo.isExecutionIdle()) {
+            throw new BusinessException("flow %s 正在执行".formatted(flowDefinitionId));
+        }
+        Checkpoint checkpoint = this.flowMsgPersistService.loadCheckpoint(flowDefinitionId);
+        log.info("恢复 flow 执行. flow definition id: {}, 跳过已完成的 node: {}",
+                flowDefinitionId, checkpoint.completedNodeIds());
+        Future<?> execution = this.flowEngine.resume(dbResult, checkpoint);
+        if (ObjectUtils.isNotEmpty(flowScheduleInfo)) {
+            // 恢复执行期间, 定时触发的执行跳过
+            flowScheduleInfo.setExecution(execution);
+        }
+    }
+
     @Override
     public void start() {
         //  获取全部 enable, 没有删除的 flow
@@ -0,0 +1,248 @@
+package com.flowstack.server.service;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
+import com.flowstack.server.exception.BusinessException;
+import com.flowstack.server.exception.ValidationException;
+import com.flowstack.server.mapper.FlowDefinitionMapper;
+import com.flowstack.server.mapper.FlowExecutionMapper;
+import com.flowstack.server.mapper.NodeExecutionMapper;
+import com.flowstack.server.model.db.FlowDefinitionEntity;
+import com.flowstack.server.model.db.FlowExecutionEntity;
+import com.flowstack.server.model.db.NodeExecutionEntity;
+import com.flowstack.server.util.JsonUtil;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.lang3.ObjectUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 执行记录保留策略. 每个 flow 最近 N 次执行保留完整数据, 更早的执行把 context data 和 node 输入输出
+ * 写入本地 gzip 归档文件, 数据库中只保留摘要(状态, 时间, 错误信息). 摘要超过保留天数后删除.
+ * 每次只处理 retentionChunkSize 条执行记录, 每批一个事务, 避免长事务和大量锁
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class RetentionService {
+    private final FlowDefinitionMapper flowDefinitionMapper;
+    private final FlowExecutionMapper flowExecutionMapper;
+    private final NodeExecutionMapper nodeExecutionMapper;
+    private final TransactionTemplate transactionTemplate;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    @Value("${flowstack.server.system.retentionFullRuns:10}")
+    private int retentionFullRuns;
+
+    @Value("${flowstack.server.system.retentionSummaryDays:180}")
+    private int retentionSummaryDays;
+
+    @Value("${flowstack.server.system.retentionChunkSize:100}")
+    private int retentionChunkSize;
+
+    @Value("${flowstack.server.system.retentionArchivePath:archive}")
+    private String retentionArchivePath;
+
+    @Scheduled(
+            cron = "${flowstack.server.system.retentionCron:0 30 3 * * *}",
+            scheduler = "systemManagementTaskScheduler"
+    )
+    public void applyRetention() {
+        // 上一次没有结束时跳过
+        if (!this.running.compareAndSet(false, true)) {
+            log.warn("上一次执行记录清理没有结束, 跳过");
+            return;
+        }
+        try {
+            // 已删除的 flow 也需要清理
+            List<FlowDefinitionEntity> flows = this.flowDefinitionMapper.selectList(
+                    new LambdaQueryWrapper<FlowDefinitionEntity>().select(
+                            FlowDefinitionEntity::getFlowDefinitionId,
+                            FlowDefinitionEntity::getRetentionFullRuns,
+                            FlowDefinitionEntity::getRetentionSummaryDays
+                    )
+            );
+            for (FlowDefinitionEntity flow : flows) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                try {
+                    this.applyRetention(flow);
+                } catch (Exception e) {
+                    log.error("flow {} 执行记录清理失败", flow.getFlowDefinitionId(), e);
+                }
+            }
+        } finally {
+            this.running.set(false);
+        }
+    }
+
+    public void updatePolicy(Long flowDefinitionId, Integer fullRuns, Integer summaryDays) {
+        if (ObjectUtils.isNotEmpty(fullRuns) && fullRuns < 1) {
+            // 至少保留最近一次, 失败恢复需要它的 node 输出
+            throw new ValidationException("retentionFullRuns 必须大于 0, 当前是 %s".formatted(fullRuns));
+        }
+        if (ObjectUtils.isNotEmpty(summaryDays) && summaryDays < 0) {
+            throw new ValidationException("retentionSummaryDays 不能小于 0, 当前是 %s".formatted(summaryDays));
+        }
+        // 允许设置为 null, 恢复使用系统默认值
+        LambdaUpdateWrapper<FlowDefinitionEntity> updateWrapper = new LambdaUpdateWrapper<>();
+        updateWrapper.eq(FlowDefinitionEntity::getFlowDefinitionId, flowDefinitionId)
+                .set(FlowDefinitionEntity::getRetentionFullRuns, fullRuns)
+                .set(FlowDefinitionEntity::getRetentionSummaryDays, summaryDays);
+        int count = this.flowDefinitionMapper.update(updateWrapper);
+        if (count != 1) {
+            throw new BusinessException("db 操作失败, count = %s".formatted(count));
+        }
+    }
+
+    private void applyRetention(FlowDefinitionEntity flow) throws IOException {
+        Long flowDefinitionId = flow.getFlowDefinitionId();
+        int fullRuns = ObjectUtils.defaultIfNull(flow.getRetentionFullRuns(), this.retentionFullRuns);
+        int summaryDays = ObjectUtils.defaultIfNull(flow.getRetentionSummaryDays(), this.retentionSummaryDays);
+        // 最近 fullRuns 次执行中最早的 id, 比它小的执行需要归档
+        LambdaQueryWrapper<FlowExecutionEntity> queryWrapper = new LambdaQueryWrapper<>();
+        queryWrapper.select(FlowExecutionEntity::getFlowExecutionId)
+                .eq(FlowExecutionEntity::getFlowDefinitionId, flowDefinitionId)
+                .orderByDesc(FlowExecutionEntity::getFlowExecutionId)
+                .last("LIMIT 1 OFFSET " + (Math.max(fullRuns, 1) - 1));
+        FlowExecutionEntity oldestFull = this.flowExecutionMapper.selectOne(queryWrapper);
+        if (ObjectUtils.isEmpty(oldestFull)) {
+            return;
+        }
+        Long threshold = oldestFull.getFlowExecutionId();
+        int archived = 0;
+        List<FlowExecutionEntity> chunk;
+        do {
+            chunk = this.selectToArchive(flowDefinitionId, threshold);
+            if (CollectionUtils.isNotEmpty(chunk)) {
+                this.archiveChunk(flowDefinitionId, chunk);
+                archived += chunk.size();
+            }
+        } while (chunk.size() == this.retentionChunkSize && !Thread.currentThread().isInterrupted());
+        int deleted = 0;
+        if (summaryDays > 0) {
+            Timestamp before = Timestamp.from(Instant.now().minus(Duration.ofDays(summaryDays)));
+            List<Long> ids;
+            do {
+                ids = this.selectToDelete(flowDefinitionId, threshold, before);
+                if (CollectionUtils.isNotEmpty(ids)) {
+                    this.deleteChunk(ids);
+                    deleted += ids.size();
+                }
+            } while (ids.size() == this.retentionChunkSize && !Thread.currentThread().isInterrupted());
+        }
+        if (archived > 0 || deleted > 0) {
+            log.info("flow {} 执行记录清理完成, 归档 {} 条, 删除摘要 {} 条", flowDefinitionId, archived, deleted);
+        }
+    }
+
+    private List<FlowExecutionEntity> selectToArchive(Long flowDefinitionId, Long threshold) {
+        // 只归档已经结束的执行
+        LambdaQueryWrapper<FlowExecutionEntity> queryWrapper = new LambdaQueryWrapper<>();
+        queryWrapper.eq(FlowExecutionEntity::getFlowDefinitionId, flowDefinitionId)
+                .lt(FlowExecutionEntity::getFlowExecutionId, threshold)
+                .isNull(FlowExecutionEntity::getArchivePath)
+                .isNotNull(FlowExecutionEntity::getEndTime)
+                .orderByAsc(FlowExecutionEntity::getFlowExecutionId)
+                .last("LIMIT " + this.retentionChunkSize);
+        return this.flowExecutionMapper.selectList(queryWrapper);
+    }
+
+    private List<Long> selectToDelete(Long flowDefinitionId, Long threshold, Timestamp before) {
+        // 只删除已经归档的摘要
+        LambdaQueryWrapper<FlowExecutionEntity> queryWrapper = new LambdaQueryWrapper<>();
+        queryWrapper.select(FlowExecutionEntity::getFlowExecutionId)
+                .eq(FlowExecutionEntity::getFlowDefinitionId, flowDefinitionId)
+                .lt(FlowExecutionEntity::getFlowExecutionId, threshold)
+                .isNotNull(FlowExecutionEntity::getArchivePath)
+                .lt(FlowExecutionEntity::getEndTime, before)
+                .orderByAsc(FlowExecutionEntity::getFlowExecutionId)
+                .last("LIMIT " + this.retentionChunkSize);
+        return this.flowExecutionMapper.selectList(queryWrapper).stream()
+                .map(FlowExecutionEntity::getFlowExecutionId)
+                .toList();
+    }
+
+    /**
+     * 先写归档文件, 再在一个事务中清空数据库中的大字段. 写文件失败时数据库不变
+     */
+    private void archiveChunk(Long flowDefinitionId, List<FlowExecutionEntity> chunk) throws IOException {
+        List<Long> ids = chunk.stream().map(FlowExecutionEntity::getFlowExecutionId).toList();
+        LambdaQueryWrapper<NodeExecutionEntity> nodeQueryWrapper = new LambdaQueryWrapper<>();
+        nodeQueryWrapper.in(NodeExecutionEntity::getFlowExecutionId, ids)
+                .orderByAsc(NodeExecutionEntity::getNodeExecutionId);
+        Map<Long, List<NodeExecutionEntity>> nodeMap = new HashMap<>();
+        for (NodeExecutionEntity node : this.nodeExecutionMapper.selectList(nodeQueryWrapper)) {
+            nodeMap.computeIfAbsent(node.getFlowExecutionId(), k -> new ArrayList<>()).add(node);
+        }
+        Map<Long, String> archivePaths = new HashMap<>();
+        for (FlowExecutionEntity execution : chunk) {
+            Path archive = this.writeArchive(
+                    flowDefinitionId,
+                    execution,
+                    nodeMap.getOrDefault(execution.getFlowExecutionId(), List.of())
+            );
+            archivePaths.put(execution.getFlowExecutionId(), archive.toString());
+        }
+        this.transactionTemplate.executeWithoutResult(status -> {
+            for (FlowExecutionEntity execution : chunk) {
+                LambdaUpdateWrapper<FlowExecutionEntity> updateWrapper = new LambdaUpdateWrapper<>();
+                updateWrapper.eq(FlowExecutionEntity::getFlowExecutionId, execution.getFlowExecutionId())
+                        .set(FlowExecutionEntity::getContextData, null)
+                        .set(FlowExecutionEntity::getArchivePath, archivePaths.get(execution.getFlowExecutionId()));
+                this.flowExecutionMapper.update(updateWrapper);
+            }
+            // input_data 不能为空, 使用空对象
+            LambdaUpdateWrapper<NodeExecutionEntity> nodeUpdateWrapper = new LambdaUpdateWrapper<>();
+            nodeUpdateWrapper.in(NodeExecutionEntity::getFlowExecutionId, ids)
+                    .setSql("input_data = '{}', output_data = NULL");
+            this.nodeExecutionMapper.update(nodeUpdateWrapper);
+        });
+    }
+
+    private void deleteChunk(List<Long> ids) {
+        this.transactionTemplate.executeWithoutResult(status -> {
+            this.nodeExecutionMapper.delete(
+                    new LambdaQueryWrapper<NodeExecutionEntity>().in(NodeExecutionEntity::getFlowExecutionId, ids));
+            this.flowExecutionMapper.deleteByIds(ids);
+        });
+    }
+
+    /**
+     * 归档文件: {archivePath}/{flowDefinitionId}/{flowExecutionId}.json.gz. 先写临时文件再改名,
+     * 中途失败不会留下不完整的归档
+     */
+    private Path writeArchive(
+            Long flowDefinitionId,
+            FlowExecutionEntity execution,
+            List<NodeExecutionEntity> nodes) throws IOException {
+        Path dir = Path.of(this.retentionArchivePath, String.valueOf(flowDefinitionId));
+        Files.createDirectories(dir);
+        Path target = dir.resolve(execution.getFlowExecutionId() + ".json.gz");
+        Path tmp = dir.resolve(execution.getFlowExecutionId() + ".json.gz.tmp");
+        Map<String, Object> content = new LinkedHashMap<>();
+        content.put("flowExecution", execution);
+        content.put("nodeExecutions", nodes);
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp))) {
+            out.write(JsonUtil.serializeToBytes(content));
+        }
+        return Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
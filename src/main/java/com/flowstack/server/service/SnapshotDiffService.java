@@ -0,0 +1,348 @@
+package com.flowstack.server.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.flowstack.server.exception.BusinessException;
+import com.flowstack.server.exception.ValidationException;
+import com.flowstack.server.node.model.CommandResult;
+import com.flowstack.server.node.restic.model.SnapshotDiff;
+import com.flowstack.server.node.restic.utils.ResticJsonDecoder;
+import com.flowstack.server.node.restic.utils.ResticUtil;
+import com.flowstack.server.node.restic.utils.SnapshotIndex;
+import com.flowstack.server.util.JsonUtil;
+import com.flowstack.server.util.LruCache;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 两个 snapshot 的差异对比. 两个 snapshot 都有索引时按索引顺序归并对比, 包含每个文件的大小变化,
+ * 否则由 snapshot_diff node 执行 restic diff --json 并提交索引任务. snapshot 不会改变, 结果保存在本地 gzip 文件中,
+ * 最近使用的结果按变化数量缓存在内存中. 两种来源的 modified 都带 reason(type, content, metadata)
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class SnapshotDiffService {
+    private static final String DIFF_DIRECTORY = "diff";
+    private static final String DIFF_SUFFIX = ".json.gz";
+
+    private final SnapshotIndexService snapshotIndexService;
+
+    @Value("${flowstack.server.system.snapshotIndexPath:snapshot-index}")
+    private String snapshotIndexPath;
+
+    @Value("${flowstack.server.system.snapshotDiffCacheMaxChanges:1000000}")
+    private long snapshotDiffCacheMaxChanges;
+
+    private LruCache<String, SnapshotDiff> cache;
+
+    @PostConstruct
+    protected void init() {
+        this.cache = new LruCache<>(this.snapshotDiffCacheMaxChanges, (key, diff) -> diff.getChanges().size() + 1L);
+    }
+
+    /**
+     * 不执行 restic 能得到的结果: 内存缓存, 本地文件, 或者两个索引都存在时直接对比. 都没有时返回 null
+     */
+    public SnapshotDiff find(String fromSnapshotId, String toSnapshotId) {
+        checkSnapshotIds(fromSnapshotId, toSnapshotId);
+        String key = fromSnapshotId + "_" + toSnapshotId;
+        SnapshotDiff cached = this.cache.get(key);
+        if (cached != null && SnapshotDiff.SOURCE_INDEX.equals(cached.getSource())) {
+            return cached;
+        }
+        SnapshotDiff diff = readDiff(this.diffFile(key, SnapshotDiff.SOURCE_INDEX));
+        if (diff == null) {
+            SnapshotIndex fromIndex = this.snapshotIndexService.find(fromSnapshotId);
+            SnapshotIndex toIndex = this.snapshotIndexService.find(toSnapshotId);
+            if (fromIndex != null && toIndex != null) {
+                // 索引生成后替换 restic diff 的结果
+                diff = diffIndexes(fromSnapshotId, fromIndex, toSnapshotId, toIndex);
+                writeDiff(this.diffFile(key, SnapshotDiff.SOURCE_INDEX), diff);
+                deleteDiff(this.diffFile(key, SnapshotDiff.SOURCE_RESTIC));
+            } else if (cached != null) {
+                return cached;
+            } else {
+                diff = readDiff(this.diffFile(key, SnapshotDiff.SOURCE_RESTIC));
+            }
+        }
+        if (diff != null) {
+            this.cache.put(key, diff);
+        }
+        return diff;
+    }
+
+    /**
+     * 没有可用的结果时执行 restic diff --json 并提交索引任务. 会长时间占用仓库, 只在 node 中调用
+     */
+    public SnapshotDiff diff(String backupRepository, String resticPassword, String fromSnapshotId, String toSnapshotId) {
+        SnapshotDiff diff = this.find(fromSnapshotId, toSnapshotId);
+        if (diff != null) {
+            return diff;
+        }
+        // 索引生成后的下一次对比使用索引
+        this.snapshotIndexService.submitBuild(fromSnapshotId, backupRepository);
+        this.snapshotIndexService.submitBuild(toSnapshotId, backupRepository);
+        diff = resticDiff(backupRepository, resticPassword, fromSnapshotId, toSnapshotId);
+        String key = fromSnapshotId + "_" + toSnapshotId;
+        writeDiff(this.diffFile(key, SnapshotDiff.SOURCE_RESTIC), diff);
+        this.cache.put(key, diff);
+        return diff;
+    }
+
+    public void invalidateSnapshot(String snapshotId) {
+        if (!SnapshotIndexService.isValidSnapshotId(snapshotId)) {
+            return;
+        }
+        this.cache.removeIf(key -> key.startsWith(snapshotId + "_") || key.endsWith("_" + snapshotId));
+        Path directory = Path.of(this.snapshotIndexPath, DIFF_DIRECTORY);
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        // 文件名是 from_to.json.gz 或 from_to.restic.json.gz, 只删除 from 或 to 完全相同的文件
+        DirectoryStream.Filter<Path> filter = file -> {
+            String name = file.getFileName().toString();
+            if (!name.endsWith(DIFF_SUFFIX)) {
+                return false;
+            }
+            String key = StringUtils.substringBefore(name.substring(0, name.length() - DIFF_SUFFIX.length()), ".");
+            return key.startsWith(snapshotId + "_") || key.endsWith("_" + snapshotId);
+        };
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, filter)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            log.warn("snapshot {} 的 diff 缓存删除失败", snapshotId, e);
+        }
+    }
+
+    /**
+     * 两个索引使用相同的顺序(见 SnapshotIndex.compareIndexOrder), 同时顺序读取一遍即可找出所有增加, 删除和修改的节点
+     */
+    static SnapshotDiff diffIndexes(
+            String fromSnapshotId,
+            SnapshotIndex fromIndex,
+            String toSnapshotId,
+            SnapshotIndex toIndex) {
+        DiffCollector collector = new DiffCollector(fromSnapshotId, toSnapshotId, SnapshotDiff.SOURCE_INDEX);
+        // 跳过根目录
+        int i = 1;
+        int j = 1;
+        SnapshotIndex.Entry from = i < fromIndex.size() ? fromIndex.get(i) : null;
+        SnapshotIndex.Entry to = j < toIndex.size() ? toIndex.get(j) : null;
+        while (from != null || to != null) {
+            int cmp = from == null ? 1 : to == null ? -1 : SnapshotIndex.compareIndexOrder(from.path(), to.path());
+            if (cmp < 0) {
+                collector.add(from.path(), from.type(), "removed", null, from.size(), null);
+            } else if (cmp > 0) {
+                collector.add(to.path(), to.type(), "added", null, null, to.size());
+            } else {
+                // 目录的 ctime 随子节点变化, 只比较类型
+                String reason = !from.type().equals(to.type()) ? SnapshotDiff.REASON_TYPE
+                        : to.isDirectory() ? null
+                        : from.size() != to.size() ? SnapshotDiff.REASON_CONTENT
+                        : !Objects.equals(from.ctime(), to.ctime()) ? SnapshotDiff.REASON_METADATA
+                        : null;
+                if (reason != null) {
+                    collector.add(to.path(), to.type(), "modified", reason, from.size(), to.size());
+                }
+            }
+            if (cmp <= 0) {
+                from = ++i < fromIndex.size() ? fromIndex.get(i) : null;
+            }
+            if (cmp >= 0) {
+                to = ++j < toIndex.size() ? toIndex.get(j) : null;
+            }
+        }
+        return collector.finish();
+    }
+
+    /**
+     * restic diff 只输出 path 和变化类型(+ 增加, - 删除, M 内容修改, T 类型修改, U 只有元数据修改),
+     * 和索引对比一致, 目录只有元数据修改时不计入. 文件的字节数未知(addedBytes, removedBytes 为 null),
+     * statistics 中仓库去重后增加和删除的数据量单独保存在 repositoryAddedBytes, repositoryRemovedBytes
+     */
+    private static SnapshotDiff resticDiff(
+            String backupRepository,
+            String resticPassword,
+            String fromSnapshotId,
+            String toSnapshotId) {
+        CommandLine commandLine = new CommandLine("restic");
+        commandLine.addArgument("diff");
+        commandLine.addArgument(fromSnapshotId);
+        commandLine.addArgument(toSnapshotId);
+        commandLine.addArgument("--json");
+        DiffCollector collector = new DiffCollector(fromSnapshotId, toSnapshotId, SnapshotDiff.SOURCE_RESTIC);
+        long[] statisticsBytes = new long[2];
+        CommandResult result = ResticUtil.decode(
+                resticPassword,
+                backupRepository,
+                null,
+                commandLine,
+                new ResticJsonDecoder()
+                        .on("change", JsonNode.class, change -> {
+                            String path = change.path("path").asText();
+                            String modifier = change.path("modifier").asText();
+                            // 目录以 / 结尾
+                            boolean directory = path.length() > 1 && path.endsWith("/");
+                            String type = directory ? "dir" : "file";
+                            path = directory ? path.substring(0, path.length() - 1) : path;
+                            if (modifier.startsWith("+")) {
+                                collector.add(path, type, "added", null, null, null);
+                            } else if (modifier.startsWith("-")) {
+                                collector.add(path, type, "removed", null, null, null);
+                            } else {
+                                String reason = modifier.contains("T") ? SnapshotDiff.REASON_TYPE
+                                        : modifier.contains("M") ? SnapshotDiff.REASON_CONTENT
+                                        : modifier.contains("U") && !directory ? SnapshotDiff.REASON_METADATA
+                                        : null;
+                                if (reason != null) {
+                                    collector.add(path, type, "modified", reason, null, null);
+                                }
+                            }
+                        })
+                        .on("statistics", JsonNode.class, statistics -> {
+                            statisticsBytes[0] = statistics.path("added").path("bytes").asLong();
+                            statisticsBytes[1] = statistics.path("removed").path("bytes").asLong();
+                        })
+        );
+        if (!result.isSuccess()) {
+            throw new BusinessException("restic diff 失败. exit code: %s, error: %s"
+                    .formatted(result.getExitCode(), result.getError()));
+        }
+        return collector.finish()
+                .setRepositoryAddedBytes(statisticsBytes[0])
+                .setRepositoryRemovedBytes(statisticsBytes[1]);
+    }
+
+    // 文件不存在或者无法读取时返回 null
+    private static SnapshotDiff readDiff(Path diffFile) {
+        if (!Files.isRegularFile(diffFile)) {
+            return null;
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(diffFile));
+             JsonParser parser = JsonUtil.createParser(in)) {
+            return parser.readValueAs(SnapshotDiff.class);
+        } catch (IOException | BusinessException e) {
+            log.warn("snapshot diff 缓存 {} 无法读取, 重新对比", diffFile, e);
+            return null;
+        }
+    }
+
+    private static void writeDiff(Path diffFile, SnapshotDiff diff) {
+        Path tmp = diffFile.resolveSibling(diffFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(diffFile.getParent());
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp))) {
+                out.write(JsonUtil.serializeToBytes(diff));
+            }
+            Files.move(tmp, diffFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | BusinessException e) {
+            log.warn("snapshot diff 缓存 {} 写入失败", diffFile, e);
+        }
+    }
+
+    private static void deleteDiff(Path diffFile) {
+        try {
+            Files.deleteIfExists(diffFile);
+        } catch (IOException e) {
+            log.warn("snapshot diff 缓存 {} 删除失败", diffFile, e);
+        }
+    }
+
+    // restic diff 的结果单独保存, 索引生成后被替换
+    private Path diffFile(String key, String source) {
+        String name = SnapshotDiff.SOURCE_INDEX.equals(source) ? key + DIFF_SUFFIX : key + "." + source + DIFF_SUFFIX;
+        return Path.of(this.snapshotIndexPath, DIFF_DIRECTORY, name);
+    }
+
+    private static void checkSnapshotIds(String fromSnapshotId, String toSnapshotId) {
+        if (!SnapshotIndexService.isValidSnapshotId(fromSnapshotId)
+                || !SnapshotIndexService.isValidSnapshotId(toSnapshotId)) {
+            throw new ValidationException("snapshot id %s, %s 格式错误".formatted(fromSnapshotId, toSnapshotId));
+        }
+    }
+
+    /**
+     * 收集变化, 按父目录汇总. 任意一个变化不知道大小时, 目录的 sizeDelta 为 null
+     */
+    private static class DiffCollector {
+        private final SnapshotDiff diff;
+        private final List<SnapshotDiff.PathChange> changes = new ArrayList<>();
+        // 父目录 -> [added, removed, modified, sizeDelta, 是否知道大小(1/0)]
+        private final Map<String, long[]> directories = new HashMap<>();
+
+        DiffCollector(String fromSnapshotId, String toSnapshotId, String source) {
+            this.diff = new SnapshotDiff()
+                    .setFromSnapshotId(fromSnapshotId)
+                    .setToSnapshotId(toSnapshotId)
+                    .setSource(source);
+            // restic diff 不输出文件大小
+            if (SnapshotDiff.SOURCE_INDEX.equals(source)) {
+                this.diff.setAddedBytes(0L).setRemovedBytes(0L);
+            }
+        }
+
+        void add(String path, String type, String change, String reason, Long oldSize, Long newSize) {
+            boolean sizeKnown = !"modified".equals(change) ? oldSize != null || newSize != null
+                    : oldSize != null && newSize != null;
+            Long sizeDelta = sizeKnown ? Objects.requireNonNullElse(newSize, 0L) - Objects.requireNonNullElse(oldSize, 0L)
+                    : null;
+            this.changes.add(new SnapshotDiff.PathChange(path, type, change, reason, oldSize, newSize, sizeDelta));
+            long[] directory = this.directories.computeIfAbsent(
+                    SnapshotIndex.parentOf(path),
+                    k -> new long[]{0, 0, 0, 0, 1}
+            );
+            switch (change) {
+                case "added" -> {
+                    directory[0]++;
+                    this.diff.setAddedCount(this.diff.getAddedCount() + 1);
+                }
+                case "removed" -> {
+                    directory[1]++;
+                    this.diff.setRemovedCount(this.diff.getRemovedCount() + 1);
+                }
+                default -> {
+                    directory[2]++;
+                    this.diff.setModifiedCount(this.diff.getModifiedCount() + 1);
+                }
+            }
+            if (sizeDelta == null) {
+                directory[4] = 0;
+                return;
+            }
+            directory[3] += sizeDelta;
+            if (sizeDelta > 0) {
+                this.diff.setAddedBytes(this.diff.getAddedBytes() + sizeDelta);
+            } else {
+                this.diff.setRemovedBytes(this.diff.getRemovedBytes() - sizeDelta);
+            }
+        }
+
+        SnapshotDiff finish() {
+            this.changes.sort((c1, c2) -> SnapshotIndex.compareIndexOrder(c1.path(), c2.path()));
+            List<SnapshotDiff.DirectoryChange> directoryChanges = new ArrayList<>(this.directories.size());
+            this.directories.forEach((path, counts) -> directoryChanges.add(new SnapshotDiff.DirectoryChange(
+                    path, counts[0], counts[1], counts[2], counts[4] == 1 ? counts[3] : null)));
+            directoryChanges.sort(Comparator.comparing(SnapshotDiff.DirectoryChange::path));
+            return this.diff.setChanges(this.changes).setDirectories(directoryChanges);
+        }
+    }
+}
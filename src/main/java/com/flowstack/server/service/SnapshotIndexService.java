@@ -0,0 +1,194 @@
+package com.flowstack.server.service;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.flowstack.server.enums.DeletedEnum;
+import com.flowstack.server.exception.BusinessException;
+import com.flowstack.server.mapper.SnapshotMetaMapper;
+import com.flowstack.server.model.SystemSettings;
+import com.flowstack.server.model.db.SnapshotMetaEntity;
+import com.flowstack.server.node.model.CommandResult;
+import com.flowstack.server.node.restic.model.SnapshotNode;
+import com.flowstack.server.node.restic.utils.ResticJsonDecoder;
+import com.flowstack.server.node.restic.utils.ResticUtil;
+import com.flowstack.server.node.restic.utils.SnapshotIndex;
+import com.flowstack.server.util.LruCache;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * snapshot 目录树索引. snapshot 不会改变, 新的 snapshot 入库后在后台执行一次完整的 restic ls 生成索引文件,
+ * 之后列目录, 统计目录大小和搜索都直接读取索引, 不再调用 restic. 索引还没有生成时返回 null, 由调用方回退到 restic ls.
+ * 生成的索引同时写入 SnapshotSearchService, 用于跨 snapshot 搜索
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class SnapshotIndexService {
+    private static final Pattern SNAPSHOT_ID_PATTERN = Pattern.compile("[0-9a-f]{8,64}");
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final SystemSettings systemSettings;
+    private final AsyncTaskExecutor snapshotIndexTaskExecutor;
+    private final SnapshotSearchService snapshotSearchService;
+    private final SnapshotMetaMapper snapshotMetaMapper;
+    // 已提交还没有完成的 snapshot id, 避免重复生成
+    private final Set<String> pendingSnapshotIds = ConcurrentHashMap.newKeySet();
+
+    @Value("${flowstack.server.system.snapshotIndexPath:snapshot-index}")
+    private String snapshotIndexPath;
+
+    @Value("${flowstack.server.system.snapshotIndexCacheSize:16}")
+    private int snapshotIndexCacheSize;
+
+    @Value("${flowstack.server.system.snapshotSearchBackfill:true}")
+    private boolean snapshotSearchBackfill;
+
+    private LruCache<String, SnapshotIndex> openIndexes;
+
+    @PostConstruct
+    protected void init() {
+        this.openIndexes = new LruCache<>(this.snapshotIndexCacheSize);
+    }
+
+    /**
+     * 返回已经生成的索引, 没有时返回 null
+     */
+    public SnapshotIndex find(String snapshotId) {
+        if (!isValidSnapshotId(snapshotId)) {
+            return null;
+        }
+        SnapshotIndex index = this.openIndexes.get(snapshotId);
+        if (index != null) {
+            return index;
+        }
+        Path file = this.indexFile(snapshotId);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            index = SnapshotIndex.open(file);
+        } catch (IOException | BusinessException e) {
+            // 格式不匹配或者损坏的索引重新生成
+            log.warn("snapshot {} 索引无法读取, 删除", snapshotId, e);
+            this.delete(snapshotId);
+            return null;
+        }
+        this.openIndexes.put(snapshotId, index);
+        return index;
+    }
+
+    /**
+     * 启动后给还没有索引或者还没有写入搜索库的 snapshot 提交任务, 已经处理过的 snapshot 直接跳过
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfill() {
+        if (!this.snapshotSearchBackfill) {
+            return;
+        }
+        LambdaQueryWrapper<SnapshotMetaEntity> queryWrapper = new LambdaQueryWrapper<>();
+        queryWrapper.eq(SnapshotMetaEntity::getRecordDeleted, DeletedEnum.NOT_DELETED.getCode());
+        queryWrapper.isNotNull(SnapshotMetaEntity::getSnapshotId);
+        try {
+            this.snapshotMetaMapper.selectList(queryWrapper).forEach(this::submitBuild);
+        } catch (RuntimeException e) {
+            log.error("snapshot 索引补充任务提交失败", e);
+        }
+    }
+
+    /**
+     * 在后台生成索引并写入搜索库, 都已经完成或者正在生成时忽略
+     */
+    public void submitBuild(SnapshotMetaEntity snapshotMeta) {
+        this.submitBuild(snapshotMeta.getSnapshotId(), snapshotMeta.getBackupRepository());
+    }
+
+    public void submitBuild(String snapshotId, String backupRepository) {
+        if (!isValidSnapshotId(snapshotId) || StringUtils.isBlank(backupRepository)) {
+            return;
+        }
+        if ((Files.isRegularFile(this.indexFile(snapshotId)) && this.snapshotSearchService.contains(snapshotId))
+                || !this.pendingSnapshotIds.add(snapshotId)) {
+            return;
+        }
+        try {
+            this.snapshotIndexTaskExecutor.execute(() -> {
+                try {
+                    if (!Files.isRegularFile(this.indexFile(snapshotId))) {
+                        this.build(snapshotId, backupRepository);
+                    }
+                    // 索引生成后写入跨 snapshot 的搜索库
+                    SnapshotIndex index = this.find(snapshotId);
+                    if (index != null) {
+                        this.snapshotSearchService.addSnapshot(snapshotId, backupRepository, index);
+                    }
+                } catch (Exception e) {
+                    log.error("snapshot {} 索引生成失败", snapshotId, e);
+                } finally {
+                    this.pendingSnapshotIds.remove(snapshotId);
+                }
+            });
+        } catch (RuntimeException e) {
+            this.pendingSnapshotIds.remove(snapshotId);
+            log.error("snapshot {} 索引任务提交失败", snapshotId, e);
+        }
+    }
+
+    public void delete(String snapshotId) {
+        if (!isValidSnapshotId(snapshotId)) {
+            return;
+        }
+        this.openIndexes.remove(snapshotId);
+        try {
+            Files.deleteIfExists(this.indexFile(snapshotId));
+        } catch (IOException e) {
+            log.warn("snapshot {} 索引删除失败", snapshotId, e);
+        }
+    }
+
+    private void build(String snapshotId, String backupRepository) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        CommandLine commandLine = new CommandLine("restic");
+        commandLine.addArgument("ls");
+        commandLine.addArgument(snapshotId);
+        commandLine.addArgument("--json");
+        try (SnapshotIndex.Builder builder = new SnapshotIndex.Builder()) {
+            CommandResult result = ResticUtil.decode(
+                    this.systemSettings.getRestic().getBackupPassword(),
+                    backupRepository,
+                    null,
+                    commandLine,
+                    new ResticJsonDecoder().on("node", SnapshotNode.class, builder::add)
+            );
+            if (!result.isSuccess()) {
+                throw new BusinessException("restic ls 失败. exit code: %s, error: %s"
+                        .formatted(result.getExitCode(), result.getError()));
+            }
+            builder.writeTo(this.indexFile(snapshotId));
+        }
+        log.info("snapshot {} 索引生成完成, 耗时 {} ms", snapshotId, System.currentTimeMillis() - startMillis);
+    }
+
+    private Path indexFile(String snapshotId) {
+        return Path.of(this.snapshotIndexPath, snapshotId + INDEX_SUFFIX);
+    }
+
+    // snapshot id 用作文件名, 只允许 restic 的十六进制 id
+    public static boolean isValidSnapshotId(String snapshotId) {
+        return StringUtils.isNotBlank(snapshotId) && SNAPSHOT_ID_PATTERN.matcher(snapshotId).matches();
+    }
+}
@@ -0,0 +1,104 @@
+package com.flowstack.server.service;
+
+import com.flowstack.server.core.engine.NodeDeadline;
+import com.flowstack.server.exception.BusinessException;
+import com.flowstack.server.node.restic.model.SnapshotNode;
+import com.flowstack.server.util.LruCache;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * restic ls 结果缓存, key 为 (repository, snapshotId, filter). snapshot 内容不会改变, 不设置过期时间,
+ * 只按缓存的 node 总数淘汰, snapshot 被删除时清理. 相同 key 的并发请求共享同一次 restic ls
+ */
+@Service
+@Slf4j
+public class SnapshotLsCache {
+    // 不在 node 中调用时的等待时间, 和 restic 命令的默认超时一致
+    private static final Duration WAIT_TIMEOUT = Duration.ofMinutes(60L);
+
+    // 正在执行的 restic ls, 结束后移除
+    private final Map<Key, CompletableFuture<List<SnapshotNode>>> loading = new ConcurrentHashMap<>();
+
+    @Value("${flowstack.server.system.snapshotLsCacheMaxNodes:500000}")
+    private long snapshotLsCacheMaxNodes;
+
+    private LruCache<Key, List<SnapshotNode>> cache;
+
+    @PostConstruct
+    protected void init() {
+        this.cache = new LruCache<>(this.snapshotLsCacheMaxNodes, (key, nodes) -> nodes.size() + 1L);
+    }
+
+    /**
+     * 返回缓存的结果, 没有时在当前线程执行 loader. 其他线程正在加载相同的 key 时等待它的结果,
+     * 最多等待当前 node 的剩余时间.
+     * loader 抛出的异常原样抛给所有等待的调用方, 失败的结果不缓存
+     */
+    public List<SnapshotNode> get(String repository, String snapshotId, String filter,
+                                  Supplier<List<SnapshotNode>> loader) {
+        Key key = new Key(repository, snapshotId, filter);
+        List<SnapshotNode> cached = this.cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        CompletableFuture<List<SnapshotNode>> future = new CompletableFuture<>();
+        CompletableFuture<List<SnapshotNode>> existing = this.loading.putIfAbsent(key, future);
+        if (existing != null) {
+            // 等待使用调用方 node 的剩余时间, flow 取消时可以被中断
+            try {
+                return existing.get(NodeDeadline.remaining(WAIT_TIMEOUT).toMillis(), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : new BusinessException(
+                        "restic ls 失败", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BusinessException("等待 snapshot %s 的 restic ls 时被中断".formatted(snapshotId), e);
+            } catch (TimeoutException e) {
+                throw new BusinessException("等待 snapshot %s 的 restic ls 超时".formatted(snapshotId), e);
+            }
+        }
+        try {
+            // 检查缓存和登记加载之间, 其他线程可能已经完成
+            cached = this.cache.get(key);
+            if (cached == null) {
+                // loader 在调用方线程执行, 使用调用方 node 的超时时间和进度上报
+                cached = List.copyOf(loader.get());
+                this.cache.put(key, cached);
+            }
+            future.complete(cached);
+            return cached;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.loading.remove(key, future);
+        }
+    }
+
+    /**
+     * 只读取缓存, 没有时返回 null, 不执行 restic ls
+     */
+    public List<SnapshotNode> getIfPresent(String repository, String snapshotId, String filter) {
+        return this.cache.get(new Key(repository, snapshotId, filter));
+    }
+
+    public void invalidateSnapshot(String snapshotId) {
+        this.cache.removeIf(key -> key.snapshotId().equals(snapshotId));
+    }
+
+    private record Key(String repository, String snapshotId, String filter) {
+    }
+}
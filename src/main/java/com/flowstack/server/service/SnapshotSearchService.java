@@ -0,0 +1,414 @@
+package com.flowstack.server.service;
+
+import com.flowstack.server.exception.BusinessException;
+import com.flowstack.server.model.api.snapshot.PathSearchResultDTO;
+import com.flowstack.server.node.restic.utils.SnapshotIndex;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * 跨 snapshot 的文件名搜索. 使用本地嵌入的 H2 数据库, 和业务数据库无关:
+ * <ul>
+ *     <li>search_name: 不重复的文件名, 每个文件名按小写拆成 3 个字符的 gram 写入 search_gram</li>
+ *     <li>search_path: 不重复的完整 path</li>
+ *     <li>search_version: path 在每个 snapshot 中的类型, 大小和 ctime</li>
+ * </ul>
+ * snapshot 索引生成后从索引文件写入, 不再调用 restic. 查询先用 gram 找出候选文件名, 再用 LIKE 确认
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class SnapshotSearchService {
+    private static final int GRAM_LENGTH = 3;
+    private static final int BATCH_SIZE = 5000;
+
+    private static final String[] SCHEMA = {
+            """
+            CREATE TABLE IF NOT EXISTS search_snapshot (
+                id INT AUTO_INCREMENT PRIMARY KEY,
+                snapshot_id VARCHAR(64) NOT NULL UNIQUE,
+                backup_repository VARCHAR(4096) NOT NULL
+            )""",
+            """
+            CREATE TABLE IF NOT EXISTS search_name (
+                id BIGINT AUTO_INCREMENT PRIMARY KEY,
+                name_text VARCHAR NOT NULL UNIQUE,
+                name_lower VARCHAR NOT NULL,
+                gram_indexed BOOLEAN NOT NULL
+            )""",
+            """
+            CREATE TABLE IF NOT EXISTS search_gram (
+                gram VARCHAR(3) NOT NULL,
+                name_id BIGINT NOT NULL,
+                PRIMARY KEY (gram, name_id)
+            )""",
+            """
+            CREATE TABLE IF NOT EXISTS search_path (
+                id BIGINT AUTO_INCREMENT PRIMARY KEY,
+                path_text VARCHAR NOT NULL UNIQUE,
+                name_id BIGINT NOT NULL
+            )""",
+            "CREATE INDEX IF NOT EXISTS search_path_name_id ON search_path (name_id)",
+            """
+            CREATE TABLE IF NOT EXISTS search_version (
+                path_id BIGINT NOT NULL,
+                snapshot_id INT NOT NULL,
+                item_type VARCHAR(16) NOT NULL,
+                item_size BIGINT NOT NULL,
+                ctime_millis BIGINT,
+                PRIMARY KEY (path_id, snapshot_id)
+            )""",
+            "CREATE INDEX IF NOT EXISTS search_version_snapshot_id ON search_version (snapshot_id)",
+            // 写入一个 snapshot 时的中间表, 写入完成后清空
+            """
+            CREATE TABLE IF NOT EXISTS search_stage (
+                name_text VARCHAR NOT NULL,
+                name_lower VARCHAR NOT NULL,
+                path_text VARCHAR NOT NULL,
+                item_type VARCHAR(16) NOT NULL,
+                item_size BIGINT NOT NULL,
+                ctime_millis BIGINT
+            )"""
+    };
+
+    private final AsyncTaskExecutor snapshotIndexTaskExecutor;
+
+    @Value("${flowstack.server.system.snapshotIndexPath:snapshot-index}")
+    private String snapshotIndexPath;
+
+    @Value("${flowstack.server.system.snapshotSearchPoolSize:4}")
+    private int snapshotSearchPoolSize;
+
+    private HikariDataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+
+    @PostConstruct
+    protected void init() throws IOException {
+        Path directory = Path.of(this.snapshotIndexPath, "search").toAbsolutePath();
+        Files.createDirectories(directory);
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:h2:file:" + directory.resolve("paths") + ";DB_CLOSE_ON_EXIT=FALSE");
+        config.setDriverClassName("org.h2.Driver");
+        config.setUsername("sa");
+        config.setPassword("");
+        config.setMaximumPoolSize(this.snapshotSearchPoolSize);
+        config.setPoolName("Snapshot-Search-Pool");
+        this.dataSource = new HikariDataSource(config);
+        this.jdbcTemplate = new JdbcTemplate(this.dataSource);
+        this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(this.jdbcTemplate);
+        for (String sql : SCHEMA) {
+            this.jdbcTemplate.execute(sql);
+        }
+    }
+
+    @PreDestroy
+    protected void close() {
+        if (this.dataSource != null) {
+            this.dataSource.close();
+        }
+    }
+
+    public boolean contains(String snapshotId) {
+        Integer count = this.jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM search_snapshot WHERE snapshot_id = ?", Integer.class, snapshotId);
+        return count != null && count > 0;
+    }
+
+    /**
+     * 把 snapshot 索引中的所有节点写入搜索库, 已经写入过时忽略. 在一个事务中完成, 中途失败不会留下部分数据
+     */
+    public synchronized void addSnapshot(String snapshotId, String backupRepository, SnapshotIndex snapshotIndex) {
+        if (this.contains(snapshotId)) {
+            return;
+        }
+        long startMillis = System.currentTimeMillis();
+        this.jdbcTemplate.execute((Connection connection) -> {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                this.ingest(connection, snapshotId, backupRepository, snapshotIndex);
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            return null;
+        });
+        log.info("snapshot {} 写入搜索库完成, {} 个节点, 耗时 {} ms",
+                snapshotId, snapshotIndex.size() - 1, System.currentTimeMillis() - startMillis);
+    }
+
+    /**
+     * 在后台删除 snapshot 的搜索数据, 和索引生成使用同一个线程, 保证顺序
+     */
+    public void removeSnapshot(String snapshotId) {
+        if (!SnapshotIndexService.isValidSnapshotId(snapshotId)) {
+            return;
+        }
+        try {
+            this.snapshotIndexTaskExecutor.execute(() -> {
+                try {
+                    this.delete(snapshotId);
+                } catch (RuntimeException e) {
+                    log.error("snapshot {} 搜索数据删除失败", snapshotId, e);
+                }
+            });
+        } catch (RuntimeException e) {
+            log.error("snapshot {} 搜索数据删除任务提交失败", snapshotId, e);
+        }
+    }
+
+    /**
+     * 按文件名搜索(不区分大小写, 包含 keyword 即可), 结果按 path 排序, 每个 path 返回它在各个 snapshot 中的版本.
+     * 少于 3 个字符的 keyword 无法使用 gram, 直接扫描文件名
+     *
+     * @param backupRepository 为空时搜索所有仓库
+     */
+    public List<PathSearchResultDTO> search(String keyword, String backupRepository, int limit) {
+        String keywordLower = keyword.toLowerCase(Locale.ROOT);
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("pattern", "%" + escapeLike(keywordLower) + "%")
+                .addValue("limit", limit);
+        StringBuilder sql = new StringBuilder("""
+                SELECT p.id, p.path_text, n.name_text FROM search_path p
+                JOIN search_name n ON n.id = p.name_id
+                WHERE n.name_lower LIKE :pattern ESCAPE '\\'
+                """);
+        Set<String> grams = grams(keywordLower);
+        if (!grams.isEmpty()) {
+            sql.append("""
+                    AND n.id IN (SELECT name_id FROM search_gram WHERE gram IN (:grams)
+                    GROUP BY name_id HAVING COUNT(*) = :gramCount)
+                    """);
+            params.addValue("grams", grams).addValue("gramCount", grams.size());
+        }
+        if (StringUtils.isNotBlank(backupRepository)) {
+            sql.append("""
+                    AND EXISTS (SELECT 1 FROM search_version v JOIN search_snapshot s ON s.id = v.snapshot_id
+                    WHERE v.path_id = p.id AND s.backup_repository = :repository)
+                    """);
+            params.addValue("repository", backupRepository);
+        }
+        sql.append("ORDER BY p.path_text LIMIT :limit");
+        Map<Long, PathSearchResultDTO> results = new LinkedHashMap<>();
+        this.namedParameterJdbcTemplate.query(sql.toString(), params, rs -> {
+            results.put(rs.getLong(1), new PathSearchResultDTO()
+                    .setPath(rs.getString(2))
+                    .setName(rs.getString(3))
+                    .setVersions(new ArrayList<>()));
+        });
+        if (results.isEmpty()) {
+            return List.of();
+        }
+        this.fillVersions(results, backupRepository);
+        return List.copyOf(results.values());
+    }
+
+    // 同一个 path 在连续的 snapshot 中类型, 大小和 ctime 都相同时合并为一个版本
+    private void fillVersions(Map<Long, PathSearchResultDTO> results, String backupRepository) {
+        MapSqlParameterSource params = new MapSqlParameterSource().addValue("pathIds", results.keySet());
+        StringBuilder sql = new StringBuilder("""
+                SELECT v.path_id, s.snapshot_id, v.item_type, v.item_size, v.ctime_millis FROM search_version v
+                JOIN search_snapshot s ON s.id = v.snapshot_id
+                WHERE v.path_id IN (:pathIds)
+                """);
+        if (StringUtils.isNotBlank(backupRepository)) {
+            sql.append("AND s.backup_repository = :repository\n");
+            params.addValue("repository", backupRepository);
+        }
+        sql.append("ORDER BY v.path_id, s.id");
+        this.namedParameterJdbcTemplate.query(sql.toString(), params, rs -> {
+            List<PathSearchResultDTO.Version> versions = results.get(rs.getLong(1)).getVersions();
+            String type = rs.getString(3);
+            long size = rs.getLong(4);
+            long ctimeMillis = rs.getLong(5);
+            Instant ctime = rs.wasNull() ? null : Instant.ofEpochMilli(ctimeMillis);
+            PathSearchResultDTO.Version last = versions.isEmpty() ? null : versions.getLast();
+            if (last == null
+                    || !last.getType().equals(type)
+                    || last.getSize() != size
+                    || !Objects.equals(last.getCtime(), ctime)) {
+                last = new PathSearchResultDTO.Version()
+                        .setType(type)
+                        .setSize(size)
+                        .setCtime(ctime)
+                        .setSnapshotIds(new ArrayList<>());
+                versions.add(last);
+            }
+            last.getSnapshotIds().add(rs.getString(2));
+        });
+    }
+
+    private void ingest(Connection connection, String snapshotId, String backupRepository, SnapshotIndex snapshotIndex)
+            throws SQLException {
+        int snapshotKey;
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO search_snapshot (snapshot_id, backup_repository) VALUES (?, ?)",
+                Statement.RETURN_GENERATED_KEYS)) {
+            statement.setString(1, snapshotId);
+            statement.setString(2, backupRepository);
+            statement.executeUpdate();
+            try (ResultSet keys = statement.getGeneratedKeys()) {
+                if (!keys.next()) {
+                    throw new BusinessException("snapshot %s 写入搜索库失败, 没有生成 id".formatted(snapshotId));
+                }
+                snapshotKey = keys.getInt(1);
+            }
+        }
+        // 跳过根目录
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO search_stage VALUES (?, ?, ?, ?, ?, ?)")) {
+            for (int i = 1; i < snapshotIndex.size(); i++) {
+                SnapshotIndex.Entry entry = snapshotIndex.get(i);
+                statement.setString(1, entry.name());
+                statement.setString(2, entry.name().toLowerCase(Locale.ROOT));
+                statement.setString(3, entry.path());
+                statement.setString(4, entry.type());
+                statement.setLong(5, entry.isDirectory() ? entry.totalSize() : entry.size());
+                if (entry.ctime() == null) {
+                    statement.setNull(6, Types.BIGINT);
+                } else {
+                    statement.setLong(6, entry.ctime().toEpochMilli());
+                }
+                statement.addBatch();
+                if (i % BATCH_SIZE == 0) {
+                    statement.executeBatch();
+                }
+            }
+            statement.executeBatch();
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("""
+                    INSERT INTO search_name (name_text, name_lower, gram_indexed)
+                    SELECT DISTINCT s.name_text, s.name_lower, FALSE FROM search_stage s
+                    WHERE NOT EXISTS (SELECT 1 FROM search_name n WHERE n.name_text = s.name_text)""");
+            statement.executeUpdate("""
+                    INSERT INTO search_path (path_text, name_id)
+                    SELECT s.path_text, n.id FROM search_stage s JOIN search_name n ON n.name_text = s.name_text
+                    WHERE NOT EXISTS (SELECT 1 FROM search_path p WHERE p.path_text = s.path_text)""");
+        }
+        try (PreparedStatement statement = connection.prepareStatement("""
+                INSERT INTO search_version (path_id, snapshot_id, item_type, item_size, ctime_millis)
+                SELECT p.id, ?, s.item_type, s.item_size, s.ctime_millis FROM search_stage s
+                JOIN search_path p ON p.path_text = s.path_text""")) {
+            statement.setInt(1, snapshotKey);
+            statement.executeUpdate();
+        }
+        this.indexNewNames(connection);
+        try (Statement statement = connection.createStatement()) {
+            // TRUNCATE 会提交事务
+            statement.executeUpdate("DELETE FROM search_stage");
+        }
+    }
+
+    // 给新的文件名生成 gram, 按 id 分批读取
+    private void indexNewNames(Connection connection) throws SQLException {
+        long lastId = 0;
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT id, name_lower FROM search_name WHERE gram_indexed = FALSE AND id > ? ORDER BY id LIMIT ?");
+             PreparedStatement insert = connection.prepareStatement(
+                     "INSERT INTO search_gram (gram, name_id) VALUES (?, ?)")) {
+            while (true) {
+                select.setLong(1, lastId);
+                select.setInt(2, BATCH_SIZE);
+                int rows = 0;
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        rows++;
+                        lastId = rs.getLong(1);
+                        for (String gram : grams(rs.getString(2))) {
+                            insert.setString(1, gram);
+                            insert.setLong(2, lastId);
+                            insert.addBatch();
+                        }
+                    }
+                }
+                insert.executeBatch();
+                if (rows < BATCH_SIZE) {
+                    break;
+                }
+            }
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE search_name SET gram_indexed = TRUE WHERE gram_indexed = FALSE");
+        }
+    }
+
+    // 删除 snapshot 的版本, 再删除不再被任何 snapshot 引用的 path, 文件名和 gram
+    private synchronized void delete(String snapshotId) {
+        this.jdbcTemplate.execute((Connection connection) -> {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement select = connection.prepareStatement(
+                    "SELECT id FROM search_snapshot WHERE snapshot_id = ?");
+                 Statement statement = connection.createStatement()) {
+                select.setString(1, snapshotId);
+                int snapshotKey;
+                try (ResultSet rs = select.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    snapshotKey = rs.getInt(1);
+                }
+                statement.executeUpdate("DELETE FROM search_version WHERE snapshot_id = " + snapshotKey);
+                statement.executeUpdate("DELETE FROM search_snapshot WHERE id = " + snapshotKey);
+                statement.executeUpdate("""
+                        DELETE FROM search_path p
+                        WHERE NOT EXISTS (SELECT 1 FROM search_version v WHERE v.path_id = p.id)""");
+                statement.executeUpdate("""
+                        DELETE FROM search_name n
+                        WHERE NOT EXISTS (SELECT 1 FROM search_path p WHERE p.name_id = n.id)""");
+                statement.executeUpdate("""
+                        DELETE FROM search_gram g
+                        WHERE NOT EXISTS (SELECT 1 FROM search_name n WHERE n.id = g.name_id)""");
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            return null;
+        });
+    }
+
+    private static Set<String> grams(String text) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            grams.add(text.substring(i, i + GRAM_LENGTH));
+        }
+        return grams;
+    }
+
+    private static String escapeLike(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
@@ -1,5 +1,6 @@
 package com.flowstack.server.util;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JavaType;
@@ -9,12 +10,12 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.type.TypeFactory;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.flowstack.server.exception.BusinessException;
-import com.flowstack.server.exception.ValidationException;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.lang.reflect.Field;
 import java.util.*;
@@ -30,6 +31,42 @@ public class JsonUtil {
         return objectMapper.convertValue(value, typeRef);
     }
 
+    /**
+     * value 已经是目标类型时直接返回, 否则使用 convertValue 转换. 集合只检查元素的类型, 不做递归检查
+     */
+    public static Object convertIfNeeded(Object value, TypeReference<?> typeRef) {
+        if (value == null) {
+            return null;
+        }
+        JavaType targetType = typeFactory.constructType(typeRef);
+        if (isShallowInstance(targetType, value)) {
+            return value;
+        }
+        return objectMapper.convertValue(value, targetType);
+    }
+
+    /**
+     * 只检查最外层的类型, 用于读取已经转换过的值
+     */
+    public static boolean isRawInstance(Object value, TypeReference<?> typeRef) {
+        return typeFactory.constructType(typeRef).getRawClass().isInstance(value);
+    }
+
+    private static boolean isShallowInstance(JavaType targetType, Object value) {
+        if (!targetType.getRawClass().isInstance(value)) {
+            return false;
+        }
+        if (targetType.isCollectionLikeType() && value instanceof Collection<?> collection) {
+            Class<?> contentClass = targetType.getContentType().getRawClass();
+            for (Object element : collection) {
+                if (element != null && !contentClass.isInstance(element)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     public static boolean validateType(TypeReference<?> typeRef, Object value) {
         if (value == null) {
             return false; // 或根据需求调整
@@ -179,33 +216,11 @@ public class JsonUtil {
         return fields;
     }
 
-    public static <T> List<T> aggResticOutputByMsgType(
-            String commandLineOutput,
-            String msgType,
-            Class<T> clazz) throws ValidationException, BusinessException {
-        if (ObjectUtils.isEmpty(clazz)) {
-            throw new ValidationException("parseLine failed. clazz is null.");
-        }
-        if (StringUtils.isAnyBlank(commandLineOutput, msgType)) {
-            return null;
-        }
-        List<T> result = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new StringReader(commandLineOutput))) {
-            String line;
-            while ((line = br.readLine()) != null && !line.isBlank()) {
-                // Parse to a tree to inspect message_type quickly
-                JsonNode root = objectMapper.readTree(line);
-                String type = root.path("message_type").asText();
-                if (msgType.equals(type)) {
-                    result.add(objectMapper.treeToValue(root, clazz));
-                }
-            }
-            return result;
-        } catch (IOException e) {
-            throw new BusinessException("aggResticOutputByMsgType failed. " +
-                    "commandLineOutput is %s".formatted(commandLineOutput),
-                    e);
-        }
+    /**
+     * 使用统一配置的 ObjectMapper 创建流式 parser, 读取 value 时使用同一个 ObjectMapper
+     */
+    public static JsonParser createParser(InputStream inputStream) throws IOException {
+        return objectMapper.createParser(inputStream);
     }
 
     public static <T> T readLastLine(String commandLineOutput, Class<T> clazz) throws BusinessException {
@@ -235,6 +250,14 @@ public class JsonUtil {
         }
     }
 
+    public static JsonNode readTree(String jsonString) throws BusinessException {
+        try {
+            return objectMapper.readTree(jsonString);
+        } catch (JsonProcessingException e) {
+            throw new BusinessException("readTree failed. jsonString is %s".formatted(jsonString), e);
+        }
+    }
+
     public static <T> List<T> deserToList(String jsonString, Class<T> elementType) {
         try {
             return objectMapper.readValue(
@@ -254,6 +277,22 @@ public class JsonUtil {
         }
     }
 
+    public static byte[] serializeToBytes(Object object) throws BusinessException {
+        try {
+            return objectMapper.writeValueAsBytes(object);
+        } catch (JsonProcessingException e) {
+            throw new BusinessException("serializeToBytes failed. object is %s".formatted(object), e);
+        }
+    }
+
+    public static <T> T deserFromBytes(byte[] bytes, Class<T> clazz) throws BusinessException {
+        try {
+            return objectMapper.readValue(bytes, clazz);
+        } catch (IOException e) {
+            throw new BusinessException("deserFromBytes failed", e);
+        }
+    }
+
     private static boolean isSimpleType(Class<?> clazz) {
         return clazz.isPrimitive() ||
                 clazz == String.class ||
@@ -0,0 +1,71 @@
+package com.flowstack.server.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * 线程安全的有界 LRU 缓存. 超过容量时淘汰最久没有访问的数据.
+ * 可以指定 weigher 按权重计算容量(例如按元素数量), 单个超过容量的数据不缓存
+ */
+public class LruCache<K, V> {
+    private final Map<K, V> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final long capacity;
+    private final ToLongBiFunction<? super K, ? super V> weigher;
+    private long totalWeight;
+
+    public LruCache(int capacity) {
+        this(capacity, (k, v) -> 1L);
+    }
+
+    public LruCache(long capacity, ToLongBiFunction<? super K, ? super V> weigher) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity 必须大于 0, 当前是 %s".formatted(capacity));
+        }
+        this.capacity = capacity;
+        this.weigher = weigher;
+    }
+
+    public synchronized V get(K key) {
+        return this.map.get(key);
+    }
+
+    public synchronized void put(K key, V value) {
+        V old = this.map.put(key, value);
+        if (old != null) {
+            this.totalWeight -= this.weigher.applyAsLong(key, old);
+        }
+        this.totalWeight += this.weigher.applyAsLong(key, value);
+        // 从最久没有访问的开始淘汰
+        Iterator<Map.Entry<K, V>> iterator = this.map.entrySet().iterator();
+        while (this.totalWeight > this.capacity && iterator.hasNext()) {
+            Map.Entry<K, V> eldest = iterator.next();
+            this.totalWeight -= this.weigher.applyAsLong(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    public synchronized void remove(K key) {
+        V old = this.map.remove(key);
+        if (old != null) {
+            this.totalWeight -= this.weigher.applyAsLong(key, old);
+        }
+    }
+
+    public synchronized void removeIf(Predicate<? super K> keyPredicate) {
+        Iterator<Map.Entry<K, V>> iterator = this.map.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<K, V> entry = iterator.next();
+            if (keyPredicate.test(entry.getKey())) {
+                this.totalWeight -= this.weigher.applyAsLong(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return this.map.size();
+    }
+}
@@ -14,6 +14,8 @@ CREATE TABLE
                         cron_config VARCHAR(255)  not null,
                         version INT DEFAULT 1,
                         enabled int default 1,
+                        retention_full_runs INT, -- 保留完整数据的最近执行次数, 为空使用系统默认值
+                        retention_summary_days INT, -- 归档后摘要保留天数, 0 永久保留, 为空使用系统默认值
                         PRIMARY KEY (`flow_definition_id`)
 ) ENGINE = InnoDB AUTO_INCREMENT = 1 DEFAULT CHARSET = utf8mb4 COLLATE = utf8mb4_unicode_ci;
 
@@ -34,8 +36,12 @@ CREATE TABLE
                        error_message TEXT, -- 错误信息
                        start_time TIMESTAMP, -- 开始时间
                        end_time TIMESTAMP, -- 结束时间
+                       archive_path VARCHAR(400), -- 归档文件路径, 不为空表示只保留摘要
                        PRIMARY KEY (`flow_execution_id`)
 ) ENGINE = InnoDB AUTO_INCREMENT = 1 DEFAULT CHARSET = utf8mb4 COLLATE = utf8mb4_unicode_ci;
+CREATE UNIQUE INDEX uk_flow_execution_uuid_v4 ON flow_execution (flow_execution_uuid_v4);
+CREATE INDEX idx_flow_execution_definition_start ON flow_execution (flow_definition_id, start_time);
+CREATE INDEX idx_flow_execution_start_id ON flow_execution (start_time, flow_execution_id);
 
 -- 节点执行日志表
 DROP TABLE IF EXISTS node_execution;
@@ -60,6 +66,10 @@ CREATE TABLE
                        end_time TIMESTAMP,
                        PRIMARY KEY (`node_execution_id`)
 ) ENGINE = InnoDB AUTO_INCREMENT = 1 DEFAULT CHARSET = utf8mb4 COLLATE = utf8mb4_unicode_ci;
+CREATE UNIQUE INDEX uk_node_execution_uuid_v4 ON node_execution (node_execution_uuid_v4);
+CREATE INDEX idx_node_execution_flow_execution ON node_execution (flow_execution_id, start_time);
+CREATE INDEX idx_node_execution_definition_start ON node_execution (flow_definition_id, start_time);
+CREATE INDEX idx_node_execution_start_id ON node_execution (start_time, node_execution_id);
 
 -- snapshot 元数据表
 DROP TABLE IF EXISTS snapshot_meta;
@@ -2,6 +2,8 @@ package com.flowstack.server;
 
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.flowstack.server.controller.FlowEditorController;
 import com.flowstack.server.controller.FlowInfoController;
 import com.flowstack.server.controller.ResticController;
@@ -28,6 +30,7 @@ import com.flowstack.server.model.db.FlowDefinitionEntity;
 import com.flowstack.server.model.db.FlowExecutionEntity;
 import com.flowstack.server.model.db.SnapshotMetaEntity;
 import com.flowstack.server.node.registry.FieldRegistry;
+import com.flowstack.server.util.JsonUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -42,12 +45,16 @@ import org.springframework.http.ContentDisposition;
 import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.TestPropertySource;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -133,13 +140,20 @@ class FlowStackApplicationTests {
         FlowResponse<List<SnapshotMetaEntity>> result = this.resticController.getAllSnapshots();
         Assertions.assertEquals(200, result.getStatusCode());
         assertTrue(CollectionUtils.isNotEmpty(result.getData()));
-        FlowResponse<List<SnapshotItemDTO>> ls = this.resticController.getSnapshotItems(result.getData().get(0), "/");
-        Assertions.assertEquals(200, ls.getStatusCode());
-        assertTrue(CollectionUtils.isNotEmpty(ls.getData()));
+        ResponseEntity<StreamingResponseBody> lsResponse = this.resticController.getSnapshotItems(
+                result.getData().get(0), "/", null, 500, "name", "asc", null);
+        ByteArrayOutputStream lsBody = new ByteArrayOutputStream();
+        Objects.requireNonNull(lsResponse.getBody()).writeTo(lsBody);
+        JsonNode ls = JsonUtil.readTree(lsBody.toString(StandardCharsets.UTF_8));
+        Assertions.assertEquals(200, ls.path("statusCode").asInt());
+        List<SnapshotItemDTO> lsItems = JsonUtil.convertValue(
+                ls.path("data").path("items"), new TypeReference<List<SnapshotItemDTO>>() {
+                });
+        assertTrue(CollectionUtils.isNotEmpty(lsItems));
         String jobId = this.resticController.submitDownloadJob(
                 new RestoreRequest(
                         result.getData().get(0),
-                        ls.getData()
+                        lsItems
                 )
         ).getData();
         assertTrue(StringUtils.isNotBlank(jobId));
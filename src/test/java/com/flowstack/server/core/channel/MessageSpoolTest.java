@@ -0,0 +1,134 @@
+package com.flowstack.server.core.channel;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * MessageSpool 的追加, 读取, 扩容和重启后恢复. 不需要数据库
+ */
+public class MessageSpoolTest {
+    private static final int INITIAL_SIZE = 64;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void appendAndPollInOrder() throws IOException {
+        try (MessageSpool spool = new MessageSpool(this.tempDir.resolve("spool.dat"), INITIAL_SIZE)) {
+            Assertions.assertTrue(spool.isEmpty());
+            Assertions.assertNull(spool.poll());
+            // 超过初始大小时扩容
+            for (int i = 0; i < 20; i++) {
+                spool.append(bytes("message-" + i));
+            }
+            Assertions.assertEquals(20, spool.size());
+            for (int i = 0; i < 20; i++) {
+                Assertions.assertEquals("message-" + i, string(spool.poll()));
+            }
+            Assertions.assertTrue(spool.isEmpty());
+            Assertions.assertEquals(0, spool.bytes());
+            // 读完后从头复用文件
+            spool.append(bytes("again"));
+            Assertions.assertEquals(4 + 5, spool.bytes());
+            Assertions.assertEquals("again", string(spool.poll()));
+        }
+    }
+
+    @Test
+    public void compactWhenNeverDrained() throws IOException {
+        Path file = this.tempDir.resolve("spool.dat");
+        try (MessageSpool spool = new MessageSpool(file, INITIAL_SIZE)) {
+            spool.append(bytes("message-0"));
+            spool.append(bytes("message-1"));
+            // 持续写入, spool 一直不为空, 已读的空间被复用, 文件不会一直增长
+            for (int i = 2; i < 10_000; i++) {
+                spool.append(bytes("message-" + i));
+                Assertions.assertEquals("message-" + (i - 2), string(spool.poll()));
+            }
+            Assertions.assertEquals(2, spool.size());
+            Assertions.assertTrue(Files.size(file) <= 4 * INITIAL_SIZE, "spool 文件大小 " + Files.size(file));
+        }
+        // 移动后的记录重启后仍然可以读取
+        try (MessageSpool spool = new MessageSpool(file, INITIAL_SIZE)) {
+            Assertions.assertEquals("message-9998", string(spool.poll()));
+            Assertions.assertEquals("message-9999", string(spool.poll()));
+            Assertions.assertTrue(spool.isEmpty());
+        }
+    }
+
+    @Test
+    public void recoverUnreadRecords() throws IOException {
+        Path file = this.tempDir.resolve("spool.dat");
+        try (MessageSpool spool = new MessageSpool(file, INITIAL_SIZE)) {
+            spool.append(bytes("first"));
+            spool.append(bytes("second"));
+            spool.append(bytes("third"));
+            Assertions.assertEquals("first", string(spool.poll()));
+        }
+        try (MessageSpool spool = new MessageSpool(file, INITIAL_SIZE)) {
+            Assertions.assertEquals(2, spool.size());
+            Assertions.assertEquals("second", string(spool.poll()));
+            Assertions.assertEquals("third", string(spool.poll()));
+            Assertions.assertNull(spool.poll());
+        }
+    }
+
+    @Test
+    public void recoverTruncatesIncompleteTrailingRecord() throws IOException {
+        Path file = this.tempDir.resolve("spool.dat");
+        long writePos;
+        try (MessageSpool spool = new MessageSpool(file, INITIAL_SIZE)) {
+            spool.append(bytes("complete-1"));
+            spool.append(bytes("complete-2"));
+            writePos = 16 + spool.bytes();
+        }
+        // 模拟写入最后一条记录时进程退出: 头部的 writePos 已经包含这条记录, 但是内容只写了一部分
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, 100), writePos);
+            channel.write(ByteBuffer.allocate(8).putLong(0, writePos + 4 + 10), 8);
+        }
+        try (MessageSpool spool = new MessageSpool(file, INITIAL_SIZE)) {
+            Assertions.assertEquals(2, spool.size());
+            Assertions.assertEquals("complete-1", string(spool.poll()));
+            // 截断后继续追加, 覆盖不完整的记录
+            spool.append(bytes("after-recover"));
+            Assertions.assertEquals("complete-2", string(spool.poll()));
+            Assertions.assertEquals("after-recover", string(spool.poll()));
+            Assertions.assertTrue(spool.isEmpty());
+        }
+    }
+
+    @Test
+    public void discardCorruptedHeader() throws IOException {
+        Path file = this.tempDir.resolve("spool.dat");
+        try (MessageSpool spool = new MessageSpool(file, INITIAL_SIZE)) {
+            spool.append(bytes("lost"));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            // readPos 大于 writePos
+            channel.write(ByteBuffer.allocate(8).putLong(0, 1000), 0);
+        }
+        try (MessageSpool spool = new MessageSpool(file, INITIAL_SIZE)) {
+            Assertions.assertTrue(spool.isEmpty());
+            spool.append(bytes("new"));
+            Assertions.assertEquals("new", string(spool.poll()));
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,179 @@
+package com.flowstack.server.node.restic.utils;
+
+import com.flowstack.server.node.restic.model.SnapshotNode;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * SnapshotIndex 写入后重新打开, 检查查找, 列目录, 前缀, 排序. 不需要数据库
+ */
+public class SnapshotIndexTest {
+    private static final OffsetDateTime CTIME = OffsetDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    @TempDir
+    Path tempDir;
+
+    private SnapshotIndex index;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        Path file = this.tempDir.resolve("snapshot.idx");
+        try (SnapshotIndex.Builder builder = new SnapshotIndex.Builder()) {
+            // /data 没有单独输出, 由子节点补上
+            builder.add(file("/data/b.txt", 20, 3));
+            builder.add(file("/data/a.txt", 30, 1));
+            builder.add(file("/data/ab.log", 10, 2));
+            builder.add(dir("/data/sub"));
+            builder.add(file("/data/sub/c.bin", 100, 4));
+            builder.add(file("/readme.md", 5, 5));
+            builder.writeTo(file);
+        }
+        this.index = SnapshotIndex.open(file);
+    }
+
+    @Test
+    public void roundTrip() {
+        Assertions.assertEquals(8, this.index.size());
+        SnapshotIndex.Entry root = this.index.get(0);
+        Assertions.assertEquals("/", root.path());
+        Assertions.assertEquals("", root.name());
+        Assertions.assertTrue(root.isDirectory());
+        Assertions.assertEquals(165, root.totalSize());
+        // 广度优先, 同一个目录的子节点按 name 排序
+        List<String> paths = IntStream.range(0, this.index.size())
+                .mapToObj(i -> this.index.get(i).path())
+                .toList();
+        Assertions.assertEquals(List.of(
+                "/", "/data", "/readme.md", "/data/a.txt", "/data/ab.log", "/data/b.txt", "/data/sub", "/data/sub/c.bin"
+        ), paths);
+    }
+
+    @Test
+    public void lookup() {
+        SnapshotIndex.Entry entry = this.index.get("/data/sub/c.bin");
+        Assertions.assertNotNull(entry);
+        Assertions.assertEquals("c.bin", entry.name());
+        Assertions.assertEquals("file", entry.type());
+        Assertions.assertEquals(100, entry.size());
+        Assertions.assertEquals(CTIME.plusSeconds(4).toInstant(), entry.ctime());
+        SnapshotIndex.Entry data = this.index.get("/data/");
+        Assertions.assertTrue(data.isDirectory());
+        Assertions.assertEquals(160, data.totalSize());
+        Assertions.assertNull(data.ctime());
+        Assertions.assertNull(this.index.get("/data/missing"));
+        Assertions.assertNull(this.index.get("/readme.md/x"));
+    }
+
+    @Test
+    public void listByName() {
+        Assertions.assertEquals(List.of("a.txt", "ab.log", "b.txt", "sub"),
+                names(this.index.list("/data", null, SnapshotIndex.SortField.NAME, false, 0, 10)));
+        Assertions.assertEquals(List.of("b.txt", "ab.log"),
+                names(this.index.list("/data", null, SnapshotIndex.SortField.NAME, true, 1, 2)));
+        Assertions.assertEquals(List.of(),
+                this.index.list("/data", null, SnapshotIndex.SortField.NAME, false, 4, 10));
+        Assertions.assertEquals(List.of(),
+                this.index.list("/readme.md", null, SnapshotIndex.SortField.NAME, false, 0, 10));
+    }
+
+    @Test
+    public void listWithPrefix() {
+        Assertions.assertEquals(List.of("a.txt", "ab.log"),
+                names(this.index.list("/data", "a", SnapshotIndex.SortField.NAME, false, 0, 10)));
+        Assertions.assertEquals(List.of("ab.log"),
+                names(this.index.list("/data", "ab", SnapshotIndex.SortField.NAME, false, 0, 10)));
+        Assertions.assertEquals(List.of(),
+                this.index.list("/data", "z", SnapshotIndex.SortField.NAME, false, 0, 10));
+    }
+
+    @Test
+    public void listBySizeAndCtime() {
+        // 目录的 size 为 0
+        Assertions.assertEquals(List.of("sub", "ab.log", "b.txt", "a.txt"),
+                names(this.index.list("/data", null, SnapshotIndex.SortField.SIZE, false, 0, 10)));
+        Assertions.assertEquals(List.of("a.txt", "b.txt"),
+                names(this.index.list("/data", null, SnapshotIndex.SortField.SIZE, true, 0, 2)));
+        Assertions.assertEquals(List.of("ab.log", "a.txt", "sub"),
+                names(this.index.list("/data", "", SnapshotIndex.SortField.CTIME, true, 1, 3)));
+    }
+
+    @Test
+    public void search() {
+        Assertions.assertEquals(List.of("a.txt", "b.txt"), names(this.index.search("TXT", 10)));
+        Assertions.assertEquals(List.of("a.txt"), names(this.index.search("txt", 1)));
+        Assertions.assertEquals(List.of(), this.index.search("", 10));
+    }
+
+    @Test
+    public void externalMerge() throws IOException {
+        Path file = this.tempDir.resolve("merged.idx");
+        // 每 2 个 node 写一个临时文件, 按深度优先输出, 和 restic ls 相同
+        try (SnapshotIndex.Builder builder = new SnapshotIndex.Builder(2)) {
+            builder.add(dir("/a"));
+            builder.add(file("/a/x", 1, 1));
+            builder.add(file("/a-b/c/y", 2, 2));
+            builder.add(file("/a/z", 4, 3));
+            builder.add(file("/b", 8, 4));
+            // 重复的 path 保留后输出的
+            builder.add(file("/a/x", 16, 5));
+            builder.writeTo(file);
+        }
+        SnapshotIndex merged = SnapshotIndex.open(file);
+        List<String> paths = IntStream.range(0, merged.size())
+                .mapToObj(i -> merged.get(i).path())
+                .toList();
+        Assertions.assertEquals(List.of("/", "/a", "/a-b", "/b", "/a/x", "/a/z", "/a-b/c", "/a-b/c/y"), paths);
+        Assertions.assertEquals(30, merged.get(0).totalSize());
+        Assertions.assertEquals(20, merged.get("/a").totalSize());
+        Assertions.assertEquals(16, merged.get("/a/x").size());
+        Assertions.assertEquals(List.of("y"),
+                names(merged.list("/a-b/c", null, SnapshotIndex.SortField.NAME, false, 0, 10)));
+        try (var files = Files.list(this.tempDir)) {
+            Assertions.assertEquals(List.of("merged.idx", "snapshot.idx"),
+                    files.map(path -> path.getFileName().toString()).sorted().toList());
+        }
+    }
+
+    @Test
+    public void compareIndexOrder() {
+        Assertions.assertTrue(SnapshotIndex.compareIndexOrder("/", "/a") < 0);
+        Assertions.assertTrue(SnapshotIndex.compareIndexOrder("/z", "/a/b") < 0);
+        // 先比较父目录, "/a" 在 "/a-b" 之前
+        Assertions.assertTrue(SnapshotIndex.compareIndexOrder("/a/z", "/a-b/c") < 0);
+        Assertions.assertTrue(SnapshotIndex.compareIndexOrder("/a/b", "/a/bc") < 0);
+        Assertions.assertEquals(0, SnapshotIndex.compareIndexOrder("/a/b", "/a/b"));
+    }
+
+    @Test
+    public void parentOf() {
+        Assertions.assertEquals("/", SnapshotIndex.parentOf("/data"));
+        Assertions.assertEquals("/data/sub", SnapshotIndex.parentOf("/data/sub/c.bin"));
+    }
+
+    private static List<String> names(List<SnapshotIndex.Entry> entries) {
+        return entries.stream().map(SnapshotIndex.Entry::name).toList();
+    }
+
+    private static SnapshotNode file(String path, long size, long ctimeSeconds) {
+        return new SnapshotNode()
+                .setPath(path)
+                .setType("file")
+                .setSize(BigInteger.valueOf(size))
+                .setCtime(CTIME.plusSeconds(ctimeSeconds));
+    }
+
+    private static SnapshotNode dir(String path) {
+        return new SnapshotNode().setPath(path).setType("dir");
+    }
+}
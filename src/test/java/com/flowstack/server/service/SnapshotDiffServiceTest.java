@@ -0,0 +1,121 @@
+package com.flowstack.server.service;
+
+import com.flowstack.server.node.restic.model.SnapshotDiff;
+import com.flowstack.server.node.restic.model.SnapshotNode;
+import com.flowstack.server.node.restic.utils.SnapshotIndex;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+/**
+ * 两个小索引的归并对比, 检查增加, 删除, 修改的原因和大小变化, 以及 diff 缓存文件的清理. 不需要数据库和 restic
+ */
+public class SnapshotDiffServiceTest {
+    private static final OffsetDateTime T1 = OffsetDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    private static final OffsetDateTime T2 = T1.plusDays(1);
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void diffIndexes() throws IOException {
+        SnapshotIndex.Builder from = new SnapshotIndex.Builder();
+        from.add(file("/a.txt", 10, T1));
+        from.add(file("/b.txt", 20, T1));
+        from.add(file("/dir/c.txt", 5, T1));
+        from.add(file("/keep.txt", 7, T1));
+        from.add(file("/meta.txt", 3, T1));
+        from.add(file("/swap", 4, T1));
+        SnapshotIndex.Builder to = new SnapshotIndex.Builder();
+        to.add(file("/a.txt", 15, T2));
+        to.add(file("/dir/d.txt", 8, T2));
+        to.add(file("/keep.txt", 7, T1));
+        to.add(file("/meta.txt", 3, T2));
+        to.add(file("/new.txt", 1, T2));
+        to.add(new SnapshotNode().setPath("/swap").setType("dir").setCtime(T2));
+
+        SnapshotDiff diff = SnapshotDiffService.diffIndexes("from", write(from, "from"), "to", write(to, "to"));
+
+        Assertions.assertEquals(SnapshotDiff.SOURCE_INDEX, diff.getSource());
+        Assertions.assertEquals(List.of(
+                new SnapshotDiff.PathChange("/a.txt", "file", "modified", SnapshotDiff.REASON_CONTENT, 10L, 15L, 5L),
+                new SnapshotDiff.PathChange("/b.txt", "file", "removed", null, 20L, null, -20L),
+                new SnapshotDiff.PathChange("/meta.txt", "file", "modified", SnapshotDiff.REASON_METADATA, 3L, 3L, 0L),
+                new SnapshotDiff.PathChange("/new.txt", "file", "added", null, null, 1L, 1L),
+                new SnapshotDiff.PathChange("/swap", "dir", "modified", SnapshotDiff.REASON_TYPE, 4L, 0L, -4L),
+                new SnapshotDiff.PathChange("/dir/c.txt", "file", "removed", null, 5L, null, -5L),
+                new SnapshotDiff.PathChange("/dir/d.txt", "file", "added", null, null, 8L, 8L)
+        ), diff.getChanges());
+        Assertions.assertEquals(2, diff.getAddedCount());
+        Assertions.assertEquals(2, diff.getRemovedCount());
+        Assertions.assertEquals(3, diff.getModifiedCount());
+        Assertions.assertEquals(14, diff.getAddedBytes());
+        Assertions.assertEquals(29, diff.getRemovedBytes());
+        Assertions.assertNull(diff.getRepositoryAddedBytes());
+        Assertions.assertEquals(List.of(
+                new SnapshotDiff.DirectoryChange("/", 1, 1, 3, -18L),
+                new SnapshotDiff.DirectoryChange("/dir", 1, 1, 0, 3L)
+        ), diff.getDirectories());
+    }
+
+    @Test
+    public void diffIdenticalIndexes() throws IOException {
+        SnapshotIndex.Builder builder = new SnapshotIndex.Builder();
+        builder.add(file("/a.txt", 10, T1));
+        builder.add(file("/dir/b.txt", 20, T1));
+        SnapshotIndex index = write(builder, "same");
+
+        SnapshotDiff diff = SnapshotDiffService.diffIndexes("from", index, "to", index);
+
+        Assertions.assertEquals(List.of(), diff.getChanges());
+        Assertions.assertEquals(List.of(), diff.getDirectories());
+        Assertions.assertEquals(0, diff.getAddedCount() + diff.getRemovedCount() + diff.getModifiedCount());
+    }
+
+    @Test
+    public void invalidateSnapshotMatchesWholeIds() throws IOException {
+        SnapshotDiffService service = new SnapshotDiffService(null);
+        ReflectionTestUtils.setField(service, "snapshotIndexPath", this.tempDir.toString());
+        ReflectionTestUtils.setField(service, "snapshotDiffCacheMaxChanges", 100L);
+        service.init();
+        Path directory = Files.createDirectories(this.tempDir.resolve("diff"));
+        for (String name : List.of(
+                "aaaaaaaa_bbbbbbbb.json.gz",
+                "bbbbbbbb_aaaaaaaa.restic.json.gz",
+                // 只是包含 aaaaaaaa 的其他 snapshot
+                "aaaaaaaabb_bbbbbbbb.json.gz",
+                "bbbbbbbb_ffaaaaaaaa.restic.json.gz")) {
+            Files.createFile(directory.resolve(name));
+        }
+
+        service.invalidateSnapshot("aaaaaaaa");
+
+        try (var files = Files.list(directory)) {
+            Assertions.assertEquals(List.of("aaaaaaaabb_bbbbbbbb.json.gz", "bbbbbbbb_ffaaaaaaaa.restic.json.gz"),
+                    files.map(file -> file.getFileName().toString()).sorted().toList());
+        }
+    }
+
+    private SnapshotIndex write(SnapshotIndex.Builder builder, String name) throws IOException {
+        Path file = this.tempDir.resolve(name + ".idx");
+        builder.writeTo(file);
+        return SnapshotIndex.open(file);
+    }
+
+    private static SnapshotNode file(String path, long size, OffsetDateTime ctime) {
+        return new SnapshotNode()
+                .setPath(path)
+                .setType("file")
+                .setSize(BigInteger.valueOf(size))
+                .setCtime(ctime);
+    }
+}
@@ -0,0 +1,20 @@
+-- 已有数据库升级到当前 schema.sql, 可以重复执行.
+-- schema.sql 会删除并重建表, 只用于新建数据库; 已有数据的数据库执行本文件
+
+-- 流程定义表: 执行记录保留策略
+ALTER TABLE flow_definition ADD COLUMN IF NOT EXISTS retention_full_runs INT; -- 保留完整数据的最近执行次数, 为空使用系统默认值
+ALTER TABLE flow_definition ADD COLUMN IF NOT EXISTS retention_summary_days INT; -- 归档后摘要保留天数, 0 永久保留, 为空使用系统默认值
+
+-- 流程执行记录表
+ALTER TABLE flow_execution ADD COLUMN IF NOT EXISTS archive_path VARCHAR(400); -- 归档文件路径, 不为空表示只保留摘要
+CREATE UNIQUE INDEX IF NOT EXISTS uk_flow_execution_uuid_v4 ON flow_execution (flow_execution_uuid_v4);
+CREATE INDEX IF NOT EXISTS idx_flow_execution_definition_start ON flow_execution (flow_definition_id, start_time);
+-- 执行历史按 (start_time, id) 分页, 替换只有 start_time 的索引
+DROP INDEX IF EXISTS idx_flow_execution_start;
+CREATE INDEX IF NOT EXISTS idx_flow_execution_start_id ON flow_execution (start_time, flow_execution_id);
+
+-- 节点执行日志表
+CREATE UNIQUE INDEX IF NOT EXISTS uk_node_execution_uuid_v4 ON node_execution (node_execution_uuid_v4);
+CREATE INDEX IF NOT EXISTS idx_node_execution_flow_execution ON node_execution (flow_execution_id, start_time);
+CREATE INDEX IF NOT EXISTS idx_node_execution_definition_start ON node_execution (flow_definition_id, start_time);
+CREATE INDEX IF NOT EXISTS idx_node_execution_start_id ON node_execution (start_time, node_execution_id);